@@ -0,0 +1,246 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This class moves data in and out of the Messenger database in bulk,
+ * through the COPY streaming interface of PostgreSQL instead of one
+ * statement per row.  Both directions stream, so memory use does not
+ * depend on the number of rows.
+ *
+ * Exports write CSV with a header line: the history of a chat, one row
+ * per message and attachment, or the contacts of a user.  Imports read
+ * CSV with a header line into a temporary table and then insert
+ * everything with one statement, in one transaction; rows naming an
+ * unknown user or chat and rows that already exist are skipped.
+ *
+ *   export-chat <chat_id> [file]    msg_id,sender,text,msg_timestamp,destr_timestamp,media_type,url
+ *   export-contacts <login> [file]  contact,status
+ *   import-users <file>             login,password,phone
+ *   import-contacts <file>          login,contact
+ *   import-members <file>           chat_id,member
+ *
+ * Exports without a file write to standard output.  Imports read a file,
+ * since a transaction that is run again must read it again.  The caches
+ * of running Messenger processes do not see imported rows until they
+ * load them again.  Plain passwords are hashed, on every core, before
+ * the users are inserted; passwords already hashed by PasswordHash are
+ * stored as given.
+ *
+ */
+class BulkTransfer {
+
+   private static final String CSV = "WITH (FORMAT csv, HEADER)";
+
+   private final Messenger _esql;
+
+   /**
+    * Creates a new bulk transfer for the given Messenger instance
+    *
+    * @param esql the Messenger whose connections the copies run on
+    */
+   BulkTransfer (Messenger esql) {
+      this._esql = esql;
+   }//end BulkTransfer
+
+   public static void main (String[] args) {
+      if (args.length < 5 || args.length > 6) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkTransfer.class.getName () +
+            " <dbname> <port> <user> <command> <argument> [file]\n" +
+            "Commands: export-chat <chat_id> [file], export-contacts <login> [file],\n" +
+            "          import-users <file>, import-contacts <file>, import-members <file>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         esql = new Messenger(args[0], args[1], args[2], "");
+         BulkTransfer transfer = new BulkTransfer(esql);
+         String command = args[3];
+         String file = (args.length == 6) ? args[5] : null;
+         long start = System.nanoTime();
+         long rows;
+         switch (command) {
+            case "export-chat":
+            case "export-contacts":
+               Writer out = writer(file);
+               try{
+                  rows = command.equals("export-chat") ? transfer.exportChat(Integer.parseInt(args[4]), out)
+                                                       : transfer.exportContacts(args[4], out);
+               }finally{
+                  // standard output stays open
+                  if (file == null) out.flush();
+                  else out.close();
+               }//end try
+               break;
+            case "import-users": rows = transfer.importUsers(args[4]); break;
+            case "import-contacts": rows = transfer.importContacts(args[4]); break;
+            case "import-members": rows = transfer.importMembers(args[4]); break;
+            default:
+               System.err.println("Unknown command: " + command);
+               return;
+         }//end switch
+         // the data itself may be on standard output
+         System.err.println(String.format("%s: %d rows in %.1fs", command, rows, (System.nanoTime() - start) / 1e9));
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null) esql.cleanup();
+      }//end try
+   }//end main
+
+   private static Writer writer (String file) throws IOException {
+      OutputStream out = (file == null) ? System.out : new FileOutputStream(file);
+      return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+   }//end writer
+
+   private static Reader reader (String file) throws SQLException {
+      try{
+         return Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+      }catch (IOException e){
+         throw new SQLException("Unable to read " + file + ": " + e.getMessage(), e);
+      }//end try
+   }//end reader
+
+   /*
+    * COPY takes no parameters, so values are written into it as literals
+    */
+   private static String literal (String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }//end literal
+
+   //--- exports
+
+   /**
+    * Writes the history of a chat, oldest first, one row per message and
+    * attachment.
+    *
+    * @return the number of rows written
+    */
+   long exportChat (int chatId, Writer out) throws SQLException {
+      String copy = "COPY (SELECT m.msg_id, trim(m.sender_login) AS sender, trim(m.msg_text) AS text, m.msg_timestamp, " +
+                    "m.destr_timestamp, trim(a.media_type) AS media_type, trim(a.URL) AS url FROM MESSAGE m " +
+                    "LEFT OUTER JOIN MEDIA_ATTACHMENT a ON (a.msg_id = m.msg_id) WHERE m.chat_id = " + chatId + " " +
+                    "ORDER BY m.msg_timestamp, m.msg_id) TO STDOUT " + CSV;
+      return this._esql.copyOut(copy, out);
+   }//end exportChat
+
+   /**
+    * Writes the contacts of a user with their status.
+    *
+    * @return the number of rows written
+    */
+   long exportContacts (String login, Writer out) throws SQLException {
+      String copy = "COPY (SELECT trim(C.list_member) AS contact, trim(U.status) AS status FROM USR L " +
+                    "JOIN USER_LIST_CONTAINS C ON (C.list_id = L.contact_list) JOIN USR U ON (U.login = C.list_member) " +
+                    "WHERE L.login = " + literal(login) + " ORDER BY 1) TO STDOUT " + CSV;
+      return this._esql.copyOut(copy, out);
+   }//end exportContacts
+
+   //--- imports
+
+   /*
+    * Copies a CSV file into a temporary table dropped at commit, runs the
+    * staged work on it, if any, then inserts from it; returns the rows
+    * inserted
+    */
+   private long load (String file, String table, Messenger.SqlWork<?> staged, String insert) throws SQLException {
+      return this._esql.inTransaction(() -> {
+         this._esql.executeUpdate("CREATE TEMP TABLE " + table + " ON COMMIT DROP");
+         try (Reader in = reader(file)) {
+            this._esql.copyIn("COPY " + table.substring(0, table.indexOf(' ')) + " FROM STDIN " + CSV, in);
+         }catch (IOException e){
+            throw new SQLException("Unable to close " + file + ": " + e.getMessage(), e);
+         }//end try
+         if (staged != null) staged.run();
+         return (long) this._esql.executeUpdate(insert);
+      });
+   }//end load
+
+   /**
+    * Creates the users of a file, each with empty contact and block lists,
+    * like createUser does for one.
+    *
+    * @return the number of users created
+    */
+   long importUsers (String file) throws SQLException {
+      String insert =
+         // rows whose login or phone number is taken, by a user or an earlier row, are skipped
+         "WITH f AS (SELECT DISTINCT ON (login) login, password, phone, ctid AS line FROM bulk_users b " +
+         "WHERE NOT EXISTS (SELECT 1 FROM USR u WHERE u.login = b.login) " +
+         "AND NOT EXISTS (SELECT 1 FROM USR u WHERE u.phoneNum = b.phone::bpchar) ORDER BY login, ctid), " +
+         "s AS (SELECT DISTINCT ON (coalesce(phone, login)) login, password, phone FROM f ORDER BY coalesce(phone, login), line), " +
+         "k AS (SELECT s.*, nextval(pg_get_serial_sequence('user_list', 'list_id')) AS block_list, " +
+         "nextval(pg_get_serial_sequence('user_list', 'list_id')) AS contact_list FROM s), " +
+         "l AS (INSERT INTO USER_LIST (list_id, list_type) SELECT block_list, 'block' FROM k " +
+         "UNION ALL SELECT contact_list, 'contact' FROM k) " +
+         "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) " +
+         "SELECT phone, login, password, block_list, contact_list FROM k";
+      return load(file, "bulk_users (login varchar(50), password varchar(128), phone varchar(16))", this::hashPasswords, insert);
+   }//end importUsers
+
+   /*
+    * Hashes the staged passwords that are not hashed yet, in parallel
+    * since each hash takes PasswordHash.ITERATIONS rounds, and writes
+    * them back with one statement
+    */
+   private int hashPasswords () throws SQLException {
+      List<String[]> plain = this._esql.query(
+         "SELECT ctid::text, password FROM bulk_users WHERE password IS NOT NULL AND NOT " + PasswordHash.IS_HASH_SQL, rs -> {
+            List<String[]> rows = new ArrayList<String[]>();
+            while (rs.next())
+               rows.add(new String[] { rs.getString(1), rs.getString(2) });
+            return rows;
+         });
+      if (plain.isEmpty()) return 0;
+      String[] lines = new String[plain.size()];
+      String[] hashes = new String[plain.size()];
+      IntStream.range(0, lines.length).parallel().forEach(i -> {
+         lines[i] = plain.get(i)[0];
+         hashes[i] = PasswordHash.hash(plain.get(i)[1]);
+      });
+      return this._esql.executeUpdate("UPDATE bulk_users b SET password = h.hash FROM unnest(?::text[], ?::text[]) AS h(line, hash) " +
+                                      "WHERE b.ctid = h.line::tid", lines, hashes);
+   }//end hashPasswords
+
+   /**
+    * Adds each contact of a file to the contact list of its user.
+    *
+    * @return the number of contacts added
+    */
+   long importContacts (String file) throws SQLException {
+      String insert =
+         "INSERT INTO USER_LIST_CONTAINS (list_id, list_member) SELECT DISTINCT u.contact_list, c.login " +
+         "FROM bulk_contacts b JOIN USR u ON (u.login = b.login) JOIN USR c ON (c.login = b.contact) " +
+         "ON CONFLICT DO NOTHING";
+      return load(file, "bulk_contacts (login varchar(50), contact varchar(50))", null, insert);
+   }//end importContacts
+
+   /**
+    * Adds each member of a file to its chat.
+    *
+    * @return the number of members added
+    */
+   long importMembers (String file) throws SQLException {
+      String insert =
+         "INSERT INTO CHAT_LIST (chat_id, member) SELECT DISTINCT c.chat_id, u.login " +
+         "FROM bulk_members b JOIN CHAT c ON (c.chat_id = b.chat_id) JOIN USR u ON (u.login = b.member) " +
+         "ON CONFLICT DO NOTHING";
+      return load(file, "bulk_members (chat_id integer, member varchar(50))", null, insert);
+   }//end importMembers
+
+}//end BulkTransfer
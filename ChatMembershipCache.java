@@ -0,0 +1,160 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This class caches the members of recently used chats, keyed by chat_id.
+ * The cache is split into stripes, each an LRU map guarded by its own lock,
+ * so sessions working on different chats rarely contend.  Member sets are
+ * immutable snapshots; the operations that change CHAT_LIST write the change
+ * through after the database update succeeded.  A miss is loaded outside
+ * the stripe's lock, and only cached when the stripe did not change
+ * meanwhile, so a slow load neither blocks the other chats of its stripe
+ * nor overwrites a change made while it ran.
+ *
+ */
+class ChatMembershipCache {
+
+   static final int DEFAULT_CAPACITY = Integer.getInteger("messenger.membershipCache.size", 10000);
+   static final int STRIPES = 16;
+
+   /**
+    * Loads the members of a chat that is not cached.
+    */
+   interface Loader {
+      Set<String> load (int chatId) throws SQLException;
+   }
+
+   private static class Stripe extends LinkedHashMap<Integer, Set<String>> {
+      private static final long serialVersionUID = 1L;
+
+      private final int _capacity;
+      // counts the changes written through, to detect those made during a load
+      long changes;
+
+      Stripe (int capacity) {
+         super(16, 0.75f, true);
+         this._capacity = capacity;
+      }//end Stripe
+
+      @Override
+      protected boolean removeEldestEntry (Map.Entry<Integer, Set<String>> eldest) {
+         return size() > this._capacity;
+      }//end removeEldestEntry
+   }//end Stripe
+
+   private final Stripe[] _stripes = new Stripe[STRIPES];
+   private final Loader _loader;
+
+   /**
+    * Creates a new membership cache
+    *
+    * @param capacity the maximum number of chats kept
+    * @param loader reads the members of a chat from the database
+    */
+   ChatMembershipCache (int capacity, Loader loader) {
+      for (int i = 0; i < STRIPES; ++i)
+         this._stripes[i] = new Stripe(Math.max(1, capacity / STRIPES));
+      this._loader = loader;
+   }//end ChatMembershipCache
+
+   private Stripe stripe (int chatId) {
+      return this._stripes[(chatId & 0x7fffffff) % STRIPES];
+   }//end stripe
+
+   /**
+    * Returns the members of a chat, loading them on a miss.
+    *
+    * @param chatId the chat
+    * @return the logins of the members, sorted
+    * @throws java.sql.SQLException when the members could not be loaded
+    */
+   Set<String> members (int chatId) throws SQLException {
+      Stripe stripe = stripe(chatId);
+      long changes;
+      synchronized (stripe) {
+         Set<String> members = stripe.get(chatId);
+         if (members != null) return members;
+         changes = stripe.changes;
+      }//end synchronized
+      Set<String> loaded = Collections.unmodifiableSet(new TreeSet<String>(this._loader.load(chatId)));
+      synchronized (stripe) {
+         Set<String> members = stripe.get(chatId);
+         if (members != null) return members;
+         if (stripe.changes == changes) stripe.put(chatId, loaded);
+      }//end synchronized
+      return loaded;
+   }//end members
+
+   boolean isMember (int chatId, String login) throws SQLException {
+      return members(chatId).contains(login);
+   }//end isMember
+
+   /**
+    * Records the members of a chat that was just created.
+    */
+   void put (int chatId, Set<String> members) {
+      Stripe stripe = stripe(chatId);
+      synchronized (stripe) {
+         stripe.changes++;
+         stripe.put(chatId, Collections.unmodifiableSet(new TreeSet<String>(members)));
+      }//end synchronized
+   }//end put
+
+   /**
+    * Records a member added to a chat, if the chat is cached.
+    */
+   void addMember (int chatId, String login) {
+      Stripe stripe = stripe(chatId);
+      synchronized (stripe) {
+         stripe.changes++;
+         Set<String> members = stripe.get(chatId);
+         if (members == null) return;
+         Set<String> updated = new TreeSet<String>(members);
+         updated.add(login);
+         stripe.put(chatId, Collections.unmodifiableSet(updated));
+      }//end synchronized
+   }//end addMember
+
+   /**
+    * Records a member removed from a chat, if the chat is cached.
+    */
+   void removeMember (int chatId, String login) {
+      Stripe stripe = stripe(chatId);
+      synchronized (stripe) {
+         stripe.changes++;
+         Set<String> members = stripe.get(chatId);
+         if (members == null) return;
+         Set<String> updated = new TreeSet<String>(members);
+         updated.remove(login);
+         stripe.put(chatId, Collections.unmodifiableSet(updated));
+      }//end synchronized
+   }//end removeMember
+
+   /**
+    * Forgets a chat, e.g. after it was deleted.
+    */
+   void invalidate (int chatId) {
+      Stripe stripe = stripe(chatId);
+      synchronized (stripe) {
+         stripe.changes++;
+         stripe.remove(chatId);
+      }//end synchronized
+   }//end invalidate
+
+   /**
+    * Forgets every chat, e.g. after a user and all their memberships were deleted.
+    */
+   void invalidateAll () {
+      for (Stripe stripe : this._stripes) {
+         synchronized (stripe) {
+            stripe.changes++;
+            stripe.clear();
+         }//end synchronized
+      }//end for
+   }//end invalidateAll
+
+}//end ChatMembershipCache
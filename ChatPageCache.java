@@ -0,0 +1,539 @@
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps the most recent messages of recently read chats in
+ * memory-mapped segment files, one per chat, so that reopening a chat and
+ * paging through its recent history is answered without a round trip to
+ * the database.  Each segment holds a window of the newest messages of its
+ * chat, with their attachments and expiry, newest first; the sends, edits
+ * and deletes of this process are written through to it after the
+ * database update succeeded.  A page that reaches past the window, e.g.
+ * older than the oldest cached message, is left to the database.
+ *
+ * The cache only sees the writes of its own process, so it may only be
+ * turned on when this process is the single writer of the database, e.g.
+ * in server mode; with one process per user, as the console runs, other
+ * users' messages would never show up in a cached page.  It is off unless
+ * messenger.pageCache.maxBytes is set.
+ *
+ * The index of segments is kept in memory in least recently used order,
+ * and the least recently used chats are dropped once the segments take
+ * more than messenger.pageCache.maxBytes.  The decoded window of a segment
+ * is kept alongside it while memory allows, so reads only decode the
+ * segment again once the collector cleared that copy; windows are never
+ * changed in place, a change writes a new one.  The segment directory is
+ * emptied at startup and on close: messages written while the process was
+ * not running cannot be seen, so old segments are never trusted.
+ *
+ */
+class ChatPageCache {
+
+   static final long MAX_BYTES = Long.getLong("messenger.pageCache.maxBytes", 0);
+   static final int WINDOW = Integer.getInteger("messenger.pageCache.messages", 100);
+   static final String DIRECTORY = System.getProperty("messenger.pageCache.dir",
+      Paths.get(System.getProperty("java.io.tmpdir"), "messenger-pages-" + ProcessHandle.current().pid()).toString());
+
+   private static final int PAGE_BYTES = 4096;
+
+   /**
+    * Loads the window of a chat that is not cached: the rows of its newest
+    * WINDOW + 1 messages, newest first, so that a chat with more messages
+    * than the window can be told apart.
+    */
+   interface Loader {
+      List<Row> load (int chatId, int messages) throws SQLException;
+   }
+
+   /**
+    * One row of a window: a message, or one attachment of it, and when it
+    * expires (Long.MAX_VALUE for never).
+    */
+   static final class Row {
+      final Message message;
+      final long expires;
+
+      Row (Message message, long expires) {
+         this.message = message;
+         this.expires = expires;
+      }
+   }//end Row
+
+   /*
+    * The segment file of one chat, mapped as a whole
+    */
+   private static final class Segment {
+      final Path path;
+      MappedByteBuffer buffer;
+      int capacity;
+      // the decoded content, until memory runs short
+      SoftReference<Window> window = new SoftReference<Window>(null);
+
+      Segment (Path path) {
+         this.path = path;
+      }
+   }//end Segment
+
+   /*
+    * The decoded content of a segment
+    */
+   static final class Window {
+      // true when the window holds every message of the chat
+      boolean complete;
+      final List<Row> rows = new ArrayList<Row>();
+   }//end Window
+
+   private final Path _directory;
+   private final Loader _loader;
+   private final long _maxBytes;
+   private final LinkedHashMap<Integer, Segment> _segments = new LinkedHashMap<Integer, Segment>(16, 0.75f, true);
+   // changes seen for each chat whose window is being loaded
+   private final Map<Integer, int[]> _loading = new HashMap<Integer, int[]>();
+   private long _bytes;
+
+   /**
+    * Creates a new page cache in an emptied directory, or a disabled one
+    * when the directory cannot be used
+    *
+    * @param directory where the segment files are kept
+    * @param maxBytes the size of the segments above which chats are
+    *        dropped, 0 for a disabled cache
+    * @param loader reads the window of a chat from the database
+    */
+   ChatPageCache (String directory, long maxBytes, Loader loader) {
+      this._loader = loader;
+      this._maxBytes = maxBytes;
+      Path path = null;
+      if (maxBytes > 0) {
+         try{
+            path = Files.createDirectories(Paths.get(directory));
+            clear(path);
+         }catch (IOException e){
+            System.err.println("Unable to use the page cache directory: " + e.getMessage());
+            path = null;
+         }//end try
+      }//end if
+      this._directory = path;
+   }//end ChatPageCache
+
+   boolean isEnabled () {
+      return this._directory != null;
+   }//end isEnabled
+
+   /**
+    * Returns the newest page of a chat, or null when the database has to
+    * be asked.
+    *
+    * @param blocked the senders left out of the page
+    */
+   Messenger.MessagePage latest (int chatId, Set<String> blocked, int size) throws SQLException {
+      Window window = window(chatId);
+      if (window == null) return null;
+      return collect(window, 0, blocked, size);
+   }//end latest
+
+   /**
+    * Returns the page right before the given one, or null when the
+    * database has to be asked.
+    */
+   Messenger.MessagePage older (int chatId, Set<String> blocked, Messenger.MessagePage page, int size) throws SQLException {
+      Window window = window(chatId);
+      if (window == null) return null;
+      int start = 0;
+      while (start < window.rows.size() && compare(window.rows.get(start).message, page.oldestTime, page.oldestId) >= 0) ++start;
+      return collect(window, start, blocked, size);
+   }//end older
+
+   /**
+    * Returns the page with the given newest message, or null when the
+    * database has to be asked.
+    */
+   Messenger.MessagePage current (int chatId, Set<String> blocked, Messenger.MessagePage page, int size) throws SQLException {
+      Window window = window(chatId);
+      if (window == null) return null;
+      int start = 0;
+      while (start < window.rows.size() && compare(window.rows.get(start).message, page.newestTime, page.newestId) > 0) ++start;
+      return collect(window, start, blocked, size);
+   }//end current
+
+   /**
+    * Returns the page right after the given one, or null when the
+    * database has to be asked.
+    */
+   Messenger.MessagePage newer (int chatId, Set<String> blocked, Messenger.MessagePage page, int size) throws SQLException {
+      Window window = window(chatId);
+      if (window == null) return null;
+      List<Row> rows = window.rows;
+      // the window must reach down to the given page
+      if (!window.complete && (rows.isEmpty() || compare(rows.get(rows.size() - 1).message, page.newestTime, page.newestId) > 0))
+         return null;
+      int end = 0;
+      while (end < rows.size() && compare(rows.get(end).message, page.newestTime, page.newestId) > 0) ++end;
+      // the messages closest to the given page, walking up from it
+      long now = System.currentTimeMillis();
+      int start = end, messages = 0, lastId = -1;
+      for (int i = end - 1; i >= 0; --i) {
+         Row row = rows.get(i);
+         if (!visible(row, blocked, now)) continue;
+         if (row.message.id != lastId) {
+            if (messages == size) break;
+            ++messages;
+            lastId = row.message.id;
+         }//end if
+         start = i;
+      }//end for
+      Messenger.MessagePage newer = new Messenger.MessagePage();
+      for (int i = start; i < end; ++i)
+         if (visible(rows.get(i), blocked, now)) add(newer, rows.get(i).message);
+      return newer;
+   }//end newer
+
+   /*
+    * Takes the rows of up to size visible messages from the given row on,
+    * or returns null when the window ends first
+    */
+   private static Messenger.MessagePage collect (Window window, int start, Set<String> blocked, int size) {
+      Messenger.MessagePage page = new Messenger.MessagePage();
+      long now = System.currentTimeMillis();
+      int i = start;
+      for (; i < window.rows.size(); ++i) {
+         Row row = window.rows.get(i);
+         if (!visible(row, blocked, now)) continue;
+         if (page.size == size && row.message.id != page.oldestId) break;
+         add(page, row.message);
+      }//end for
+      if (page.size < size && !window.complete) return null;
+      return page;
+   }//end collect
+
+   private static boolean visible (Row row, Set<String> blocked, long now) {
+      return row.expires >= now && !blocked.contains(row.message.sender);
+   }//end visible
+
+   private static void add (Messenger.MessagePage page, Message message) {
+      // a message with several attachments spans several rows
+      if (page.size == 0 || message.id != page.oldestId) {
+         if (page.size++ == 0) {
+            page.newestTime = message.time;
+            page.newestId = message.id;
+         }//end if
+         page.oldestTime = message.time;
+         page.oldestId = message.id;
+      }//end if
+      page.messages.add(message);
+   }//end add
+
+   /*
+    * Orders a message against a (time, id) position, newest first like the
+    * window: negative when the message is older
+    */
+   private static int compare (Message message, Timestamp time, int id) {
+      int c = message.time.compareTo(time);
+      return (c != 0) ? c : Integer.compare(message.id, id);
+   }//end compare
+
+   //--- changes
+
+   /**
+    * Adds a message sent to a chat, if the chat is cached.
+    */
+   void messageSent (Message message) {
+      if (!isEnabled()) return;
+      update(message.chatId, window -> {
+         List<Row> rows = window.rows;
+         for (Row row : rows)
+            if (row.message.id == message.id) return false;
+         int at = 0;
+         while (at < rows.size() && compare(rows.get(at).message, message.time, message.id) > 0) ++at;
+         rows.add(at, new Row(message, Long.MAX_VALUE));
+         trim(window);
+         return true;
+      });
+   }//end messageSent
+
+   /**
+    * Replaces the text of a message, if its chat is cached.
+    */
+   void messageEdited (int chatId, int msgId, String text) {
+      if (!isEnabled()) return;
+      update(chatId, window -> {
+         boolean changed = false;
+         for (int i = 0; i < window.rows.size(); ++i) {
+            Row row = window.rows.get(i);
+            if (row.message.id != msgId) continue;
+            Message m = row.message;
+            window.rows.set(i, new Row(new Message(m.id, m.chatId, m.sender, text, m.time, m.mediaType, m.url), row.expires));
+            changed = true;
+         }//end for
+         return changed;
+      });
+   }//end messageEdited
+
+   /**
+    * Removes a message, if its chat is cached.
+    */
+   void messageDeleted (int chatId, int msgId) {
+      if (!isEnabled()) return;
+      // the window still ends at its oldest message, only one message short
+      update(chatId, window -> window.rows.removeIf(row -> row.message.id == msgId));
+   }//end messageDeleted
+
+   /*
+    * Keeps the rows of the newest WINDOW messages
+    */
+   private static void trim (Window window) {
+      int messages = 0, lastId = -1;
+      for (int i = 0; i < window.rows.size(); ++i) {
+         int id = window.rows.get(i).message.id;
+         if (id == lastId) continue;
+         if (++messages > WINDOW) {
+            window.rows.subList(i, window.rows.size()).clear();
+            window.complete = false;
+            return;
+         }//end if
+         lastId = id;
+      }//end for
+   }//end trim
+
+   private interface Change {
+      // returns false when the window is unchanged
+      boolean apply (Window window);
+   }
+
+   private synchronized void update (int chatId, Change change) {
+      int[] loading = this._loading.get(chatId);
+      if (loading != null) ++loading[0];
+      Segment segment = this._segments.get(chatId);
+      if (segment == null) return;
+      // readers may still hold the current window
+      Window window = copy(read(segment));
+      if (change.apply(window)) write(chatId, segment, window);
+   }//end update
+
+   /**
+    * Forgets a chat, e.g. after it was deleted or some of its messages
+    * expired.
+    */
+   synchronized void invalidate (int chatId) {
+      int[] loading = this._loading.get(chatId);
+      if (loading != null) ++loading[0];
+      drop(chatId);
+   }//end invalidate
+
+   /**
+    * Forgets every chat, e.g. after a user and all their messages were
+    * deleted.
+    */
+   synchronized void invalidateAll () {
+      for (int[] loading : this._loading.values())
+         ++loading[0];
+      for (Integer chatId : new ArrayList<Integer>(this._segments.keySet()))
+         drop(chatId);
+   }//end invalidateAll
+
+   /**
+    * Drops every segment and removes the directory.
+    */
+   synchronized void close () {
+      if (!isEnabled()) return;
+      invalidateAll();
+      try{
+         clear(this._directory);
+         Files.deleteIfExists(this._directory);
+      }catch (IOException e){
+         System.err.println("Unable to remove the page cache: " + e.getMessage());
+      }//end try
+   }//end close
+
+   //--- segments
+
+   /*
+    * Returns the window of a chat, loading it on a miss; changes made
+    * while it loads, which the loaded rows may or may not show, keep it
+    * out of the cache
+    */
+   private Window window (int chatId) throws SQLException {
+      if (!isEnabled()) return null;
+      int[] changes;
+      synchronized (this) {
+         Segment segment = this._segments.get(chatId);
+         if (segment != null) return read(segment);
+         changes = this._loading.containsKey(chatId) ? null : new int[1];
+         if (changes != null) this._loading.put(chatId, changes);
+      }//end synchronized
+      Window window = new Window();
+      try{
+         window.rows.addAll(this._loader.load(chatId, WINDOW + 1));
+         window.complete = true;
+         trim(window);
+      }finally{
+         if (changes != null) {
+            synchronized (this) {
+               this._loading.remove(chatId);
+               if (changes[0] == 0 && !window.rows.isEmpty())
+                  write(chatId, new Segment(this._directory.resolve(chatId + ".page")), window);
+            }//end synchronized
+         }//end if
+      }//end try
+      return window;
+   }//end window
+
+   /*
+    * Writes a window to its segment, growing the file when it does not fit,
+    * and drops the least recently used chats over the budget
+    */
+   private void write (int chatId, Segment segment, Window window) {
+      ByteBuffer bytes = encode(window);
+      try{
+         if (segment.buffer == null || bytes.remaining() > segment.capacity) {
+            int capacity = (bytes.remaining() + bytes.remaining() / 2 + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+               // the mapping stays valid after the channel is closed
+               segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }//end try
+            this._bytes += capacity - segment.capacity;
+            segment.capacity = capacity;
+         }//end if
+         segment.buffer.clear();
+         segment.buffer.put(bytes);
+         segment.window = new SoftReference<Window>(window);
+         this._segments.put(chatId, segment);
+      }catch (IOException e){
+         System.err.println("Unable to write the page cache: " + e.getMessage());
+         this._bytes -= segment.capacity;
+         this._segments.remove(chatId);
+         delete(segment.path);
+         return;
+      }//end try
+      Iterator<Map.Entry<Integer, Segment>> eldest = this._segments.entrySet().iterator();
+      while (this._bytes > this._maxBytes && this._segments.size() > 1) {
+         Map.Entry<Integer, Segment> entry = eldest.next();
+         if (entry.getKey() == chatId) continue;
+         eldest.remove();
+         this._bytes -= entry.getValue().capacity;
+         delete(entry.getValue().path);
+      }//end while
+   }//end write
+
+   /*
+    * The window of a segment, decoded again only when the collector
+    * cleared the decoded copy
+    */
+   private static Window read (Segment segment) {
+      Window window = segment.window.get();
+      if (window == null) {
+         window = decode(segment.buffer);
+         segment.window = new SoftReference<Window>(window);
+      }//end if
+      return window;
+   }//end read
+
+   private static Window copy (Window window) {
+      Window copy = new Window();
+      copy.complete = window.complete;
+      copy.rows.addAll(window.rows);
+      return copy;
+   }//end copy
+
+   private void drop (int chatId) {
+      Segment segment = this._segments.remove(chatId);
+      if (segment == null) return;
+      this._bytes -= segment.capacity;
+      delete(segment.path);
+   }//end drop
+
+   private static void delete (Path path) {
+      try{
+         Files.deleteIfExists(path);
+      }catch (IOException e){
+         System.err.println("Unable to remove " + path + ": " + e.getMessage());
+      }//end try
+   }//end delete
+
+   private static void clear (Path directory) throws IOException {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.page")) {
+         for (Path file : files)
+            Files.delete(file);
+      }//end try
+   }//end clear
+
+   /*
+    * Segment layout: the length of what follows, the complete flag and the
+    * number of rows, then every row as id, chat, time in millis and nanos,
+    * expiry, sender, text, media type and URL; strings are a byte length
+    * (-1 for null) and their UTF-8 bytes
+    */
+   static ByteBuffer encode (Window window) {
+      List<byte[]> strings = new ArrayList<byte[]>(window.rows.size() * 4);
+      int length = 8;
+      for (Row row : window.rows) {
+         Message m = row.message;
+         for (String value : new String[] { m.sender, m.text, m.mediaType, m.url }) {
+            byte[] bytes = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            length += 4 + ((bytes == null) ? 0 : bytes.length);
+         }//end for
+         length += 4 + 4 + 8 + 4 + 8;
+      }//end for
+      ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+      buffer.putInt(length).putInt(window.complete ? 1 : 0).putInt(window.rows.size());
+      int s = 0;
+      for (Row row : window.rows) {
+         Message m = row.message;
+         buffer.putInt(m.id).putInt(m.chatId).putLong(m.time.getTime()).putInt(m.time.getNanos()).putLong(row.expires);
+         for (int i = 0; i < 4; ++i) {
+            byte[] bytes = strings.get(s++);
+            buffer.putInt((bytes == null) ? -1 : bytes.length);
+            if (bytes != null) buffer.put(bytes);
+         }//end for
+      }//end for
+      buffer.flip();
+      return buffer;
+   }//end encode
+
+   static Window decode (ByteBuffer segment) {
+      ByteBuffer buffer = segment.duplicate();
+      buffer.position(4);
+      Window window = new Window();
+      window.complete = buffer.getInt() == 1;
+      int rows = buffer.getInt();
+      for (int r = 0; r < rows; ++r) {
+         int id = buffer.getInt();
+         int chatId = buffer.getInt();
+         Timestamp time = new Timestamp(buffer.getLong());
+         time.setNanos(buffer.getInt());
+         long expires = buffer.getLong();
+         String sender = string(buffer), text = string(buffer), mediaType = string(buffer), url = string(buffer);
+         window.rows.add(new Row(new Message(id, chatId, sender, text, time, mediaType, url), expires));
+      }//end for
+      return window;
+   }//end decode
+
+   private static String string (ByteBuffer buffer) {
+      int length = buffer.getInt();
+      if (length < 0) return null;
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end string
+
+}//end ChatPageCache
@@ -0,0 +1,224 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps a summary of every chat a logged in user belongs to:
+ * the time of its last message and its member count, which classifies it
+ * as private or public.  A user's summaries are loaded once, with a query
+ * bounded by their own chats, and then kept up to date by the operations
+ * that send and delete messages and add and remove members, so listing a
+ * user's chats no longer aggregates the whole message table.  A chat is
+ * kept while at least one cached user belongs to it, and dropped when the
+ * last of them is forgotten.
+ *
+ */
+class ChatSummaryCache {
+
+   /**
+    * Summary of one chat.
+    */
+   static class ChatSummary {
+      final int chatId;
+      volatile Timestamp lastMessage;
+      volatile int memberCount;
+
+      ChatSummary (int chatId, Timestamp lastMessage, int memberCount) {
+         this.chatId = chatId;
+         this.lastMessage = lastMessage;
+         this.memberCount = memberCount;
+      }//end ChatSummary
+
+      // chats of up to two members are private, as in the original listing
+      boolean isPrivate () { return memberCount < 3; }
+   }//end ChatSummary
+
+   /**
+    * Loads the summaries of every chat a user belongs to.
+    */
+   interface Loader {
+      List<ChatSummary> load (String login) throws SQLException;
+   }
+
+   // most recent message first
+   static final Comparator<ChatSummary> MOST_RECENT_FIRST = (a, b) -> {
+      if (a.lastMessage == null || b.lastMessage == null)
+         return (a.lastMessage == null ? 1 : 0) - (b.lastMessage == null ? 1 : 0);
+      return b.lastMessage.compareTo(a.lastMessage);
+   };
+
+   private final ConcurrentHashMap<Integer, ChatSummary> _chats = new ConcurrentHashMap<Integer, ChatSummary>();
+   private final ConcurrentHashMap<String, Set<Integer>> _userChats = new ConcurrentHashMap<String, Set<Integer>>();
+   // the number of cached users each chat belongs to; guarded by _userChats
+   private final Map<Integer, Integer> _references = new HashMap<Integer, Integer>();
+   private final Loader _loader;
+
+   ChatSummaryCache (Loader loader) {
+      this._loader = loader;
+   }//end ChatSummaryCache
+
+   /**
+    * Returns the summaries of a user's chats, most recent first.
+    *
+    * @param login the user
+    * @return a snapshot of the summaries
+    * @throws java.sql.SQLException when the summaries had to be loaded and could not be
+    */
+   List<ChatSummary> chatsOf (String login) throws SQLException {
+      List<ChatSummary> result = snapshot(this._userChats.get(login));
+      if (result == null) {
+         // first listing, or a chat was invalidated since: reload this user's chats
+         List<ChatSummary> loaded = this._loader.load(login);
+         Set<Integer> ids = ConcurrentHashMap.newKeySet();
+         synchronized (this._userChats) {
+            for (ChatSummary summary : loaded) {
+               // a message sent while loading may be newer than what was read
+               this._chats.merge(summary.chatId, summary, (cached, read) -> isNewer(cached, read) ? cached : read);
+               ids.add(summary.chatId);
+               reference(summary.chatId);
+            }//end for
+            Set<Integer> previous = this._userChats.put(login, ids);
+            if (previous != null) release(previous);
+         }//end synchronized
+         result = snapshot(ids);
+         if (result == null) result = new ArrayList<ChatSummary>();
+      }//end if
+      Collections.sort(result, MOST_RECENT_FIRST);
+      return result;
+   }//end chatsOf
+
+   private static boolean isNewer (ChatSummary a, ChatSummary b) {
+      return a.lastMessage != null && (b.lastMessage == null || a.lastMessage.after(b.lastMessage));
+   }//end isNewer
+
+   /*
+    * Counts one more cached user in a chat; the caller holds _userChats
+    */
+   private void reference (int chatId) {
+      this._references.merge(chatId, 1, Integer::sum);
+   }//end reference
+
+   /*
+    * Counts the cached users of chats down, dropping the chats no cached
+    * user belongs to anymore; the caller holds _userChats
+    */
+   private void release (Set<Integer> ids) {
+      for (Integer chatId : ids) {
+         Integer references = this._references.get(chatId);
+         if (references != null && references > 1) {
+            this._references.put(chatId, references - 1);
+         }else{
+            this._references.remove(chatId);
+            this._chats.remove(chatId);
+         }//end if
+      }//end for
+   }//end release
+
+   /*
+    * Copies the summaries of the given chats, or returns null when one of
+    * them is not known.
+    */
+   private List<ChatSummary> snapshot (Set<Integer> ids) {
+      if (ids == null) return null;
+      List<ChatSummary> result = new ArrayList<ChatSummary>(ids.size());
+      for (Integer id : ids) {
+         ChatSummary summary = this._chats.get(id);
+         if (summary == null) return null;
+         result.add(new ChatSummary(summary.chatId, summary.lastMessage, summary.memberCount));
+      }//end for
+      return result;
+   }//end snapshot
+
+   /**
+    * Records a chat created by a user.
+    */
+   void chatCreated (int chatId, String creator, Timestamp time) {
+      synchronized (this._userChats) {
+         // only kept for a cached creator; otherwise it comes with their first listing
+         Set<Integer> ids = this._userChats.get(creator);
+         if (ids == null) return;
+         this._chats.put(chatId, new ChatSummary(chatId, time, 1));
+         if (ids.add(chatId)) reference(chatId);
+      }//end synchronized
+   }//end chatCreated
+
+   /**
+    * Records a message sent to a chat.
+    */
+   void messageSent (int chatId, Timestamp time) {
+      ChatSummary summary = this._chats.get(chatId);
+      if (summary == null) return;
+      synchronized (summary) {
+         if (summary.lastMessage == null || summary.lastMessage.before(time))
+            summary.lastMessage = time;
+      }//end synchronized
+   }//end messageSent
+
+   /**
+    * Records a member added to a chat.
+    */
+   void memberAdded (int chatId, String login) {
+      ChatSummary summary = this._chats.get(chatId);
+      if (summary != null) {
+         synchronized (summary) {
+            summary.memberCount++;
+         }//end synchronized
+      }//end if
+      synchronized (this._userChats) {
+         Set<Integer> ids = this._userChats.get(login);
+         if (ids != null && ids.add(chatId)) reference(chatId);
+      }//end synchronized
+   }//end memberAdded
+
+   /**
+    * Records a member removed from a chat.
+    */
+   void memberRemoved (int chatId, String login) {
+      ChatSummary summary = this._chats.get(chatId);
+      if (summary != null) {
+         synchronized (summary) {
+            summary.memberCount--;
+         }//end synchronized
+      }//end if
+      synchronized (this._userChats) {
+         Set<Integer> ids = this._userChats.get(login);
+         if (ids != null && ids.remove(chatId)) release(Collections.singleton(chatId));
+      }//end synchronized
+   }//end memberRemoved
+
+   /**
+    * Forgets a chat whose summary can no longer be updated in place, e.g.
+    * after messages were deleted from it or the chat itself was deleted.
+    * It is reloaded the next time one of its members lists their chats.
+    */
+   void invalidate (int chatId) {
+      this._chats.remove(chatId);
+   }//end invalidate
+
+   /**
+    * Forgets the chats of a user who logged out, and the summaries of the
+    * chats no other cached user belongs to.
+    */
+   void forgetUser (String login) {
+      synchronized (this._userChats) {
+         Set<Integer> ids = this._userChats.remove(login);
+         if (ids != null) release(ids);
+      }//end synchronized
+   }//end forgetUser
+
+   void invalidateAll () {
+      synchronized (this._userChats) {
+         this._userChats.clear();
+         this._references.clear();
+         this._chats.clear();
+      }//end synchronized
+   }//end invalidateAll
+
+}//end ChatSummaryCache
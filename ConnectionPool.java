@@ -0,0 +1,259 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a bounded pool of physical connections to the
+ * database.  Connections are validated when they are borrowed after being
+ * idle, closed when they stay idle past the idle timeout (down to the
+ * minimum size) and reopened with exponential backoff when the database
+ * cannot be reached.  Its counters are exported through QueryMetrics.
+ *
+ */
+class ConnectionPool implements ConnectionPoolMBean {
+
+   static final int MIN_SIZE = Integer.getInteger("messenger.pool.min", 1);
+   static final int MAX_SIZE = Integer.getInteger("messenger.pool.max", 8);
+   static final long BORROW_TIMEOUT_MILLIS = Long.getLong("messenger.pool.borrowTimeoutMillis", 5000);
+   static final long IDLE_TIMEOUT_MILLIS = Long.getLong("messenger.pool.idleTimeoutMillis", 60000);
+   static final long VALIDATE_AFTER_MILLIS = Long.getLong("messenger.pool.validateAfterMillis", 1000);
+   static final int CONNECT_ATTEMPTS = Integer.getInteger("messenger.pool.connectAttempts", 5);
+   static final long MAX_BACKOFF_MILLIS = Long.getLong("messenger.pool.maxBackoffMillis", 5000);
+
+   /**
+    * A physical connection together with its prepared statements.
+    */
+   static class PooledConnection {
+      final Connection connection;
+      final StatementCache statements;
+      long lastUsed;
+
+      PooledConnection (Connection connection) {
+         this.connection = connection;
+         this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+         this.lastUsed = System.currentTimeMillis();
+      }//end PooledConnection
+
+      void close () {
+         this.statements.closeAll();
+         try{
+            this.connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+
+   // idle connections, most recently used first
+   private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+
+   // one permit per connection that may be handed out
+   private final Semaphore _permits;
+
+   // number of physical connections currently open
+   private final AtomicInteger _open = new AtomicInteger();
+
+   // connections handed out, closed when they come back after close()
+   private final Set<PooledConnection> _borrowed = ConcurrentHashMap.newKeySet();
+   private volatile boolean _closed;
+
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _borrowTimeouts = new AtomicLong();
+   private final AtomicLong _borrowWaitNanos = new AtomicLong();
+   private final AtomicLong _reconnects = new AtomicLong();
+
+   private final ScheduledExecutorService _evictor;
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open while idle
+    * @param maxSize the maximum number of open connections
+    * @throws java.sql.SQLException when the initial connections could not be made
+    */
+   ConnectionPool (String url, String user, String passwd, int minSize, int maxSize) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._permits = new Semaphore(maxSize, true);
+      for (int i = 0; i < minSize; ++i)
+         this._idle.offerFirst(open());
+      this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "connection-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      this._evictor.scheduleWithFixedDelay(this::evictIdle,
+         IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Takes a connection from the pool, waiting up to the borrow timeout for
+    * one to become available.  Idle connections are validated before they
+    * are handed out and replaced when they turn out to be dead.
+    *
+    * @return a live connection
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   PooledConnection borrow () throws SQLException {
+      if (this._closed) throw new SQLException("The connection pool is closed", "08003");
+      long start = System.nanoTime();
+      try{
+         if (!this._permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            this._borrowTimeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + BORROW_TIMEOUT_MILLIS + "ms waiting for a database connection", "08001");
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection", "08001", e);
+      }finally{
+         this._borrowWaitNanos.addAndGet(System.nanoTime() - start);
+      }//end try
+      this._borrows.incrementAndGet();
+      try{
+         PooledConnection conn;
+         while ((conn = this._idle.pollFirst()) != null) {
+            if (isUsable(conn)) break;
+            discard(conn);
+         }//end while
+         if (conn == null) conn = open();
+         this._borrowed.add(conn);
+         return conn;
+      }catch (SQLException e){
+         this._permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool.
+    *
+    * @param conn the connection returned by borrow
+    * @param broken true when the connection failed and must not be reused
+    */
+   void release (PooledConnection conn, boolean broken) {
+      this._borrowed.remove(conn);
+      if (broken || this._closed) {
+         discard(conn);
+      }else{
+         conn.lastUsed = System.currentTimeMillis();
+         this._idle.offerFirst(conn);
+         // close() may have drained the idle connections meanwhile
+         if (this._closed && this._idle.removeFirstOccurrence(conn)) discard(conn);
+      }//end if
+      this._permits.release();
+   }//end release
+
+   /**
+    * Tells whether a failure means the connection itself is gone.
+    *
+    * @param e the failure raised while using a connection
+    * @return true for connection exceptions (SQLState class 08)
+    */
+   static boolean isConnectionError (SQLException e) {
+      String state = e.getSQLState();
+      return state != null && state.startsWith("08");
+   }//end isConnectionError
+
+   private boolean isUsable (PooledConnection conn) {
+      try{
+         if (System.currentTimeMillis() - conn.lastUsed < VALIDATE_AFTER_MILLIS)
+            return !conn.connection.isClosed();
+         return conn.connection.isValid(1);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isUsable
+
+   /*
+    * Opens a physical connection, retrying with exponential backoff
+    * while the database cannot be reached.
+    */
+   private PooledConnection open () throws SQLException {
+      long backoff = 100;
+      for (int attempt = 1; ; ++attempt) {
+         try{
+            PooledConnection conn = new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd));
+            this._open.incrementAndGet();
+            return conn;
+         }catch (SQLException e){
+            if (attempt >= CONNECT_ATTEMPTS) throw e;
+            this._reconnects.incrementAndGet();
+            try{
+               Thread.sleep(backoff);
+            }catch (InterruptedException ie){
+               Thread.currentThread().interrupt();
+               throw e;
+            }//end try
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         }//end try
+      }//end for
+   }//end open
+
+   private void discard (PooledConnection conn) {
+      this._open.decrementAndGet();
+      conn.close();
+   }//end discard
+
+   /*
+    * Closes connections idle past the idle timeout, keeping the
+    * minimum number open.
+    */
+   private void evictIdle () {
+      long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+      Iterator<PooledConnection> it = this._idle.descendingIterator();
+      while (it.hasNext() && this._open.get() > this._minSize) {
+         PooledConnection conn = it.next();
+         if (conn.lastUsed >= cutoff) break;
+         if (this._idle.removeLastOccurrence(conn))
+            discard(conn);
+      }//end while
+   }//end evictIdle
+
+   public int getOpenConnections () { return this._open.get(); }
+   public int getIdleConnections () { return this._idle.size(); }
+   public int getBorrowedConnections () { return this._borrowed.size(); }
+   public long getBorrows () { return this._borrows.get(); }
+   public long getBorrowTimeouts () { return this._borrowTimeouts.get(); }
+   public long getBorrowWaitMillis () { return TimeUnit.NANOSECONDS.toMillis(this._borrowWaitNanos.get()); }
+   public long getReconnects () { return this._reconnects.get(); }
+
+   /**
+    * Closes every idle connection and stops the evictor.  Connections
+    * still borrowed are closed when they are returned.
+    */
+   void close () {
+      this._closed = true;
+      this._evictor.shutdownNow();
+      PooledConnection conn;
+      while ((conn = this._idle.pollFirst()) != null)
+         discard(conn);
+   }//end close
+
+   @Override
+   public String toString () {
+      return String.format("open=%d idle=%d borrowed=%d borrows=%d timeouts=%d waitMs=%d reconnects=%d",
+         getOpenConnections(), getIdleConnections(), getBorrowedConnections(), getBorrows(), getBorrowTimeouts(),
+         getBorrowWaitMillis(), getReconnects());
+   }//end toString
+
+}//end ConnectionPool
@@ -0,0 +1,35 @@
+/**
+ * The JMX view of the connection pool, registered as
+ * messenger:type=ConnectionPool.
+ *
+ */
+public interface ConnectionPoolMBean {
+
+   int getOpenConnections ();
+
+   int getIdleConnections ();
+
+   /**
+    * @return the connections handed out and not returned yet
+    */
+   int getBorrowedConnections ();
+
+   long getBorrows ();
+
+   /**
+    * @return the borrows that gave up after the borrow timeout
+    */
+   long getBorrowTimeouts ();
+
+   /**
+    * @return the time spent waiting for a connection, summed over every
+    *         borrow, in milliseconds
+    */
+   long getBorrowWaitMillis ();
+
+   /**
+    * @return the attempts to open a connection that failed and were retried
+    */
+   long getReconnects ();
+
+}//end ConnectionPoolMBean
@@ -0,0 +1,102 @@
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class periodically deletes self-destructing messages whose
+ * destr_timestamp has passed, across all chats.  Each sweep deletes in
+ * chunks of a bounded size, oldest expiry first, until no expired message
+ * is left, so no single statement holds locks on a large number of rows.
+ * Its counters are exported through QueryMetrics.
+ *
+ */
+class ExpiredMessageSweeper implements ExpiredMessageSweeperMBean {
+
+   static final long INTERVAL_MILLIS = Long.getLong("messenger.sweeper.intervalMillis", 60000);
+   static final int CHUNK_SIZE = Integer.getInteger("messenger.sweeper.chunkSize", 1000);
+
+   /**
+    * The database side of a sweep.
+    */
+   interface Store {
+      /**
+       * @return how long the oldest expired message has been expired, in milliseconds
+       */
+      long expiredLagMillis () throws SQLException;
+
+      /**
+       * Deletes up to limit expired messages, their notifications and
+       * their attachments.
+       * @return the number of messages deleted
+       */
+      int purgeExpired (int limit) throws SQLException;
+   }
+
+   private final Store _store;
+   private final int _chunkSize;
+   private final ScheduledExecutorService _scheduler;
+
+   private final AtomicLong _purged = new AtomicLong();
+   private final AtomicLong _sweeps = new AtomicLong();
+   private final AtomicLong _errors = new AtomicLong();
+   private volatile long _lagMillis;
+   private volatile long _lastSweepMillis;
+
+   /**
+    * Creates a new sweeper and schedules it
+    *
+    * @param store deletes expired messages
+    * @param intervalMillis time between the end of a sweep and the start of the next
+    * @param chunkSize the maximum number of messages deleted per statement
+    */
+   ExpiredMessageSweeper (Store store, long intervalMillis, int chunkSize) {
+      this._store = store;
+      this._chunkSize = chunkSize;
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "expired-message-sweeper");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+   }//end ExpiredMessageSweeper
+
+   /**
+    * Deletes every message expired at the start of the sweep.
+    */
+   void sweep () {
+      long start = System.nanoTime();
+      try{
+         this._lagMillis = this._store.expiredLagMillis();
+         int deleted;
+         do {
+            deleted = this._store.purgeExpired(this._chunkSize);
+            this._purged.addAndGet(deleted);
+         } while (deleted == this._chunkSize && !Thread.currentThread().isInterrupted());
+         this._sweeps.incrementAndGet();
+      }catch (SQLException e){
+         this._errors.incrementAndGet();
+         System.err.println("Expired message sweep failed: " + e.getMessage());
+      }finally{
+         this._lastSweepMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      }//end try
+   }//end sweep
+
+   public long getPurged () { return this._purged.get(); }
+   public long getSweeps () { return this._sweeps.get(); }
+   public long getErrors () { return this._errors.get(); }
+   public long getLagMillis () { return this._lagMillis; }
+   public long getLastSweepMillis () { return this._lastSweepMillis; }
+
+   void close () {
+      this._scheduler.shutdownNow();
+   }//end close
+
+   @Override
+   public String toString () {
+      return String.format("purged=%d sweeps=%d errors=%d lagMs=%d lastSweepMs=%d",
+         getPurged(), getSweeps(), getErrors(), getLagMillis(), getLastSweepMillis());
+   }//end toString
+
+}//end ExpiredMessageSweeper
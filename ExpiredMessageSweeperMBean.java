@@ -0,0 +1,31 @@
+/**
+ * The JMX view of the expired message sweeper, registered as
+ * messenger:type=ExpiredMessageSweeper.
+ *
+ */
+public interface ExpiredMessageSweeperMBean {
+
+   /**
+    * @return the messages deleted since the start
+    */
+   long getPurged ();
+
+   /**
+    * @return the sweeps that completed
+    */
+   long getSweeps ();
+
+   /**
+    * @return the sweeps that failed
+    */
+   long getErrors ();
+
+   /**
+    * @return how long the oldest expired message had been waiting at the
+    *         start of the last sweep, in milliseconds
+    */
+   long getLagMillis ();
+
+   long getLastSweepMillis ();
+
+}//end ExpiredMessageSweeperMBean
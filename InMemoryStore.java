@@ -0,0 +1,661 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps users, chats and messages in memory only, for test
+ * rigs, load generation and benchmarks that must not wait on I/O.
+ *
+ * Chats are kept in an int-keyed map under a read-write lock that is only
+ * taken for writing when a chat is created or deleted.  Each chat stores
+ * its messages in append-only parallel arrays under the chat's own lock,
+ * in id order, so sessions working on different chats do not contend.
+ * Edits replace the text in place and deletes leave a tombstone.
+ *
+ * Passwords are hashed with messenger.memory.passwordIterations PBKDF2
+ * iterations, 1 by default, so logins in a load run cost what the rest
+ * of the store does rather than what a production hash does.
+ *
+ */
+class InMemoryStore implements UserStore, MessageStore {
+
+   static final int PASSWORD_ITERATIONS = Integer.getInteger("messenger.memory.passwordIterations", 1);
+
+   private static class User {
+      final String login;
+      // as hashed by PasswordHash
+      final String password;
+      final String phone;
+      String status;
+      final Set<String> contacts = new LinkedHashSet<String>();
+      final Set<String> blocked = new LinkedHashSet<String>();
+      final IntObjectMap<Chat> chats = new IntObjectMap<Chat>();
+      final List<NotificationBus.Notification> notifications = new ArrayList<NotificationBus.Notification>();
+      final IntObjectMap<Cursor> cursors = new IntObjectMap<Cursor>();
+
+      User (String login, String password, String phone) {
+         this.login = login;
+         this.password = password;
+         this.phone = phone;
+      }//end User
+   }//end User
+
+   // how far a user has read a chat, and how many messages came since
+   private static class Cursor {
+      final int chatId;
+      int unread;
+      int lastRead;
+
+      Cursor (int chatId) {
+         this.chatId = chatId;
+      }//end Cursor
+   }//end Cursor
+
+   private static class Chat {
+      final int chatId;
+      final String type;
+      final String creator;
+      volatile Set<String> members = Collections.emptySet();
+
+      // the messages, oldest first; a null text marks a deleted message
+      int size;
+      int[] ids = new int[16];
+      long[] times = new long[16];
+      String[] senders = new String[16];
+      String[] texts = new String[16];
+      // the words of the texts, by position
+      final TextIndex index = new TextIndex();
+
+      Chat (int chatId, String type, String creator) {
+         this.chatId = chatId;
+         this.type = type;
+         this.creator = creator;
+      }//end Chat
+
+      void append (int id, long time, String sender, String text) {
+         if (this.size == this.ids.length) {
+            int capacity = this.size * 2;
+            this.ids = Arrays.copyOf(this.ids, capacity);
+            this.times = Arrays.copyOf(this.times, capacity);
+            this.senders = Arrays.copyOf(this.senders, capacity);
+            this.texts = Arrays.copyOf(this.texts, capacity);
+         }//end if
+         this.ids[this.size] = id;
+         this.times[this.size] = time;
+         this.senders[this.size] = sender;
+         this.texts[this.size] = text;
+         this.index.add(this.size, text);
+         this.size++;
+      }//end append
+
+      // the index of a message, or -1
+      int indexOf (int id) {
+         int i = Arrays.binarySearch(this.ids, 0, this.size, id);
+         return (i >= 0 && this.texts[i] != null) ? i : -1;
+      }//end indexOf
+
+      // the index of the first message with a greater id
+      int after (int id) {
+         int i = Arrays.binarySearch(this.ids, 0, this.size, id);
+         return (i >= 0) ? i + 1 : -i - 1;
+      }//end after
+
+      Message message (int i) {
+         return new Message(this.ids[i], this.chatId, this.senders[i], this.texts[i], new Timestamp(this.times[i]), null, null);
+      }//end message
+   }//end Chat
+
+   private final ConcurrentHashMap<String, User> _users = new ConcurrentHashMap<String, User>();
+   private final ConcurrentHashMap<String, String> _phones = new ConcurrentHashMap<String, String>();
+
+   private final IntObjectMap<Chat> _chats = new IntObjectMap<Chat>(1024);
+   private final ReentrantReadWriteLock _chatLock = new ReentrantReadWriteLock();
+
+   private final AtomicInteger _lastChat = new AtomicInteger();
+   private final AtomicInteger _lastMessage = new AtomicInteger();
+
+   // message times never go backwards, so pages can be cut on ids alone
+   private final AtomicLong _lastTime = new AtomicLong();
+
+   private User user (String login) {
+      return (login == null) ? null : this._users.get(login);
+   }//end user
+
+   private Chat chat (int chatId) {
+      this._chatLock.readLock().lock();
+      try{
+         return this._chats.get(chatId);
+      }finally{
+         this._chatLock.readLock().unlock();
+      }//end try
+   }//end chat
+
+   private Chat existingChat (int chatId) throws SQLException {
+      Chat chat = chat(chatId);
+      if (chat == null) throw new SQLException("Chat " + chatId + " does not exist");
+      return chat;
+   }//end existingChat
+
+   private long now () {
+      long now = System.currentTimeMillis();
+      return this._lastTime.updateAndGet(last -> Math.max(last, now));
+   }//end now
+
+   //--- users
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      synchronized (this._users) {
+         if (this._users.containsKey(login) || (phone != null && this._phones.containsKey(phone)))
+            throw new SQLException("Login or phone number is taken", "23505");
+         this._users.put(login, new User(login, PasswordHash.hash(password, PASSWORD_ITERATIONS), phone));
+         if (phone != null) this._phones.put(phone, login);
+      }//end synchronized
+   }//end createUser
+
+   /*
+    * The lists of a user are kept with the user, so the session carries
+    * no list ids
+    */
+   public UserSession logIn (String login, String password) {
+      User user = user(login);
+      if (user == null || !PasswordHash.verify(password, user.password)) return null;
+      return new UserSession(user.login, -1, -1, user.status);
+   }//end logIn
+
+   public boolean exists (String login) {
+      return user(login) != null;
+   }//end exists
+
+   public String loginByPhone (String phone) {
+      return (phone == null) ? null : this._phones.get(phone);
+   }//end loginByPhone
+
+   private static Set<String> list (User user, int list) {
+      return (list == BLOCKS) ? user.blocked : user.contacts;
+   }//end list
+
+   public boolean addToList (String login, int list, String member) throws SQLException {
+      User user = user(login);
+      if (user == null || !exists(member)) throw new SQLException("User does not exist");
+      synchronized (user) {
+         return list(user, list).add(member);
+      }//end synchronized
+   }//end addToList
+
+   public Map<String, String> syncContacts (String login, String[] phones) throws SQLException {
+      User user = user(login);
+      if (user == null) throw new SQLException("User does not exist");
+      Map<String, String> matched = new TreeMap<String, String>();
+      for (String phone : phones) {
+         String contact = loginByPhone(phone);
+         if (contact != null && !contact.equals(login)) matched.put(phone, contact);
+      }//end for
+      synchronized (user) {
+         user.contacts.addAll(matched.values());
+      }//end synchronized
+      return matched;
+   }//end syncContacts
+
+   public boolean removeFromList (String login, int list, String member) {
+      User user = user(login);
+      if (user == null) return false;
+      synchronized (user) {
+         return list(user, list).remove(member);
+      }//end synchronized
+   }//end removeFromList
+
+   public int listContacts (String login, RowSink sink) {
+      String[] row = { "list_member", "status" };
+      sink.columns(row);
+      int rows = 0;
+      for (String contact : snapshot(login, CONTACTS)) {
+         User other = user(contact);
+         if (other == null) continue;
+         row[0] = contact;
+         row[1] = other.status;
+         sink.row(row);
+         ++rows;
+      }//end for
+      sink.end();
+      return rows;
+   }//end listContacts
+
+   public int listBlocked (String login, RowSink sink) {
+      String[] row = { "list_member" };
+      sink.columns(row);
+      String[] blocked = snapshot(login, BLOCKS);
+      for (String member : blocked) {
+         row[0] = member;
+         sink.row(row);
+      }//end for
+      sink.end();
+      return blocked.length;
+   }//end listBlocked
+
+   /*
+    * The members of a list of a user, copied so they can be listed
+    * without holding the lock of the user
+    */
+   private String[] snapshot (String login, int list) {
+      User user = user(login);
+      if (user == null) return new String[0];
+      synchronized (user) {
+         return list(user, list).toArray(new String[0]);
+      }//end synchronized
+   }//end snapshot
+
+   public boolean deleteUser (String login, String password) {
+      User user;
+      synchronized (this._users) {
+         user = user(login);
+         if (user == null || !PasswordHash.verify(password, user.password)) return false;
+         this._users.remove(login);
+         if (user.phone != null) this._phones.remove(user.phone);
+      }//end synchronized
+      List<Chat> chats;
+      synchronized (user) {
+         chats = user.chats.values();
+      }//end synchronized
+      for (Chat chat : chats)
+         removeFrom(chat, login);
+      return true;
+   }//end deleteUser
+
+   //--- chats
+
+   public int createChat (String creator, String type) throws SQLException {
+      User user = user(creator);
+      if (user == null) throw new SQLException("User does not exist");
+      Chat chat = new Chat(this._lastChat.incrementAndGet(), type, creator);
+      chat.members = Collections.unmodifiableSet(new TreeSet<String>(Collections.singleton(creator)));
+      chat.append(this._lastMessage.incrementAndGet(), now(), creator, creator + " created this chat");
+      this._chatLock.writeLock().lock();
+      try{
+         this._chats.put(chat.chatId, chat);
+      }finally{
+         this._chatLock.writeLock().unlock();
+      }//end try
+      synchronized (user) {
+         user.chats.put(chat.chatId, chat);
+      }//end synchronized
+      return chat.chatId;
+   }//end createChat
+
+   public boolean deleteChat (int chatId, String creator) {
+      Chat chat;
+      this._chatLock.writeLock().lock();
+      try{
+         chat = this._chats.get(chatId);
+         if (chat == null || !chat.creator.equals(creator)) return false;
+         this._chats.remove(chatId);
+      }finally{
+         this._chatLock.writeLock().unlock();
+      }//end try
+      for (String member : chat.members) {
+         User user = user(member);
+         if (user == null) continue;
+         synchronized (user) {
+            user.chats.remove(chatId);
+            user.cursors.remove(chatId);
+            user.notifications.removeIf(n -> n.chatId == chatId);
+         }//end synchronized
+      }//end for
+      return true;
+   }//end deleteChat
+
+   public List<Integer> chatsCreatedBy (String login) {
+      List<Integer> ids = new ArrayList<Integer>();
+      this._chatLock.readLock().lock();
+      try{
+         for (Chat chat : this._chats.values())
+            if (chat.creator.equals(login)) ids.add(chat.chatId);
+      }finally{
+         this._chatLock.readLock().unlock();
+      }//end try
+      Collections.sort(ids);
+      return ids;
+   }//end chatsCreatedBy
+
+   public Set<String> members (int chatId) {
+      Chat chat = chat(chatId);
+      return (chat == null) ? Collections.<String>emptySet() : chat.members;
+   }//end members
+
+   public boolean addMember (int chatId, String login) throws SQLException {
+      User user = user(login);
+      if (user == null) return false;
+      Chat chat = existingChat(chatId);
+      synchronized (chat) {
+         Set<String> members = new TreeSet<String>(chat.members);
+         if (!members.add(login)) throw new SQLException("Already a member of chat " + chatId, "23505");
+         chat.members = Collections.unmodifiableSet(members);
+      }//end synchronized
+      synchronized (user) {
+         user.chats.put(chatId, chat);
+      }//end synchronized
+      return true;
+   }//end addMember
+
+   public void removeMember (int chatId, String login) {
+      Chat chat = chat(chatId);
+      if (chat != null) removeFrom(chat, login);
+   }//end removeMember
+
+   private void removeFrom (Chat chat, String login) {
+      synchronized (chat) {
+         Set<String> members = new TreeSet<String>(chat.members);
+         members.remove(login);
+         chat.members = Collections.unmodifiableSet(members);
+      }//end synchronized
+      User user = user(login);
+      if (user == null) return;
+      synchronized (user) {
+         user.chats.remove(chat.chatId);
+         user.cursors.remove(chat.chatId);
+      }//end synchronized
+   }//end removeFrom
+
+   public List<ChatSummaryCache.ChatSummary> chatsOf (String login) {
+      List<ChatSummaryCache.ChatSummary> summaries = new ArrayList<ChatSummaryCache.ChatSummary>();
+      User user = user(login);
+      if (user == null) return summaries;
+      List<Chat> chats;
+      synchronized (user) {
+         chats = user.chats.values();
+      }//end synchronized
+      for (Chat chat : chats) {
+         Timestamp last = null;
+         synchronized (chat) {
+            for (int i = chat.size - 1; i >= 0; i--) {
+               if (chat.texts[i] == null) continue;
+               last = new Timestamp(chat.times[i]);
+               break;
+            }//end for
+         }//end synchronized
+         summaries.add(new ChatSummaryCache.ChatSummary(chat.chatId, last, chat.members.size()));
+      }//end for
+      Collections.sort(summaries, ChatSummaryCache.MOST_RECENT_FIRST);
+      return summaries;
+   }//end chatsOf
+
+   //--- messages
+
+   public int sendMessage (String sender, int chatId, String text, String[] notify) throws SQLException {
+      Chat chat = existingChat(chatId);
+      int msgId;
+      synchronized (chat) {
+         // ids are taken under the chat lock, so each chat's array stays in id order
+         msgId = this._lastMessage.incrementAndGet();
+         chat.append(msgId, now(), sender, text);
+      }//end synchronized
+      for (String member : chat.members) {
+         User user = user(member);
+         if (user == null || member.equals(sender)) continue;
+         synchronized (user) {
+            cursor(user, chatId).unread++;
+         }//end synchronized
+      }//end for
+      addNotifications(new NotificationBus.Notification(msgId, chatId, sender), notify);
+      return msgId;
+   }//end sendMessage
+
+   public boolean isSender (String login, int chatId, int msgId) {
+      Chat chat = chat(chatId);
+      if (chat == null) return false;
+      synchronized (chat) {
+         int i = chat.indexOf(msgId);
+         return i >= 0 && chat.senders[i].equals(login);
+      }//end synchronized
+   }//end isSender
+
+   public void editMessage (int chatId, int msgId, String text, String[] notify) throws SQLException {
+      Chat chat = existingChat(chatId);
+      String sender;
+      synchronized (chat) {
+         int i = chat.indexOf(msgId);
+         if (i < 0) return;
+         chat.texts[i] = text;
+         chat.index.add(i, text);
+         sender = chat.senders[i];
+      }//end synchronized
+      addNotifications(new NotificationBus.Notification(msgId, chatId, sender), notify);
+   }//end editMessage
+
+   public void deleteMessage (int chatId, int msgId) {
+      Chat chat = chat(chatId);
+      if (chat == null) return;
+      synchronized (chat) {
+         int i = chat.indexOf(msgId);
+         if (i >= 0) chat.texts[i] = null;
+      }//end synchronized
+   }//end deleteMessage
+
+   private Set<String> blockedBy (String login) {
+      User user = user(login);
+      if (user == null) return Collections.emptySet();
+      synchronized (user) {
+         return new LinkedHashSet<String>(user.blocked);
+      }//end synchronized
+   }//end blockedBy
+
+   public List<Message> history (String login, int chatId) {
+      List<Message> messages = new ArrayList<Message>();
+      Chat chat = chat(chatId);
+      if (chat == null) return messages;
+      Set<String> blocked = blockedBy(login);
+      synchronized (chat) {
+         for (int i = chat.size - 1; i >= 0; i--)
+            if (chat.texts[i] != null && !blocked.contains(chat.senders[i])) messages.add(chat.message(i));
+      }//end synchronized
+      return messages;
+   }//end history
+
+   public List<Message> search (String login, String query, int page, int size) {
+      String[] terms = TextIndex.terms(query);
+      User user = user(login);
+      if (terms.length == 0 || user == null) return new ArrayList<Message>();
+      List<Chat> chats;
+      synchronized (user) {
+         chats = user.chats.values();
+      }//end synchronized
+      Set<String> blocked = blockedBy(login);
+      // matches as { rank, chat, position }, best and newest first
+      List<long[]> matches = new ArrayList<long[]>();
+      for (int c = 0; c < chats.size(); ++c) {
+         Chat chat = chats.get(c);
+         synchronized (chat) {
+            for (int i : chat.index.candidates(terms)) {
+               int rank = TextIndex.rank(chat.texts[i], terms);
+               if (rank > 0 && !blocked.contains(chat.senders[i])) matches.add(new long[] { rank, c, i, chat.times[i], chat.ids[i] });
+            }//end for
+         }//end synchronized
+      }//end for
+      matches.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0])
+                           : a[3] != b[3] ? Long.compare(b[3], a[3]) : Long.compare(b[4], a[4]));
+      List<Message> messages = new ArrayList<Message>(size);
+      for (int m = page * size; m < Math.min(matches.size(), (page + 1) * size); ++m) {
+         Chat chat = chats.get((int) matches.get(m)[1]);
+         synchronized (chat) {
+            messages.add(chat.message((int) matches.get(m)[2]));
+         }//end synchronized
+      }//end for
+      return messages;
+   }//end search
+
+   /*
+    * Cuts a page of up to size visible messages, walking from index start
+    * towards older messages, or towards newer ones when forward
+    */
+   private Messenger.MessagePage page (String login, int chatId, int start, boolean forward, int size) {
+      Messenger.MessagePage page = new Messenger.MessagePage();
+      Chat chat = chat(chatId);
+      if (chat == null) return page;
+      Set<String> blocked = blockedBy(login);
+      List<Integer> picked = new ArrayList<Integer>(size);
+      synchronized (chat) {
+         int i = forward ? start : Math.min(start, chat.size - 1);
+         for (; i >= 0 && i < chat.size && picked.size() < size; i += forward ? 1 : -1)
+            if (chat.texts[i] != null && !blocked.contains(chat.senders[i])) picked.add(i);
+         // pages are newest first
+         if (forward) Collections.reverse(picked);
+         for (int j : picked) {
+            if (page.size++ == 0) {
+               page.newestTime = new Timestamp(chat.times[j]);
+               page.newestId = chat.ids[j];
+            }//end if
+            page.oldestTime = new Timestamp(chat.times[j]);
+            page.oldestId = chat.ids[j];
+            page.messages.add(chat.message(j));
+         }//end for
+      }//end synchronized
+      return page;
+   }//end page
+
+   public Messenger.MessagePage latestPage (String login, int chatId, int size) {
+      return page(login, chatId, Integer.MAX_VALUE, false, size);
+   }//end latestPage
+
+   public Messenger.MessagePage olderPage (String login, int chatId, Messenger.MessagePage page, int size) {
+      if (page.isEmpty()) return page;
+      Chat chat = chat(chatId);
+      if (chat == null) return new Messenger.MessagePage();
+      int start;
+      synchronized (chat) {
+         start = chat.after(page.oldestId - 1) - 1;
+      }//end synchronized
+      return (start < 0) ? new Messenger.MessagePage() : page(login, chatId, start, false, size);
+   }//end olderPage
+
+   public Messenger.MessagePage newerPage (String login, int chatId, Messenger.MessagePage page, int size) {
+      if (page.isEmpty()) return page;
+      Chat chat = chat(chatId);
+      if (chat == null) return new Messenger.MessagePage();
+      int start;
+      synchronized (chat) {
+         start = chat.after(page.newestId);
+      }//end synchronized
+      return page(login, chatId, start, true, size);
+   }//end newerPage
+
+   public Messenger.MessagePage currentPage (String login, int chatId, Messenger.MessagePage page, int size) {
+      if (page.isEmpty()) return latestPage(login, chatId, size);
+      Chat chat = chat(chatId);
+      if (chat == null) return new Messenger.MessagePage();
+      int start;
+      synchronized (chat) {
+         start = chat.after(page.newestId) - 1;
+      }//end synchronized
+      return page(login, chatId, start, false, size);
+   }//end currentPage
+
+   //--- notifications
+
+   private void addNotifications (NotificationBus.Notification notification, String[] recipients) {
+      for (String login : recipients) {
+         User user = user(login);
+         if (user == null) continue;
+         synchronized (user) {
+            user.notifications.add(notification);
+         }//end synchronized
+      }//end for
+   }//end addNotifications
+
+   /*
+    * Finds the notification of a message by looking through the chats;
+    * only used for notifications that missed the bus, which are rare
+    */
+   private NotificationBus.Notification notificationOf (int msgId) {
+      List<Chat> chats;
+      this._chatLock.readLock().lock();
+      try{
+         chats = this._chats.values();
+      }finally{
+         this._chatLock.readLock().unlock();
+      }//end try
+      for (Chat chat : chats) {
+         synchronized (chat) {
+            int i = chat.indexOf(msgId);
+            if (i >= 0) return new NotificationBus.Notification(msgId, chat.chatId, chat.senders[i]);
+         }//end synchronized
+      }//end for
+      return null;
+   }//end notificationOf
+
+   public void addNotifications (int msgId, String[] recipients) {
+      NotificationBus.Notification notification = notificationOf(msgId);
+      if (notification != null) addNotifications(notification, recipients);
+   }//end addNotifications
+
+   public void addNotifications (String login, int[] msgIds) {
+      for (int msgId : msgIds) {
+         NotificationBus.Notification notification = notificationOf(msgId);
+         if (notification != null) addNotifications(notification, new String[] { login });
+      }//end for
+   }//end addNotifications
+
+   public List<String> notifications (String login) {
+      List<String> senders = new ArrayList<String>();
+      User user = user(login);
+      if (user == null) return senders;
+      synchronized (user) {
+         for (NotificationBus.Notification notification : user.notifications)
+            senders.add(notification.sender);
+      }//end synchronized
+      return senders;
+   }//end notifications
+
+   // the cursor of a chat, created on first use; the caller holds the user's lock
+   private static Cursor cursor (User user, int chatId) {
+      Cursor cursor = user.cursors.get(chatId);
+      if (cursor == null) user.cursors.put(chatId, cursor = new Cursor(chatId));
+      return cursor;
+   }//end cursor
+
+   public Map<Integer, Integer> unreadCounts (String login) {
+      Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+      User user = user(login);
+      if (user == null) return counts;
+      synchronized (user) {
+         for (Cursor cursor : user.cursors.values())
+            if (cursor.unread > 0) counts.put(cursor.chatId, cursor.unread);
+      }//end synchronized
+      return counts;
+   }//end unreadCounts
+
+   public void markRead (String login, int chatId) {
+      User user = user(login);
+      if (user == null) return;
+      int newest = 0;
+      Chat chat = chat(chatId);
+      if (chat != null) {
+         synchronized (chat) {
+            if (chat.size > 0) newest = chat.ids[chat.size - 1];
+         }//end synchronized
+      }//end if
+      synchronized (user) {
+         Cursor cursor = cursor(user, chatId);
+         cursor.unread = 0;
+         cursor.lastRead = Math.max(cursor.lastRead, newest);
+         int lastRead = cursor.lastRead;
+         user.notifications.removeIf(n -> n.chatId == chatId && n.msgId <= lastRead);
+      }//end synchronized
+   }//end markRead
+
+   public void forgetUser (String login) {
+      // nothing is kept per session
+   }//end forgetUser
+
+}//end InMemoryStore
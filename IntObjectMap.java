@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maps int keys to objects without boxing the keys.  It uses
+ * open addressing with linear probing over two parallel arrays, and
+ * shifts entries back on removal instead of leaving tombstones.  Null
+ * values are not allowed.  It is not thread safe; callers guard it.
+ *
+ */
+class IntObjectMap<V> {
+
+   private int[] _keys;
+   private Object[] _values;
+   private int _size;
+
+   IntObjectMap () {
+      this(8);
+   }//end IntObjectMap
+
+   /**
+    * Creates a new map
+    *
+    * @param expected the number of entries that fit without resizing
+    */
+   IntObjectMap (int expected) {
+      int capacity = 16;
+      while (capacity < expected * 2) capacity <<= 1;
+      this._keys = new int[capacity];
+      this._values = new Object[capacity];
+   }//end IntObjectMap
+
+   private int slot (int key) {
+      int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & (this._keys.length - 1);
+   }//end slot
+
+   @SuppressWarnings("unchecked")
+   V get (int key) {
+      int mask = this._keys.length - 1;
+      for (int i = slot(key); this._values[i] != null; i = (i + 1) & mask)
+         if (this._keys[i] == key) return (V) this._values[i];
+      return null;
+   }//end get
+
+   boolean containsKey (int key) {
+      return get(key) != null;
+   }//end containsKey
+
+   /**
+    * @return the value previously mapped to the key, or null
+    */
+   @SuppressWarnings("unchecked")
+   V put (int key, V value) {
+      if (value == null) throw new NullPointerException("value");
+      if ((this._size + 1) * 2 > this._keys.length) resize(this._keys.length * 2);
+      int mask = this._keys.length - 1;
+      int i = slot(key);
+      for (; this._values[i] != null; i = (i + 1) & mask) {
+         if (this._keys[i] == key) {
+            V old = (V) this._values[i];
+            this._values[i] = value;
+            return old;
+         }//end if
+      }//end for
+      this._keys[i] = key;
+      this._values[i] = value;
+      this._size++;
+      return null;
+   }//end put
+
+   /**
+    * @return the value that was mapped to the key, or null
+    */
+   @SuppressWarnings("unchecked")
+   V remove (int key) {
+      int mask = this._keys.length - 1;
+      int hole = slot(key);
+      while (this._values[hole] != null && this._keys[hole] != key) hole = (hole + 1) & mask;
+      if (this._values[hole] == null) return null;
+      V old = (V) this._values[hole];
+      // move back every following entry of the run that may no longer be reached
+      for (int j = (hole + 1) & mask; this._values[j] != null; j = (j + 1) & mask) {
+         int home = slot(this._keys[j]);
+         boolean reachable = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+         if (reachable) continue;
+         this._keys[hole] = this._keys[j];
+         this._values[hole] = this._values[j];
+         hole = j;
+      }//end for
+      this._values[hole] = null;
+      this._size--;
+      return old;
+   }//end remove
+
+   int size () {
+      return this._size;
+   }//end size
+
+   /**
+    * @return the values, in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   List<V> values () {
+      List<V> values = new ArrayList<V>(this._size);
+      for (Object value : this._values)
+         if (value != null) values.add((V) value);
+      return values;
+   }//end values
+
+   @SuppressWarnings("unchecked")
+   private void resize (int capacity) {
+      int[] keys = this._keys;
+      Object[] values = this._values;
+      this._keys = new int[capacity];
+      this._values = new Object[capacity];
+      this._size = 0;
+      for (int i = 0; i < keys.length; ++i)
+         if (values[i] != null) put(keys[i], (V) values[i]);
+   }//end resize
+
+}//end IntObjectMap
@@ -0,0 +1,535 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps users, chats and messages in the PostgreSQL database
+ * Messenger is connected to.  It owns the in-process caches of chat
+ * members, chat summaries, block lists and recent chat pages, and writes
+ * every change through to them after the database update succeeded.
+ *
+ */
+class JdbcStore implements UserStore, MessageStore {
+
+   // the message, the notifications and the unread counter of every other member are one statement;
+   // the counters are locked in member order, so concurrent sends to a chat do not deadlock
+   static final String SEND_MESSAGE =
+      "WITH m AS (INSERT INTO message (msg_text,msg_timestamp,sender_login,chat_id) VALUES (?,now(),?,?) RETURNING msg_id,msg_timestamp,chat_id,sender_login), " +
+      "n AS (INSERT INTO NOTIFICATION (msg_id, chat_id, usr_login) SELECT m.msg_id, m.chat_id, r.login FROM m, unnest(?::varchar[]) AS r(login)), " +
+      "u AS (INSERT INTO CHAT_UNREAD (usr_login, chat_id, unread) SELECT l.member, l.chat_id, 1 FROM m " +
+      "JOIN CHAT_LIST l ON (l.chat_id = m.chat_id AND l.member <> m.sender_login) ORDER BY l.member " +
+      "ON CONFLICT (usr_login, chat_id) DO UPDATE SET unread = CHAT_UNREAD.unread + 1) " +
+      "SELECT msg_id,msg_timestamp FROM m";
+
+   // pages are cut on the messages themselves, then their attachments are joined
+   private static final String PAGE_QUERY =
+      "SELECT m.msg_id,m.sender_login,m.msg_text,m.msg_timestamp,a.media_type,a.URL,m.chat_id FROM " +
+      "(SELECT msg_id,sender_login,msg_text,msg_timestamp,chat_id FROM message WHERE chat_id = ? " +
+      "AND (destr_timestamp IS NULL OR destr_timestamp >= now()) " +
+      "AND sender_login NOT IN (SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.block_list = C.list_id AND L.login = ?) " +
+      "%s ORDER BY msg_timestamp %s, msg_id %2$s LIMIT ?) as m " +
+      "LEFT OUTER JOIN media_attachment a ON (m.msg_id = a.msg_id) ORDER BY m.msg_timestamp DESC, m.msg_id DESC";
+   private static final String LATEST_PAGE = String.format(PAGE_QUERY, "", "DESC");
+   private static final String OLDER_PAGE = String.format(PAGE_QUERY, "AND (msg_timestamp, msg_id) < (?, ?)", "DESC");
+   private static final String NEWER_PAGE = String.format(PAGE_QUERY, "AND (msg_timestamp, msg_id) > (?, ?)", "ASC");
+   // ranked matches of a text query in the chats of a user, through the message_text_search index (see SchemaMigrator)
+   private static final String SEARCH =
+      "SELECT m.msg_id,m.sender_login,m.msg_text,m.msg_timestamp,a.media_type,a.URL,m.chat_id FROM " +
+      "(SELECT msg_id,sender_login,msg_text,msg_timestamp,chat_id,ts_rank(to_tsvector('english', msg_text), q) AS rank " +
+      "FROM message, plainto_tsquery('english', ?) q WHERE to_tsvector('english', msg_text) @@ q " +
+      "AND chat_id IN (SELECT chat_id FROM CHAT_LIST WHERE member = ?) " +
+      "AND (destr_timestamp IS NULL OR destr_timestamp >= now()) " +
+      "AND sender_login NOT IN (SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.block_list = C.list_id AND L.login = ?) " +
+      "ORDER BY rank DESC, msg_timestamp DESC, msg_id DESC LIMIT ? OFFSET ?) as m " +
+      "LEFT OUTER JOIN media_attachment a ON (m.msg_id = a.msg_id) ORDER BY m.rank DESC, m.msg_timestamp DESC, m.msg_id DESC";
+
+   private static final String CURRENT_PAGE = String.format(PAGE_QUERY, "AND (msg_timestamp, msg_id) <= (?, ?)", "DESC");
+   // the newest messages of a chat as cached by the page cache, expired ones included
+   private static final String WINDOW_QUERY =
+      "SELECT m.msg_id,m.sender_login,m.msg_text,m.msg_timestamp,a.media_type,a.URL,m.chat_id,m.destr_timestamp FROM " +
+      "(SELECT msg_id,sender_login,msg_text,msg_timestamp,chat_id,destr_timestamp FROM message WHERE chat_id = ? " +
+      "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?) as m " +
+      "LEFT OUTER JOIN media_attachment a ON (m.msg_id = a.msg_id) ORDER BY m.msg_timestamp DESC, m.msg_id DESC";
+
+   private final Messenger _esql;
+
+   // members of recently used chats, kept in step with CHAT_LIST writes
+   private final ChatMembershipCache _members =
+      new ChatMembershipCache(ChatMembershipCache.DEFAULT_CAPACITY, this::loadChatMembers);
+
+   // summaries of the chats of logged in users, kept in step with their writes
+   private final ChatSummaryCache _summaries = new ChatSummaryCache(this::loadChatSummaries);
+
+   // the newest messages of recently read chats, kept in step with sends, edits and deletes
+   private final ChatPageCache _pages = new ChatPageCache(ChatPageCache.DIRECTORY, ChatPageCache.MAX_BYTES, this::loadWindow);
+
+   // the block lists of users reading pages, dropped when they change
+   private final Map<String, Set<String>> _blocked = new ConcurrentHashMap<String, Set<String>>();
+
+   /**
+    * Creates a new store
+    *
+    * @param esql the Messenger whose connections the statements run on
+    */
+   JdbcStore (Messenger esql) {
+      this._esql = esql;
+   }//end JdbcStore
+
+   //--- users
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      // empty contact and block lists for a user, together with the user in a single statement
+      String query = "WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), " +
+                     "c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) " +
+                     "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) " +
+                     "SELECT ?, ?, ?, b.list_id, c.list_id FROM b, c";
+      this._esql.executeUpdate(query, phone, login, PasswordHash.hash(password));
+   }//end createUser
+
+   /*
+    * The password is checked against the stored hash here; a plain text
+    * or weaker one is hashed again once it matched
+    */
+   public UserSession logIn (String login, String password) throws SQLException {
+      String[] stored = new String[1];
+      UserSession session = this._esql.query("SELECT password, trim(login), contact_list, block_list, trim(status) FROM Usr WHERE login = ?", rs -> {
+         if (!rs.next()) return null;
+         stored[0] = rs.getString(1);
+         return new UserSession(rs.getString(2), rs.getInt(3), rs.getInt(4), rs.getString(5));
+      }, login);
+      if (session == null || !PasswordHash.verify(password, stored[0])) return null;
+      if (PasswordHash.needsRehash(stored[0]))
+         this._esql.executeUpdate("UPDATE Usr SET password = ? WHERE login = ? AND password = ?", PasswordHash.hash(password), login, stored[0]);
+      return session;
+   }//end logIn
+
+   public boolean exists (String login) throws SQLException {
+      return this._esql.executeQuery("SELECT * FROM Usr WHERE login = ?", login) > 0;
+   }//end exists
+
+   public String loginByPhone (String phone) throws SQLException {
+      return this._esql.query("SELECT login FROM Usr WHERE phoneNum = ?",
+                              rs -> rs.next() ? rs.getString(1).trim() : null, phone);
+   }//end loginByPhone
+
+   public boolean addToList (String login, int list, String member) throws SQLException {
+      boolean added = this._esql.inTransaction(() -> {
+         int listid = this._esql.getlistid(login, list);
+         return this._esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?) ON CONFLICT DO NOTHING", listid, member) > 0;
+      });
+      if (list == BLOCKS) this._blocked.remove(login);
+      return added;
+   }//end addToList
+
+   /*
+    * The numbers are looked up, and the matches added, by one statement
+    */
+   public Map<String, String> syncContacts (String login, String[] phones) throws SQLException {
+      String query = "WITH p AS (SELECT DISTINCT phone FROM unnest(?::varchar[]) AS p(phone)), " +
+                     "m AS (SELECT p.phone, trim(u.login) AS login FROM p JOIN USR u ON (u.phoneNum = p.phone::bpchar) WHERE u.login <> ?), " +
+                     "i AS (INSERT INTO USER_LIST_CONTAINS (list_id, list_member) SELECT ?, login FROM m ON CONFLICT DO NOTHING) " +
+                     "SELECT phone, login FROM m ORDER BY phone";
+      return this._esql.inTransaction(() -> {
+         int listid = this._esql.getlistid(login, CONTACTS);
+         return this._esql.query(query, rs -> {
+            Map<String, String> matched = new LinkedHashMap<String, String>();
+            while (rs.next())
+               matched.put(rs.getString(1), rs.getString(2));
+            return matched;
+         }, phones, login, listid);
+      });
+   }//end syncContacts
+
+   public boolean removeFromList (String login, int list, String member) throws SQLException {
+      boolean removed = this._esql.inTransaction(() -> {
+         int listid = this._esql.getlistid(login, list);
+         return this._esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id = ? AND list_member = ?", listid, member) > 0;
+      });
+      if (list == BLOCKS) this._blocked.remove(login);
+      return removed;
+   }//end removeFromList
+
+   public int listContacts (String login, RowSink sink) throws SQLException {
+      String query = "SELECT trim(C2.list_member) AS list_member, trim(L2.status) AS status FROM (SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C " +
+                     "WHERE L.contact_list = C.list_id AND L.login = ?) as C2, USR L2 WHERE C2.list_member = L2.login";
+      return this._esql.executeQueryAndStream(query, sink, login);
+   }//end listContacts
+
+   public int listBlocked (String login, RowSink sink) throws SQLException {
+      String query = "SELECT trim(C.list_member) AS list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.block_list = C.list_id AND L.login = ?";
+      return this._esql.executeQueryAndStream(query, sink, login);
+   }//end listBlocked
+
+   public boolean deleteUser (String login, String password) throws SQLException {
+      boolean deleted = this._esql.inTransaction(() -> {
+         String stored = this._esql.query("SELECT password FROM Usr WHERE login = ? FOR UPDATE",
+                                          rs -> rs.next() ? rs.getString(1) : null, login);
+         if (!PasswordHash.verify(password, stored)) return false;
+         return this._esql.executeUpdate("DELETE FROM Usr WHERE login = ?", login) > 0;
+      });
+      if (!deleted) return false;
+      this._members.invalidateAll();
+      this._summaries.invalidateAll();
+      this._pages.invalidateAll();
+      this._blocked.clear();
+      return true;
+   }//end deleteUser
+
+   //--- chats
+
+   public int createChat (String creator, String type) throws SQLException {
+      // the chat, its creator as first member and a first message, committed together
+      Message first = this._esql.inTransaction(() -> {
+         int id = this._esql.executeInsertAndReturnKey("INSERT INTO chat (chat_type, init_sender) VALUES (?,?) RETURNING chat_id", type, creator);
+         this._esql.executeUpdate("INSERT INTO chat_list (chat_id, member) VALUES (?,?)", id, creator);
+         String text = creator + " created this chat";
+         return this._esql.query("INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id) VALUES (?,now(),?,?) RETURNING msg_id, msg_timestamp",
+                                 rs -> readSent(rs, creator, id, text), text, creator, id);
+      });
+      this._members.put(first.chatId, Collections.singleton(creator));
+      // stamped with the database time, as a cold load would see it
+      this._summaries.chatCreated(first.chatId, creator, first.time);
+      return first.chatId;
+   }//end createChat
+
+   public boolean deleteChat (int chatId, String creator) throws SQLException {
+      if (this._esql.executeUpdate("DELETE FROM CHAT WHERE CHAT_ID = ? AND init_sender = ?", chatId, creator) == 0)
+         return false;
+      this._members.invalidate(chatId);
+      this._summaries.invalidate(chatId);
+      this._pages.invalidate(chatId);
+      return true;
+   }//end deleteChat
+
+   public List<Integer> chatsCreatedBy (String login) throws SQLException {
+      return this._esql.query("SELECT chat_id FROM CHAT WHERE init_sender = ? ORDER BY chat_id", JdbcStore::readIds, login);
+   }//end chatsCreatedBy
+
+   /*
+    * Members are served from the membership cache and only read from
+    * CHAT_LIST on a miss
+    */
+   public Set<String> members (int chatId) throws SQLException {
+      return this._members.members(chatId);
+   }//end members
+
+   private Set<String> loadChatMembers (int chatId) throws SQLException {
+      return new HashSet<String>(this._esql.query("SELECT member FROM CHAT_LIST WHERE chat_id = ?", JdbcStore::readLogins, chatId));
+   }//end loadChatMembers
+
+   public boolean addMember (int chatId, String login) throws SQLException {
+      boolean added = this._esql.inTransaction(() -> {
+         if (!exists(login)) return false;
+         this._esql.executeUpdate("INSERT INTO CHAT_LIST (chat_id, member) VALUES (?, ?)", chatId, login);
+         return true;
+      });
+      if (!added) return false;
+      this._members.addMember(chatId, login);
+      this._summaries.memberAdded(chatId, login);
+      return true;
+   }//end addMember
+
+   public void removeMember (int chatId, String login) throws SQLException {
+      this._esql.executeUpdate("WITH u AS (DELETE FROM CHAT_UNREAD WHERE usr_login = ? AND chat_id = ?) " +
+                               "DELETE FROM CHAT_LIST WHERE member = ? AND chat_id = ?", login, chatId, login, chatId);
+      this._members.removeMember(chatId, login);
+      this._summaries.memberRemoved(chatId, login);
+   }//end removeMember
+
+   /*
+    * Summaries are loaded once per user and then maintained by the
+    * operations that change them
+    */
+   public List<ChatSummaryCache.ChatSummary> chatsOf (String login) throws SQLException {
+      return this._summaries.chatsOf(login);
+   }//end chatsOf
+
+   private List<ChatSummaryCache.ChatSummary> loadChatSummaries (String login) throws SQLException {
+      // each subquery is bounded by one chat, so the cost follows the user's own chats
+      String query = "SELECT c.chat_id, (SELECT max(msg_timestamp) FROM message m WHERE m.chat_id = c.chat_id), " +
+                     "(SELECT COUNT(member) FROM chat_list x WHERE x.chat_id = c.chat_id) FROM chat_list c WHERE c.member = ?";
+      return this._esql.query(query, rs -> {
+         List<ChatSummaryCache.ChatSummary> summaries = new ArrayList<ChatSummaryCache.ChatSummary>();
+         while (rs.next())
+            summaries.add(new ChatSummaryCache.ChatSummary(rs.getInt(1), rs.getTimestamp(2), rs.getInt(3)));
+         return summaries;
+      }, login);
+   }//end loadChatSummaries
+
+   //--- messages
+
+   public int sendMessage (String sender, int chatId, String text, String[] notify) throws SQLException {
+      Message message = this._esql.query(SEND_MESSAGE, rs -> readSent(rs, sender, chatId, text), text, sender, chatId, notify);
+      this._summaries.messageSent(chatId, message.time);
+      this._pages.messageSent(message);
+      return message.id;
+   }//end sendMessage
+
+   /*
+    * Writes a batch of queued messages and their notifications with a
+    * single commit
+    */
+   int[] writeMessages (List<MessageIngest.Pending> batch) throws SQLException {
+      Message[] messages = this._esql.inTransaction(() -> {
+         Message[] written = new Message[batch.size()];
+         for (int i = 0; i < written.length; ++i) {
+            MessageIngest.Pending pending = batch.get(i);
+            written[i] = this._esql.query(SEND_MESSAGE, rs -> readSent(rs, pending.sender, pending.chatId, pending.text),
+                                          pending.text, pending.sender, pending.chatId, pending.recipients);
+         }//end for
+         return written;
+      });
+      int[] ids = new int[messages.length];
+      for (int i = 0; i < ids.length; ++i) {
+         this._summaries.messageSent(messages[i].chatId, messages[i].time);
+         this._pages.messageSent(messages[i]);
+         ids[i] = messages[i].id;
+      }//end for
+      return ids;
+   }//end writeMessages
+
+   /*
+    * The message just written by SEND_MESSAGE, as it reads back
+    */
+   private static Message readSent (ResultSet rs, String sender, int chatId, String text) throws SQLException {
+      rs.next();
+      return new Message(rs.getInt(1), chatId, sender.stripTrailing(), text.stripTrailing(), rs.getTimestamp(2), null, null);
+   }//end readSent
+
+   public boolean isSender (String login, int chatId, int msgId) throws SQLException {
+      return this._esql.executeQuery("SELECT * FROM message WHERE msg_id = ? AND sender_login = ? AND chat_id = ?", msgId, login, chatId) > 0;
+   }//end isSender
+
+   public void editMessage (int chatId, int msgId, String text, String[] notify) throws SQLException {
+      // the edit and the notifications are one statement
+      String query = "WITH m AS (UPDATE message SET msg_text = ? WHERE msg_id = ? AND chat_id = ? RETURNING msg_id, chat_id) " +
+                     "INSERT INTO NOTIFICATION (msg_id, chat_id, usr_login) SELECT m.msg_id, m.chat_id, r.login FROM m, unnest(?::varchar[]) AS r(login) " +
+                     "ON CONFLICT DO NOTHING";
+      this._esql.executeUpdate(query, text, msgId, chatId, notify);
+      this._pages.messageEdited(chatId, msgId, text.stripTrailing());
+   }//end editMessage
+
+   public void deleteMessage (int chatId, int msgId) throws SQLException {
+      this._esql.executeUpdate("DELETE FROM message WHERE msg_id = ? AND chat_id = ?", msgId, chatId);
+      // the chat's last message may be gone
+      this._summaries.invalidate(chatId);
+      this._pages.messageDeleted(chatId, msgId);
+   }//end deleteMessage
+
+   public List<Message> history (String login, int chatId) throws SQLException {
+      int listid = this._esql.getlistid(login, BLOCKS);
+      String query = "SELECT message.msg_id,sender_login,msg_text,msg_timestamp,media_type,URL,message.chat_id FROM message " +
+                     "LEFT OUTER JOIN media_attachment ON (message.msg_id = media_attachment.msg_id) WHERE message.chat_id = ? " +
+                     "AND sender_login NOT IN (SELECT list_member FROM USER_LIST_CONTAINS WHERE list_id = ?) ORDER BY msg_timestamp DESC";
+      return this._esql.query(query, rs -> {
+         List<Message> messages = new ArrayList<Message>();
+         while (rs.next())
+            messages.add(Message.read(rs));
+         return messages;
+      }, chatId, listid);
+   }//end history
+
+   public List<Message> search (String login, String query, int page, int size) throws SQLException {
+      return this._esql.query(SEARCH, rs -> {
+         List<Message> messages = new ArrayList<Message>();
+         while (rs.next())
+            messages.add(Message.read(rs));
+         return messages;
+      }, query, login, login, size, page * size);
+   }//end search
+
+   /*
+    * Pages within the newest messages of a chat are served from the page
+    * cache; only pages reaching past it are read from the database
+    */
+   public Messenger.MessagePage latestPage (String login, int chatId, int size) throws SQLException {
+      Messenger.MessagePage cached = this._pages.latest(chatId, blocked(login), size);
+      if (cached != null) return cached;
+      return this._esql.query(LATEST_PAGE, JdbcStore::readPage, chatId, login, size);
+   }//end latestPage
+
+   public Messenger.MessagePage olderPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException {
+      if (page.isEmpty()) return page;
+      Messenger.MessagePage cached = this._pages.older(chatId, blocked(login), page, size);
+      if (cached != null) return cached;
+      return this._esql.query(OLDER_PAGE, JdbcStore::readPage, chatId, login, page.oldestTime, page.oldestId, size);
+   }//end olderPage
+
+   public Messenger.MessagePage newerPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException {
+      if (page.isEmpty()) return page;
+      Messenger.MessagePage cached = this._pages.newer(chatId, blocked(login), page, size);
+      if (cached != null) return cached;
+      return this._esql.query(NEWER_PAGE, JdbcStore::readPage, chatId, login, page.newestTime, page.newestId, size);
+   }//end newerPage
+
+   public Messenger.MessagePage currentPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException {
+      if (page.isEmpty()) return latestPage(login, chatId, size);
+      Messenger.MessagePage cached = this._pages.current(chatId, blocked(login), page, size);
+      if (cached != null) return cached;
+      return this._esql.query(CURRENT_PAGE, JdbcStore::readPage, chatId, login, page.newestTime, page.newestId, size);
+   }//end currentPage
+
+   private List<ChatPageCache.Row> loadWindow (int chatId, int messages) throws SQLException {
+      return this._esql.query(WINDOW_QUERY, rs -> {
+         List<ChatPageCache.Row> rows = new ArrayList<ChatPageCache.Row>();
+         while (rs.next()) {
+            Timestamp expires = rs.getTimestamp(8);
+            rows.add(new ChatPageCache.Row(Message.read(rs), (expires == null) ? Long.MAX_VALUE : expires.getTime()));
+         }//end while
+         return rows;
+      }, chatId, messages);
+   }//end loadWindow
+
+   /*
+    * The senders a user blocked, read once and kept until the block list
+    * changes
+    */
+   private Set<String> blocked (String login) throws SQLException {
+      if (!this._pages.isEnabled()) return Collections.emptySet();
+      Set<String> blocked = this._blocked.get(login);
+      if (blocked == null) {
+         String query = "SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.block_list = C.list_id AND L.login = ?";
+         blocked = new HashSet<String>(this._esql.query(query, JdbcStore::readLogins, login));
+         this._blocked.put(login, blocked);
+      }//end if
+      return blocked;
+   }//end blocked
+
+   private static Messenger.MessagePage readPage (ResultSet rs) throws SQLException {
+      Messenger.MessagePage page = new Messenger.MessagePage();
+      int lastId = -1;
+      while (rs.next()) {
+         Message message = Message.read(rs);
+         // a message with several attachments spans several rows
+         if (message.id != lastId) {
+            if (page.size++ == 0) {
+               page.newestTime = message.time;
+               page.newestId = message.id;
+            }//end if
+            page.oldestTime = message.time;
+            page.oldestId = message.id;
+            lastId = message.id;
+         }//end if
+         page.messages.add(message);
+      }//end while
+      return page;
+   }//end readPage
+
+   /**
+    * Deletes the messages whose destr_timestamp has passed, in every chat,
+    * oldest expiry first.  Their notifications and attachments are deleted
+    * by the same statement, so the purge does not depend on the foreign
+    * keys cascading.
+    *
+    * @param limit the maximum number of messages deleted
+    * @return the number of messages deleted
+    */
+   int purgeExpiredMessages (int limit) throws SQLException {
+      String query = "WITH expired AS (SELECT msg_id FROM message WHERE destr_timestamp < now() ORDER BY destr_timestamp LIMIT ?), " +
+                     "n AS (DELETE FROM NOTIFICATION WHERE msg_id IN (SELECT msg_id FROM expired)), " +
+                     "a AS (DELETE FROM MEDIA_ATTACHMENT WHERE msg_id IN (SELECT msg_id FROM expired)) " +
+                     "DELETE FROM message WHERE msg_id IN (SELECT msg_id FROM expired) RETURNING chat_id";
+      List<Integer> chats = this._esql.query(query, JdbcStore::readIds, limit);
+      // the last message of these chats may be gone
+      for (Integer chat : new HashSet<Integer>(chats)) {
+         this._summaries.invalidate(chat);
+         this._pages.invalidate(chat);
+      }//end for
+      return chats.size();
+   }//end purgeExpiredMessages
+
+   /*
+    * Returns how long the oldest expired message has been waiting to be
+    * deleted, in milliseconds
+    */
+   long getExpiredLagMillis () throws SQLException {
+      return this._esql.query("SELECT (extract(epoch FROM now() - min(destr_timestamp)) * 1000)::bigint FROM message WHERE destr_timestamp < now()",
+                              rs -> rs.next() ? rs.getLong(1) : 0L);
+   }//end getExpiredLagMillis
+
+   //--- notifications
+
+   public void addNotifications (int msgId, String[] recipients) throws SQLException {
+      if (recipients.length == 0) return;
+      this._esql.executeUpdate("INSERT INTO NOTIFICATION (msg_id, chat_id, usr_login) SELECT m.msg_id, m.chat_id, r.login " +
+                               "FROM message m, unnest(?::varchar[]) AS r(login) WHERE m.msg_id = ? ON CONFLICT DO NOTHING",
+                               recipients, msgId);
+   }//end addNotifications
+
+   public void addNotifications (String login, int[] msgIds) throws SQLException {
+      if (msgIds.length == 0) return;
+      Integer[] ids = new Integer[msgIds.length];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = msgIds[i];
+      this._esql.executeUpdate("INSERT INTO NOTIFICATION (msg_id, chat_id, usr_login) SELECT m.msg_id, m.chat_id, ? FROM message m WHERE m.msg_id = ANY(?) ON CONFLICT DO NOTHING",
+                               login, ids);
+   }//end addNotifications
+
+   public List<String> notifications (String login) throws SQLException {
+      return this._esql.query("SELECT M.sender_login FROM NOTIFICATION N, MESSAGE M WHERE N.msg_id = M.msg_id AND N.usr_login = ?",
+                              JdbcStore::readLogins, login);
+   }//end notifications
+
+   /*
+    * Reads the counters straight from CHAT_UNREAD, one row per chat
+    */
+   public Map<Integer, Integer> unreadCounts (String login) throws SQLException {
+      return this._esql.query("SELECT chat_id, unread FROM CHAT_UNREAD WHERE usr_login = ? AND unread > 0", rs -> {
+         Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+         while (rs.next())
+            counts.put(rs.getInt(1), rs.getInt(2));
+         return counts;
+      }, login);
+   }//end unreadCounts
+
+   /*
+    * Moves the cursor to the newest message of the chat and resets the
+    * counter, then deletes the notifications up to the cursor as one range
+    * of the notification_user_chat index, in the same statement
+    */
+   public void markRead (String login, int chatId) throws SQLException {
+      String query = "WITH c AS (INSERT INTO CHAT_UNREAD (usr_login, chat_id, last_read) " +
+                     "SELECT ?, ?, coalesce((SELECT msg_id FROM message WHERE chat_id = ? ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1), 0) " +
+                     "ON CONFLICT (usr_login, chat_id) DO UPDATE SET unread = 0, last_read = greatest(CHAT_UNREAD.last_read, EXCLUDED.last_read) " +
+                     "RETURNING last_read) " +
+                     "DELETE FROM NOTIFICATION n USING c WHERE n.usr_login = ? AND n.chat_id = ? AND n.msg_id <= c.last_read";
+      this._esql.executeUpdate(query, login, chatId, chatId, login, chatId);
+   }//end markRead
+
+   public void forgetUser (String login) {
+      this._summaries.forgetUser(login);
+      this._blocked.remove(login);
+   }//end forgetUser
+
+   /**
+    * Removes the segment files of the page cache.
+    */
+   void close () {
+      this._pages.close();
+   }//end close
+
+   // logins are char columns, padded with blanks
+   private static List<String> readLogins (ResultSet rs) throws SQLException {
+      List<String> logins = new ArrayList<String>();
+      while (rs.next())
+         logins.add(rs.getString(1).trim());
+      return logins;
+   }//end readLogins
+
+   private static List<Integer> readIds (ResultSet rs) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>();
+      while (rs.next())
+         ids.add(rs.getInt(1));
+      return ids;
+   }//end readIds
+
+}//end JdbcStore
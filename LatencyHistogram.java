@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in buckets that are exact below 128ns and
+ * then 64 per power of two, so any percentile is read back within about
+ * 2% of the recorded value in a fixed 30KB.  Recording is a single
+ * atomic increment, so many threads can share one histogram.
+ *
+ */
+class LatencyHistogram {
+
+   private static final int SUB_BITS = 6;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+   /**
+    * Counts one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   void record (long nanos) {
+      this._counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+   }//end record
+
+   private static int bucket (long value) {
+      if (value < 2 * SUB_COUNT) return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return shift * SUB_COUNT + (int) (value >>> shift);
+   }//end bucket
+
+   /*
+    * The largest value counted in a bucket
+    */
+   private static long highest (int bucket) {
+      if (bucket < 2 * SUB_COUNT) return bucket;
+      int shift = bucket / SUB_COUNT - 1;
+      long top = bucket - shift * SUB_COUNT;
+      return ((top + 1) << shift) - 1;
+   }//end highest
+
+   long count () {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; ++i)
+         count += this._counts.get(i);
+      return count;
+   }//end count
+
+   /**
+    * Returns the latency that the given fraction of the recorded ones do
+    * not exceed, in nanoseconds, or 0 when nothing was recorded.
+    *
+    * @param fraction between 0 and 1, e.g. 0.99 for the p99
+    */
+   long percentile (double fraction) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; ++i)
+         total += counts[i] = this._counts.get(i);
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(fraction * total));
+      for (int i = 0; i < BUCKETS; ++i) {
+         rank -= counts[i];
+         if (rank <= 0) return highest(i);
+      }//end for
+      return highest(BUCKETS - 1);
+   }//end percentile
+
+   /**
+    * @return the largest recorded latency in nanoseconds, or 0
+    */
+   long max () {
+      for (int i = BUCKETS - 1; i >= 0; --i)
+         if (this._counts.get(i) != 0) return highest(i);
+      return 0;
+   }//end max
+
+   /**
+    * Converts a latency to milliseconds for reports.
+    */
+   static double millis (long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+   }//end millis
+
+}//end LatencyHistogram
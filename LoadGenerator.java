@@ -0,0 +1,242 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class simulates many users driving the menus at once, without a
+ * console, to measure what one Messenger process sustains.  Every virtual
+ * user runs a scripted session on its own thread: it signs up, waits for
+ * the others to do the same, logs in, adds contacts, creates a group chat
+ * with them and then, until the run ends, sends bursts of messages,
+ * browses the chat history and reads its notifications, pausing for a
+ * random think time between actions.  The menus are called the way the
+ * console calls them, answering their prompts from a script, so the
+ * latencies include everything a user would wait for.  The menus report
+ * failures by printing them rather than by throwing, so an operation only
+ * counts as done when it printed no error and printed its confirmation,
+ * e.g. "Message sent."; otherwise it counts as an error.
+ *
+ * At the end the throughput and the p50, p99 and p99.9 latencies of each
+ * operation are printed.  The run is sized with system properties:
+ *
+ *   messenger.load.users       virtual users (default 1000)
+ *   messenger.load.seconds     length of the run (default 60)
+ *   messenger.load.contacts    contacts each user adds (default 5)
+ *   messenger.load.burst       messages per burst (default 10)
+ *   messenger.load.thinkMillis mean pause between actions (default 100)
+ *
+ */
+class LoadGenerator {
+
+   static final int USERS = Integer.getInteger("messenger.load.users", 1000);
+   static final int SECONDS = Integer.getInteger("messenger.load.seconds", 60);
+   static final int CONTACTS = Integer.getInteger("messenger.load.contacts", 5);
+   static final int BURST = Integer.getInteger("messenger.load.burst", 10);
+   static final int THINK_MILLIS = Integer.getInteger("messenger.load.thinkMillis", 100);
+
+   private static final String PASSWORD = "password";
+
+   private final Messenger _esql;
+   // logins and phone numbers of one run do not collide with earlier runs
+   private final String _run = Long.toString(System.currentTimeMillis() / 1000 % 1000000);
+   private final Map<String, LatencyHistogram> _latencies = new LinkedHashMap<String, LatencyHistogram>();
+   private final Map<String, AtomicLong> _errors = new LinkedHashMap<String, AtomicLong>();
+   private final CountDownLatch _signedUp = new CountDownLatch(USERS);
+   private long _deadline;
+
+   /**
+    * Creates a new load generator for the given Messenger instance
+    *
+    * @param esql the shared Messenger instance
+    */
+   LoadGenerator (Messenger esql) {
+      this._esql = esql;
+      for (String operation : new String[] { "sign up", "log in", "add contact", "create chat",
+                                             "send message", "browse history", "read notifications", "log out" }) {
+         this._latencies.put(operation, new LatencyHistogram());
+         this._errors.put(operation, new AtomicLong());
+      }//end for
+   }//end LoadGenerator
+
+   public static void main (String[] args) {
+      boolean memory = args.length == 1 && args[0].equals("memory");
+      if (args.length != 3 && !memory) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadGenerator.class.getName () +
+            " <dbname> <port> <user> | memory");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         if (memory) {
+            InMemoryStore store = new InMemoryStore();
+            esql = new Messenger(store, store);
+         } else {
+            esql = new Messenger(args[0], args[1], args[2], "");
+         }//end if
+         new LoadGenerator(esql).run(System.out);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null) esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Runs every virtual user to the end and prints the report.
+    */
+   void run (PrintStream report) throws InterruptedException {
+      report.println("Running " + USERS + " virtual users for " + SECONDS + "s...");
+      ExecutorService sessions = SessionServer.newSessionExecutor();
+      long start = System.nanoTime();
+      this._deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+      try{
+         for (int i = 0; i < USERS; ++i) {
+            int user = i;
+            sessions.execute(() -> session(user));
+         }//end for
+         sessions.shutdown();
+         sessions.awaitTermination(SECONDS + 60, TimeUnit.SECONDS);
+         print(report, System.nanoTime() - start);
+      }finally{
+         sessions.shutdownNow();
+      }//end try
+   }//end run
+
+   private String login (int user) {
+      return "load" + this._run + "_" + user;
+   }//end login
+
+   /*
+    * The scripted session of one virtual user
+    */
+   private void session (int user) {
+      String login = login(user);
+      try{
+         call("sign up", login + "\n" + PASSWORD + "\n" + this._run + String.format("%07d", user) + "\n",
+              "User successfully created!", () -> Messenger.CreateUser(this._esql));
+      }finally{
+         this._signedUp.countDown();
+      }//end try
+      try{
+         this._signedUp.await();
+      }catch (InterruptedException e){
+         return;
+      }//end try
+
+      call("log in", login + "\n" + PASSWORD + "\n", null, () -> {
+         UserSession session = Messenger.LogIn(this._esql);
+         if (session == null) throw new IllegalStateException("Login failed");
+         this._esql.loggedIn(session);
+      });
+      StringBuilder members = new StringBuilder("2\n");
+      for (int i = 1; i <= Math.min(CONTACTS, USERS - 1); ++i) {
+         String contact = login((user + i) % USERS);
+         call("add contact", "1\n" + contact + "\n", "Contact successfully added.",
+              () -> Messenger.AddToContact(this._esql, login));
+         members.append("1\n").append(contact).append('\n');
+      }//end for
+      call("create chat", members.append("0\n").toString(), "Login successfully added",
+           () -> Messenger.AddChats(this._esql, login));
+
+      String chat;
+      try{
+         List<Integer> chats = this._esql.messages().chatsCreatedBy(login);
+         if (chats.isEmpty()) return;
+         chat = chats.get(chats.size() - 1).toString();
+      }catch (Exception e){
+         return;
+      }//end try
+
+      try{
+         while (!think()) {
+            for (int i = 0; i < BURST; ++i)
+               call("send message", "Message " + i + " from " + login + "\n", "Message sent.",
+                    () -> Messenger.createMessage(this._esql, login, chat));
+            if (think()) break;
+            // the chat listing, then the latest page and two older ones
+            call("browse history", chat + "\n1\n1\n0\n", "Browse Older Messages", () -> Messenger.ListChats(this._esql, login));
+            if (think()) break;
+            call("read notifications", "0\n", "Total Notification:", () -> Messenger.ReadNotifications(this._esql, login));
+         }//end while
+      }finally{
+         call("log out", "", null, () -> this._esql.loggedOut(login));
+      }//end try
+   }//end session
+
+   /*
+    * Pauses for a random think time
+    * @return whether the run is over
+    */
+   private boolean think () {
+      try{
+         if (THINK_MILLIS > 0)
+            Thread.sleep(ThreadLocalRandom.current().nextInt(2 * THINK_MILLIS));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return true;
+      }//end try
+      return System.nanoTime() - this._deadline >= 0;
+   }//end think
+
+   private interface Operation {
+      void run () throws Exception;
+   }//end Operation
+
+   /*
+    * Runs one operation with the given answers to its prompts and records
+    * its latency, or counts it as failed when it throws, prints an error or
+    * does not print the given confirmation (null for none)
+    */
+   private void call (String name, String script, String confirmation, Operation operation) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+      ByteArrayOutputStream errors = new ByteArrayOutputStream(0);
+      Messenger.bindSession(new BufferedReader(new StringReader(script)),
+                            new PrintStream(output, false, StandardCharsets.UTF_8),
+                            new PrintStream(errors, false, StandardCharsets.UTF_8));
+      long start = System.nanoTime();
+      try{
+         operation.run();
+         long elapsed = System.nanoTime() - start;
+         if (errors.size() > 0
+             || (confirmation != null && !output.toString(StandardCharsets.UTF_8).contains(confirmation)))
+            throw new IllegalStateException(name + " failed");
+         this._latencies.get(name).record(elapsed);
+      }catch (Exception e){
+         this._errors.get(name).incrementAndGet();
+      }finally{
+         Messenger.unbindSession();
+      }//end try
+   }//end call
+
+   private void print (PrintStream report, long elapsedNanos) {
+      double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+      report.println(String.format("%-20s %10s %10s %10s %10s %10s %10s %8s",
+                                   "operation", "count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors"));
+      for (Map.Entry<String, LatencyHistogram> entry : this._latencies.entrySet()) {
+         LatencyHistogram latencies = entry.getValue();
+         long count = latencies.count();
+         report.println(String.format("%-20s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d",
+                                      entry.getKey(), count, count / seconds,
+                                      LatencyHistogram.millis(latencies.percentile(0.50)),
+                                      LatencyHistogram.millis(latencies.percentile(0.99)),
+                                      LatencyHistogram.millis(latencies.percentile(0.999)),
+                                      LatencyHistogram.millis(latencies.max()),
+                                      this._errors.get(entry.getKey()).get()));
+      }//end for
+   }//end print
+
+}//end LoadGenerator
@@ -0,0 +1,65 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * This class holds one message of a chat as typed fields, decoded straight
+ * from a result row, so callers can use the fields without parsing a
+ * string back.  A message with several attachments is read as one Message
+ * per attachment, all with the same id; a message without attachment has
+ * no media type and URL.  The text shown to users is only built when the
+ * message is displayed.
+ *
+ */
+final class Message {
+
+   final int id;
+   final int chatId;
+   final String sender;
+   final String text;
+   final Timestamp time;
+   final String mediaType;
+   final String url;
+
+   Message (int id, int chatId, String sender, String text, Timestamp time, String mediaType, String url) {
+      this.id = id;
+      this.chatId = chatId;
+      this.sender = sender;
+      this.text = text;
+      this.time = time;
+      this.mediaType = mediaType;
+      this.url = url;
+   }//end Message
+
+   /**
+    * Decodes the current row of a result set whose first seven columns are
+    * msg_id, sender_login, msg_text, msg_timestamp, media_type, URL and
+    * chat_id.  The padding of the fixed-width columns is dropped.
+    */
+   static Message read (ResultSet rs) throws SQLException {
+      return new Message(rs.getInt(1), rs.getInt(7), strip(rs.getString(2)), strip(rs.getString(3)), rs.getTimestamp(4),
+                         strip(rs.getString(5)), strip(rs.getString(6)));
+   }//end read
+
+   private static String strip (String value) {
+      return (value == null) ? null : value.stripTrailing();
+   }//end strip
+
+   /**
+    * Appends the message as it is displayed: its fields separated by '|',
+    * leaving out a missing attachment.
+    */
+   StringBuilder appendTo (StringBuilder line) {
+      line.append(this.id).append('|').append(this.sender).append('|')
+          .append(this.text).append('|').append(this.time).append('|');
+      if (this.mediaType != null) line.append(this.mediaType).append('|');
+      if (this.url != null) line.append(this.url).append('|');
+      return line;
+   }//end appendTo
+
+   @Override
+   public String toString () {
+      return appendTo(new StringBuilder(64)).toString();
+   }//end toString
+
+}//end Message
@@ -0,0 +1,181 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the optional write-behind pipeline for sent messages.
+ * Senders enqueue their message on a bounded queue and get a future; a
+ * single writer thread drains the queue and writes many messages in one
+ * transaction, completing each future once that transaction committed.
+ * A full queue blocks senders for a while and then rejects the message.
+ *
+ */
+class MessageIngest {
+
+   static final boolean ENABLED = Boolean.getBoolean("messenger.ingest.enabled");
+   static final int QUEUE_SIZE = Integer.getInteger("messenger.ingest.queueSize", 10000);
+   static final int BATCH_SIZE = Integer.getInteger("messenger.ingest.batchSize", 256);
+   static final long LINGER_MILLIS = Long.getLong("messenger.ingest.lingerMillis", 5);
+   static final long OFFER_TIMEOUT_MILLIS = Long.getLong("messenger.ingest.offerTimeoutMillis", 1000);
+
+   /**
+    * A message waiting to be written.
+    */
+   static class Pending {
+      final String sender;
+      final int chatId;
+      final String text;
+      final String[] recipients;
+      final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+
+      Pending (String sender, int chatId, String text, String[] recipients) {
+         this.sender = sender;
+         this.chatId = chatId;
+         this.text = text;
+         this.recipients = recipients;
+      }//end Pending
+   }//end Pending
+
+   /**
+    * Writes a batch of messages in one transaction.
+    */
+   interface Writer {
+      /**
+       * @return the ids of the new messages, in batch order
+       */
+      int[] write (List<Pending> batch) throws SQLException;
+   }
+
+   private final BlockingQueue<Pending> _queue;
+   private final Writer _writer;
+   private final int _batchSize;
+   private final long _lingerNanos;
+   private final Thread _thread;
+   private volatile boolean _running = true;
+
+   private final AtomicLong _messages = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+
+   /**
+    * Creates a new pipeline and starts its writer thread
+    *
+    * @param writer writes a batch in one transaction
+    * @param queueSize the number of messages that may wait
+    * @param batchSize the maximum number of messages per transaction
+    * @param lingerMillis how long the writer waits for a batch to fill
+    */
+   MessageIngest (Writer writer, int queueSize, int batchSize, long lingerMillis) {
+      this._queue = new ArrayBlockingQueue<Pending>(queueSize);
+      this._writer = writer;
+      this._batchSize = batchSize;
+      this._lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+      this._thread = new Thread(this::drain, "message-ingest");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end MessageIngest
+
+   /**
+    * Enqueues a message, waiting for room while the queue is full.
+    *
+    * @return a future completed with the message id once it is committed
+    * @throws java.sql.SQLException when the queue stayed full or the pipeline is closed
+    */
+   CompletableFuture<Integer> submit (String sender, int chatId, String text, String[] recipients) throws SQLException {
+      if (!this._running)
+         throw new SQLException("Message ingest is closed");
+      Pending pending = new Pending(sender, chatId, text, recipients);
+      try{
+         if (!this._queue.offer(pending, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            this._rejected.incrementAndGet();
+            throw new SQLException("Too many messages waiting to be written, try again later");
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting to send the message", e);
+      }//end try
+      // closed while waiting for room: unless the writer or close() took
+      // the message meanwhile, nobody will
+      if (!this._running && this._queue.remove(pending))
+         throw new SQLException("Message ingest is closed");
+      return pending.done;
+   }//end submit
+
+   /*
+    * Writer loop: takes the first waiting message, lets the batch fill for
+    * up to the linger time and writes it.
+    */
+   private void drain () {
+      List<Pending> batch = new ArrayList<Pending>(this._batchSize);
+      while (this._running || !this._queue.isEmpty()) {
+         try{
+            Pending first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            this._queue.drainTo(batch, this._batchSize - 1);
+            long deadline = System.nanoTime() + this._lingerNanos;
+            while (batch.size() < this._batchSize) {
+               long left = deadline - System.nanoTime();
+               if (left <= 0) break;
+               Pending next = this._queue.poll(left, TimeUnit.NANOSECONDS);
+               if (next == null) break;
+               batch.add(next);
+               this._queue.drainTo(batch, this._batchSize - batch.size());
+            }//end while
+            flush(batch);
+         }catch (InterruptedException e){
+            // keep draining until close() stops the loop.
+         }finally{
+            batch.clear();
+         }//end try
+      }//end while
+   }//end drain
+
+   private void flush (List<Pending> batch) {
+      try{
+         int[] ids = this._writer.write(batch);
+         this._batches.incrementAndGet();
+         this._messages.addAndGet(batch.size());
+         for (int i = 0; i < ids.length; ++i)
+            batch.get(i).done.complete(ids[i]);
+      }catch (SQLException e){
+         if (batch.size() == 1) {
+            batch.get(0).done.completeExceptionally(e);
+            return;
+         }//end if
+         // write the messages one by one, so one bad message fails alone
+         for (Pending pending : batch)
+            flush(Collections.singletonList(pending));
+      }//end try
+   }//end flush
+
+   long getMessages () { return this._messages.get(); }
+   long getBatches () { return this._batches.get(); }
+   long getRejected () { return this._rejected.get(); }
+   int getQueued () { return this._queue.size(); }
+
+   /**
+    * Stops accepting messages and waits until the waiting ones are written.
+    * Messages enqueued after the writer exited are failed.
+    */
+   void close () {
+      this._running = false;
+      try{
+         this._thread.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return;
+      }//end try
+      List<Pending> left = new ArrayList<Pending>();
+      this._queue.drainTo(left);
+      for (Pending pending : left)
+         pending.done.completeExceptionally(new SQLException("Message ingest is closed"));
+   }//end close
+
+}//end MessageIngest
@@ -0,0 +1,143 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This interface defines the operations on chats, messages and stored
+ * notifications that the menus need, independent of where they are kept.
+ * Who gets notified of a message is decided by the caller, which pushes
+ * notifications to logged in users itself and passes the other
+ * recipients in.
+ *
+ */
+interface MessageStore {
+
+   /**
+    * Creates a chat with its creator as the only member and a first
+    * message saying so.
+    *
+    * @return the id of the new chat
+    */
+   int createChat (String creator, String type) throws SQLException;
+
+   /**
+    * Deletes a chat created by the given user.
+    *
+    * @return false when there is no such chat or it was created by someone else
+    */
+   boolean deleteChat (int chatId, String creator) throws SQLException;
+
+   /**
+    * @return the chats created by a user, oldest first
+    */
+   List<Integer> chatsCreatedBy (String login) throws SQLException;
+
+   /**
+    * @return the logins of the members of a chat, sorted
+    */
+   Set<String> members (int chatId) throws SQLException;
+
+   /**
+    * @return false when the user does not exist
+    */
+   boolean addMember (int chatId, String login) throws SQLException;
+
+   void removeMember (int chatId, String login) throws SQLException;
+
+   /**
+    * @return the summaries of the chats a user belongs to, most recent first
+    */
+   List<ChatSummaryCache.ChatSummary> chatsOf (String login) throws SQLException;
+
+   /**
+    * Adds a message to a chat and stores a notification for each given
+    * recipient.
+    *
+    * @return the id of the new message
+    */
+   int sendMessage (String sender, int chatId, String text, String[] notify) throws SQLException;
+
+   /**
+    * @return whether the message exists in the chat and was sent by the user
+    */
+   boolean isSender (String login, int chatId, int msgId) throws SQLException;
+
+   /**
+    * Changes the text of a message and stores a notification for each
+    * given recipient.
+    */
+   void editMessage (int chatId, int msgId, String text, String[] notify) throws SQLException;
+
+   void deleteMessage (int chatId, int msgId) throws SQLException;
+
+   /**
+    * Returns every message of a chat not sent by a user blocked by the
+    * reader, newest first.
+    */
+   List<Message> history (String login, int chatId) throws SQLException;
+
+   /**
+    * Finds the messages containing every word of a query in the chats a
+    * user is a member of, leaving out senders the user blocked.  The best
+    * matches come first, then the most recent.
+    *
+    * @param page the page of results, 0 for the first
+    * @param size the number of messages per page
+    */
+   List<Message> search (String login, String query, int page, int size) throws SQLException;
+
+   Messenger.MessagePage latestPage (String login, int chatId, int size) throws SQLException;
+
+   /**
+    * @return the page right before the given one, empty when there is none
+    */
+   Messenger.MessagePage olderPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException;
+
+   /**
+    * @return the page right after the given one, empty when there is none
+    */
+   Messenger.MessagePage newerPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException;
+
+   /**
+    * @return the page ending at the same newest message as the given one
+    */
+   Messenger.MessagePage currentPage (String login, int chatId, Messenger.MessagePage page, int size) throws SQLException;
+
+   /**
+    * Stores a notification of a message for each recipient.
+    */
+   void addNotifications (int msgId, String[] recipients) throws SQLException;
+
+   /**
+    * Stores a notification of each message for a user.
+    */
+   void addNotifications (String login, int[] msgIds) throws SQLException;
+
+   /**
+    * @return the senders of the messages a user has stored notifications of
+    */
+   List<String> notifications (String login) throws SQLException;
+
+   /**
+    * Returns the unread counters of a user, kept up to date as messages
+    * are sent rather than counted.  Messages deleted or expired before
+    * being read still count until the chat is read.
+    *
+    * @return the number of unread messages of each chat that has any, by
+    *         chat id
+    */
+   Map<Integer, Integer> unreadCounts (String login) throws SQLException;
+
+   /**
+    * Marks a chat read by a user up to its newest message: resets the
+    * unread counter and deletes the stored notifications up to there.
+    */
+   void markRead (String login, int chatId) throws SQLException;
+
+   /**
+    * Drops what is kept in process for a user who logged out.
+    */
+   void forgetUser (String login);
+
+}//end MessageStore
@@ -11,17 +11,28 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import org.postgresql.PGConnection;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -30,14 +41,55 @@ import java.util.*;
  */
 public class Messenger {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every operation.
+   private ConnectionPool _pool = null;
+
+   // connection borrowed by the current thread for a multi-statement operation
+   private final ThreadLocal<ConnectionPool.PooledConnection> _pinned =
+      new ThreadLocal<ConnectionPool.PooledConnection>();
+
+   // where users, chats and messages are kept
+   private UserStore _users = null;
+   private MessageStore _messages = null;
+
+   // write-behind pipeline for sent messages, or null when sends are written directly
+   private MessageIngest _ingest = null;
+
+   // deletes expired self-destructing messages in the background
+   private ExpiredMessageSweeper _sweeper = null;
+
+   // latency, row and error statistics of every query, exported over JMX
+   private QueryMetrics _metrics = null;
+
+   // rows fetched per round trip by streamed queries
+   static final int FETCH_SIZE = Integer.getInteger("messenger.fetchSize", 500);
+
+   // times a transaction is run again after a serialization failure or deadlock
+   static final int TX_RETRIES = Integer.getInteger("messenger.tx.retries", 3);
+
+   // pushes notifications to logged in users
+   private final NotificationBus _bus = new NotificationBus(NotificationBus.QUEUE_SIZE);
+
+   /**
+    * A unit of database work that runs on a single borrowed connection.
+    */
+   public interface SqlWork<T> {
+      T run () throws SQLException;
+   }
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // input and output of the session served by the current thread, so
+   // that many sessions can share one process in server mode
+   private static final ThreadLocal<BufferedReader> sessionIn = new ThreadLocal<BufferedReader>();
+   private static final ThreadLocal<PrintStream> sessionOut = new ThreadLocal<PrintStream>();
+   private static final ThreadLocal<PrintStream> sessionErr = new ThreadLocal<PrintStream>();
+   // the user logged in on the session served by the current thread
+   private static final ThreadLocal<UserSession> sessionUser = new ThreadLocal<UserSession>();
+
 
    /**
     * Creates a new instance of Messenger
@@ -55,8 +107,25 @@ public class Messenger {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd, ConnectionPool.MIN_SIZE, ConnectionPool.MAX_SIZE);
+         this._metrics = new QueryMetrics(QueryMetrics.DUMP_SECONDS);
+         this._metrics.export("ConnectionPool", this._pool, ConnectionPoolMBean.class);
+         // create or upgrade the schema and check its indexes
+         new SchemaMigrator(this).run();
+         JdbcStore store = new JdbcStore(this);
+         this._users = store;
+         this._messages = store;
+         if (MessageIngest.ENABLED)
+            this._ingest = new MessageIngest(store::writeMessages, MessageIngest.QUEUE_SIZE,
+                                             MessageIngest.BATCH_SIZE, MessageIngest.LINGER_MILLIS);
+         if (ExpiredMessageSweeper.INTERVAL_MILLIS > 0)
+            this._sweeper = new ExpiredMessageSweeper(new ExpiredMessageSweeper.Store() {
+               public long expiredLagMillis () throws SQLException { return store.getExpiredLagMillis(); }
+               public int purgeExpired (int limit) throws SQLException { return store.purgeExpiredMessages(limit); }
+            }, ExpiredMessageSweeper.INTERVAL_MILLIS, ExpiredMessageSweeper.CHUNK_SIZE);
+         if (this._sweeper != null)
+            this._metrics.export("ExpiredMessageSweeper", this._sweeper, ExpiredMessageSweeperMBean.class);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -65,110 +134,473 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates a new instance of Messenger that keeps its data in the given
+    * stores instead of a database, e.g. an InMemoryStore.
+    *
+    * @param users where users are kept
+    * @param messages where chats and messages are kept
+    */
+   Messenger (UserStore users, MessageStore messages) {
+      this._users = users;
+      this._messages = messages;
+   }//end Messenger
+
+   UserStore users () {
+      return this._users;
+   }//end users
+
+   MessageStore messages () {
+      return this._messages;
+   }//end messages
+
+   /**
+    * Runs a unit of work on one connection borrowed from the pool.  Every
+    * statement issued by the work, including nested calls, uses that same
+    * connection, which is returned to the pool when the work completes.
+    *
+    * @param work the statements to run
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work failed
+    */
+   public <T> T withConnection (SqlWork<T> work) throws SQLException {
+      if (this._pinned.get() != null) return work.run();
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      this._pinned.set(conn);
+      boolean broken = false;
+      try{
+         return work.run();
+      }catch (SQLException e){
+         broken = ConnectionPool.isConnectionError(e);
+         throw e;
+      }finally{
+         this._pinned.remove();
+         this._pool.release(conn, broken);
+      }//end try
+   }//end withConnection
+
+   /**
+    * Runs a unit of work as one transaction on one borrowed connection, so
+    * its statements are committed together, or not at all.  A work that
+    * failed on a serialization failure (40001) or a deadlock (40P01) is
+    * rolled back and run again, up to TX_RETRIES times, so it must not
+    * have effects outside the database; caches are updated once this
+    * returns.  Called within a transaction, the work joins it.
+    *
+    * @param work the statements to run
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work failed and was rolled back
+    */
+   public <T> T inTransaction (SqlWork<T> work) throws SQLException {
+      return withConnection(() -> {
+         Connection conn = connection();
+         if (!conn.getAutoCommit()) return work.run();
+         conn.setAutoCommit(false);
+         try{
+            for (int attempt = 0; ; ++attempt) {
+               try{
+                  T result = work.run();
+                  conn.commit();
+                  return result;
+               }catch (SQLException e){
+                  conn.rollback();
+                  if (attempt == TX_RETRIES || !isRetryable(e)) throw e;
+               }//end try
+               // back off a little, at random, so the conflicting transactions part
+               try{
+                  Thread.sleep(ThreadLocalRandom.current().nextInt(1 << Math.min(attempt + 2, 8)));
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while retrying a transaction", e);
+               }//end try
+            }//end for
+         }finally{
+            conn.setAutoCommit(true);
+         }//end try
+      });
+   }//end inTransaction
+
+   /*
+    * True for the errors a transaction is expected to succeed after when
+    * run again
+    */
+   private static boolean isRetryable (SQLException e) {
+      String state = e.getSQLState();
+      return "40001".equals(state) || "40P01".equals(state);
+   }//end isRetryable
+
+   /**
+    * Returns the cached prepared statement for the SQL text with the
+    * parameters bound in order, on the connection of the current unit of work.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the prepared statement ready to execute
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   PreparedStatement prepare (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._pinned.get().statements.prepare(sql);
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] instanceof String[])
+            stmt.setArray(i + 1, stmt.getConnection().createArrayOf("varchar", (String[]) params[i]));
+         else if (params[i] instanceof Integer[])
+            stmt.setArray(i + 1, stmt.getConnection().createArrayOf("integer", (Integer[]) params[i]));
+         else
+            stmt.setObject(i + 1, params[i]);
+      }//end for
+      return stmt;
+   }//end prepare
+
+   /**
+    * Returns the connection of the current unit of work.
+    */
+   Connection connection () {
+      return this._pinned.get().connection;
+   }//end connection
+
+   /**
+    * Reads the result set of a query while its connection is still borrowed.
+    */
+   interface ResultReader<T> {
+      T read (ResultSet rs) throws SQLException;
+   }
+
+   /**
+    * Issues a query on the cached statement and hands its result set to
+    * the reader, closing the result set afterwards.  The rows recorded in
+    * the query metrics are those of the value the reader returns.
+    */
+   <T> T query (String query, ResultReader<T> reader, Object... params) throws SQLException {
+      return query(query, reader, QueryMetrics::rows, params);
+   }//end query
+
+   /*
+    * Issues a query as above, with the rows the reader read given by rows
+    */
+   private <T> T query (String query, ResultReader<T> reader, ToIntFunction<T> rows, Object... params) throws SQLException {
+      QueryMetrics.Operation operation = this._metrics.operation(query);
+      long start = System.nanoTime();
+      try{
+         T result = withConnection(() -> {
+            try (ResultSet rs = prepare(query, params).executeQuery ()) {
+               return reader.read(rs);
+            }
+         });
+         operation.succeeded(start, rows.applyAsInt(result));
+         return result;
+      }catch (SQLException | RuntimeException e){
+         operation.failed(start);
+         throw e;
+      }//end try
+   }//end query
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      QueryMetrics.Operation operation = this._metrics.operation(sql);
+      long start = System.nanoTime();
+      try{
+         // issues the update instruction on the cached statement
+         int rows = withConnection(() -> prepare(sql, params).executeUpdate ());
+         operation.succeeded(start, rows);
+         return rows;
+      }catch (SQLException | RuntimeException e){
+         operation.failed(start);
+         throw e;
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute an INSERT ... RETURNING statement.  This method
+    * issues the insert to the DBMS and returns the key generated for the
+    * new row in the same round trip, so no sequence read has to follow.
+    *
+    * @param sql the input SQL string with '?' placeholders, returning the key first
+    * @param params the values bound to the placeholders
+    * @return the generated key, or -1 when no row was inserted
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public int executeInsertAndReturnKey (String sql, Object... params) throws SQLException {
+      return query(sql, rs -> rs.next() ? rs.getInt(1) : -1, params);
+   }//end executeInsertAndReturnKey
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * the output of the current session, in the format chosen with
+    * messenger.output.format.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndStream(query, RowSink.open(out()), params);
+   }//end executeQueryAndPrintResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and pushes the results into the
+    * sink while they arrive, FETCH_SIZE rows per round trip, so a result
+    * of any size is listed in constant memory.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param sink receives the column names, then each row
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, RowSink sink, Object... params) throws SQLException {
+      QueryMetrics.Operation operation = this._metrics.operation(query);
+      long start = System.nanoTime();
+      try{
+         int rows = withConnection(() -> {
+            // the driver only fetches through a cursor inside a transaction
+            Connection conn = connection();
+            boolean autoCommit = conn.getAutoCommit();
+            if (autoCommit) conn.setAutoCommit(false);
+            PreparedStatement stmt = prepare(query, params);
+            try{
+               stmt.setFetchSize(FETCH_SIZE);
+               try (ResultSet rs = stmt.executeQuery ()) {
+                  return stream(rs, sink);
+               }
+            }finally{
+               stmt.setFetchSize(0);
+               if (autoCommit) {
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }//end if
+            }//end try
+         });
+         operation.succeeded(start, rows);
+         return rows;
+      }catch (SQLException | RuntimeException e){
+         operation.failed(start);
+         throw e;
+      }//end try
+   }//end executeQueryAndStream
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
+   /**
+    * Method to execute a COPY ... TO STDOUT instruction.  This method
+    * issues the copy to the DBMS and writes the data it sends to the
+    * writer while it arrives, so an export of any size is written in
+    * constant memory.
+    *
+    * @param sql the COPY statement, without placeholders
+    * @param out where the copied data is written
+    * @return the number of rows copied
+    * @throws java.sql.SQLException when the copy or the writing failed
+    */
+   public long copyOut (String sql, Writer out) throws SQLException {
+      QueryMetrics.Operation operation = this._metrics.operation(sql);
+      long start = System.nanoTime();
+      try{
+         long rows = withConnection(() -> {
+            try{
+               return connection().unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+            }catch (IOException e){
+               throw new SQLException("Unable to write the copied data: " + e.getMessage(), e);
+            }//end try
+         });
+         operation.succeeded(start, (int) Math.min(rows, Integer.MAX_VALUE));
+         return rows;
+      }catch (SQLException | RuntimeException e){
+         operation.failed(start);
+         throw e;
+      }//end try
+   }//end copyOut
+
+   /**
+    * Method to execute a COPY ... FROM STDIN instruction.  This method
+    * streams the data read from the reader to the DBMS in chunks, so an
+    * import of any size is read in constant memory.
+    *
+    * @param sql the COPY statement, without placeholders
+    * @param in the data to copy, in the format the statement names
+    * @return the number of rows copied
+    * @throws java.sql.SQLException when the copy or the reading failed
+    */
+   public long copyIn (String sql, Reader in) throws SQLException {
+      QueryMetrics.Operation operation = this._metrics.operation(sql);
+      long start = System.nanoTime();
+      try{
+         long rows = withConnection(() -> {
+            try{
+               return connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql, in);
+            }catch (IOException e){
+               throw new SQLException("Unable to read the data to copy: " + e.getMessage(), e);
+            }//end try
+         });
+         operation.succeeded(start, (int) Math.min(rows, Integer.MAX_VALUE));
+         return rows;
+      }catch (SQLException | RuntimeException e){
+         operation.failed(start);
+         throw e;
+      }//end try
+   }//end copyIn
+
+   /*
+    * Pushes the rows of a result set into a sink through one reused array
+    */
+   private static int stream (ResultSet rs, RowSink sink) throws SQLException {
       ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+      String[] values = new String[rsmd.getColumnCount ()];
+      for (int i = 0; i < values.length; ++i)
+         values[i] = rsmd.getColumnLabel (i + 1);
+      sink.columns(values);
       int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
       while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
+         for (int i = 0; i < values.length; ++i)
+            values[i] = rs.getString (i + 1);
+         sink.row(values);
          ++rowCount;
       }//end while
-      stmt.close ();
+      sink.end();
       return rowCount;
-   }//end executeQuery
+   }//end stream
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
-    * @return the number of rows returned
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return query(query, rs -> {
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }, params);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to fetch the contact or block list id of a user.  The ids of
+    * the user logged in on the current session are taken from their
+    * UserSession.
+    *
+    * @param authorisedUser login of the user
+    * @param type 0 for the contact list, 1 for the block list
+    * @return the list id
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public String getlistid (String authorisedUser, int type) throws SQLException {
+   public int getlistid (String authorisedUser, int type) throws SQLException {
+	   UserSession user = sessionUser.get();
+	   if (user != null && user.login.equals(authorisedUser)) return user.list(type);
 	   //0 = contact, 1 = block
 	   String listtype = "contact_list";
 	   if (type == 1) listtype = "block_list";	   
-	   String query = String.format("SELECT " + listtype + " FROM Usr WHERE login = '%s'", authorisedUser);
-	   Statement stmt = this._connection.createStatement ();
-	   ResultSet rs = stmt.executeQuery (query);
-	   rs.next();
-	   return rs.getString(1);
+	   return query("SELECT " + listtype + " FROM Usr WHERE login = ?", rs -> {
+		   rs.next();
+		   return rs.getInt(1);
+	   }, authorisedUser);
    }
    
    public String getuserfromphone (String phonenum) throws SQLException {
-	   String query = String.format("SELECT login FROM Usr WHERE phoneNum = '%s'", phonenum);
-	   Statement stmt = this._connection.createStatement ();
-	   ResultSet rs = stmt.executeQuery (query);
-	   rs.next();
-	   return rs.getString(1);
+	   return query("SELECT login FROM Usr WHERE phoneNum = ?", rs -> {
+		   rs.next();
+		   return rs.getString(1);
+	   }, phonenum);
    }
 	   
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns whether it found a row
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return 1 if the query returned a row, 0 otherwise
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+       // only the first row is fetched, to tell whether there is one
+       return query(query, ResultSet::next, params) ? 1 : 0;
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to send a message through the ingest pipeline.  The message is
+    * queued and written together with other waiting messages in one
+    * transaction.
+    *
+    * @param sender login of the sender
+    * @param chatId the chat
+    * @param text the message text
+    * @return a future completed with the message id once it is committed
+    * @throws java.sql.SQLException when the pipeline is disabled or full
+    */
+   public CompletableFuture<Integer> submitMessage (String sender, int chatId, String text) throws SQLException {
+      if (this._ingest == null)
+         throw new SQLException("Message ingest is not enabled (messenger.ingest.enabled)");
+      String[] recipients = getRecipients(chatId, sender);
+      String[] online = this._bus.online(recipients);
+      // only offline recipients get a NOTIFICATION row; the others are pushed after commit
+      return this._ingest.submit(sender, chatId, text, this._bus.offline(recipients)).thenApply(msgid -> {
+         deliver(new NotificationBus.Notification(msgid, chatId, sender), online);
+         return msgid;
+      });
+   }//end submitMessage
 
-       int rowCount = 0;
+   /*
+    * Pushes a notification to logged in recipients, storing it for those
+    * it could not be delivered to
+    */
+   void deliver (NotificationBus.Notification notification, String[] online) {
+      String[] missed = this._bus.publish(notification, online);
+      if (missed.length == 0) return;
+      try{
+         this._messages.addNotifications(notification.msgId, missed);
+      }catch (SQLException e){
+         System.err.println("Unable to store notifications: " + e.getMessage());
+      }//end try
+   }//end deliver
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to take the notifications pushed to a logged in user since the
+    * last call, waiting up to the timeout while there is none.  They stay
+    * pending until the user reads their chat.
+    *
+    * @param login the user
+    * @param timeoutMillis how long to wait, 0 to return at once
+    * @return the notifications, oldest first; empty on timeout
+    */
+   public List<NotificationBus.Notification> pollNotifications (String login, long timeoutMillis) {
+      try{
+         return this._bus.poll(login, timeoutMillis);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return new ArrayList<NotificationBus.Notification>();
+      }//end try
+   }//end pollNotifications
+
+   /*
+    * Returns the members of a chat other than the given user, as the
+    * recipients of a notification
+    **/
+   String[] getRecipients (int chatId, String sender) throws SQLException {
+      Set<String> members = this._messages.members(chatId);
+      List<String> recipients = new ArrayList<String>(members.size());
+      for (String member : members)
+         if (!member.equals(sender)) recipients.add(member);
+      return recipients.toArray(new String[recipients.size()]);
+   }//end getRecipients
 
    /**
     * Method to fetch the last value from sequence. This
@@ -180,25 +612,64 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	return query("Select currval(?::regclass)", rs -> {
+		if (rs.next())
+			return rs.getInt(1);
+		return -1;
+	}, sequence);
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Releases the in-process state kept for a user who logged out.
+    *
+    * @param login the user
     */
-   public void cleanup(){
+   public void loggedOut (String login) {
+      sessionUser.remove();
+      this._messages.forgetUser(login);
+      // what was pushed but never read becomes durable
+      List<NotificationBus.Notification> unread = this._bus.unsubscribe(login);
+      if (unread.isEmpty()) return;
+      int[] ids = new int[unread.size()];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = unread.get(i).msgId;
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         this._messages.addNotifications(login, ids);
       }catch (SQLException e){
-         // ignored.
+         System.err.println("Unable to store notifications: " + e.getMessage());
       }//end try
+   }//end loggedOut
+
+   /**
+    * Sets up the in-process state kept for a user who logged in, and binds
+    * their session to the current thread until they log out.
+    *
+    * @param session the user
+    */
+   public void loggedIn (UserSession session) {
+      sessionUser.set(session);
+      this._bus.subscribe(session.login);
+   }//end loggedIn
+
+   /**
+    * Method to close the physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._sweeper != null){
+         this._sweeper.close ();
+      }//end if
+      if (this._ingest != null){
+         this._ingest.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      if (this._messages instanceof JdbcStore){
+         ((JdbcStore) this._messages).close ();
+      }//end if
+      if (this._metrics != null){
+         this._metrics.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -207,20 +678,20 @@ public class Messenger {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean serve = args.length == 5 && args[3].equals("serve");
+      if (args.length != 3 && !serve) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Messenger.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [serve <listen port>]");
          return;
       }//end if
       
-      Greeting();
       Messenger esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver").getDeclaredConstructor ().newInstance ();
          // instantiate the Messenger object and creates a physical
          // connection.
          String dbname = args[0];
@@ -228,38 +699,75 @@ public class Messenger {
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
 
+         if (serve)
+            new SessionServer(esql, Integer.parseInt(args[4])).run();
+         else
+            runSession(esql, in, System.out);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   /**
+    * Drives one user through the menus, reading choices from the given
+    * input and writing every prompt and result to the given output.
+    *
+    * @param esql the shared Messenger instance
+    * @param input the session input
+    * @param output the session output
+    */
+   public static void runSession (Messenger esql, BufferedReader input, PrintStream output) {
+      bindSession(input, output);
+      try{
+         Greeting();
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
+            out().println("MAIN MENU");
+            out().println("---------");
+            out().println("1. Create user");
+            out().println("2. Log in");
             
-            System.out.println("9. < EXIT");
+            out().println("9. < EXIT");
             String authorisedUser = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: UserSession session = LogIn(esql);
+                       if (session != null) {
+                          authorisedUser = session.login;
+                          esql.loggedIn(session);
+                       }
+                       break;
                case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
+               default : out().println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Browse contact list");
-                System.out.println("2. Add to contact list");
-                System.out.println("3. Delete from contact list");
-                System.out.println("4. Browse block list");
-                System.out.println("5. Add to block list");
-                System.out.println("6. Delete from block list");
-                System.out.println("7. Read notification list");
-                System.out.println("8. Chats");
-                System.out.println("9. Delete your account");                
-                System.out.println(".........................");
-                System.out.println("0. Log out");
+                out().println("MAIN MENU");
+                out().println("---------");
+                out().println("1. Browse contact list");
+                out().println("2. Add to contact list");
+                out().println("3. Delete from contact list");
+                out().println("4. Browse block list");
+                out().println("5. Add to block list");
+                out().println("6. Delete from block list");
+                out().println("7. Read notification list");
+                out().println("8. Chats");
+                out().println("9. Delete your account");                
+                out().println(".........................");
+                out().println("0. Log out");
                 switch (readChoice()){
                    case 1: ListContacts(esql, authorisedUser); break;
                    case 2: AddToContact(esql, authorisedUser); break;
@@ -271,29 +779,71 @@ public class Messenger {
                    case 8: Chats(esql, authorisedUser); break;
                    case 9: {if(deleteacc(esql)) usermenu = false;  break; }                  
                    case 0: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                   default : out().println("Unrecognized choice!"); break;
                 }
               }
+              esql.loggedOut(authorisedUser);
             }
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
       }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
+         output.flush();
+         sessionUser.remove();
+         unbindSession();
       }//end try
-   }//end main
+   }//end runSession
+
+   /*
+    * Makes the menus called from the current thread read from and write
+    * to the given session streams instead of the console
+    **/
+   static void bindSession(BufferedReader input, PrintStream output) {
+      sessionIn.set(input);
+      sessionOut.set(output);
+   }//end bindSession
+
+   /*
+    * Like bindSession, with the errors written apart from the output
+    **/
+   static void bindSession(BufferedReader input, PrintStream output, PrintStream error) {
+      bindSession(input, output);
+      sessionErr.set(error);
+   }//end bindSession
+
+   static void unbindSession() {
+      sessionIn.remove();
+      sessionOut.remove();
+      sessionErr.remove();
+   }//end unbindSession
+
+   /*
+    * Returns the input of the session served by the current thread
+    **/
+   static BufferedReader in() {
+      BufferedReader input = sessionIn.get();
+      return (input != null) ? input : in;
+   }//end in
+
+   /*
+    * Returns the output of the session served by the current thread
+    **/
+   static PrintStream out() {
+      PrintStream output = sessionOut.get();
+      return (output != null) ? output : System.out;
+   }//end out
+
+   /*
+    * Returns where errors of the session served by the current thread go;
+    * remote sessions get them on their own output
+    **/
+   static PrintStream err() {
+      PrintStream error = sessionErr.get();
+      if (error != null) return error;
+      PrintStream output = sessionOut.get();
+      return (output != null && output != System.out) ? output : System.err;
+   }//end err
   
    public static void Greeting(){
-      System.out.println(
+      out().println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -307,12 +857,20 @@ public class Messenger {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+         out().print("Please make your choice: ");
+         String line;
+         try {
+            line = in().readLine();
+         }catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }//end try
+         // the session ended, so there is nothing left to choose
+         if (line == null) throw new UncheckedIOException(new EOFException("End of input"));
+         try { // parse the integer and break.
+            input = Integer.parseInt(line);
             break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+         }catch (NumberFormatException e) {
+            out().println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -325,289 +883,274 @@ public class Messenger {
     **/
    public static void CreateUser(Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
-
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-	 //System.out.println("Query:" + query);
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         out().print("\tEnter user login: ");
+         String login = in().readLine();
+         out().print("\tEnter user password: ");
+         String password = in().readLine();
+         out().print("\tEnter user phone: ");
+         String phone = in().readLine();
+
+	 //Creating empty contact\block lists for a user, together with the user
+         esql.users().createUser(login, password, phone);
+         out().println ("User successfully created!");
       }catch(Exception e){
-         System.err.println ("Invalid creation, Login or Phone is currently taken");
+         err().println ("Invalid creation, Login or Phone is currently taken");
       }
    }//end
    
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the user or null if the login or password is wrong
     **/
-   public static String LogIn(Messenger esql){
+   public static UserSession LogIn(Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-        
-     if (userNum == 0)
-       query = String.format("SELECT * FROM Usr WHERE login = '%s'", login);
-         userNum = esql.executeQuery(query);
-         if (userNum == 0) System.out.println("Login does not exist");
-         else  System.out.println("Incorrect Password");
-         return null;    
+         out().print("\tEnter user login: ");
+         String login = in().readLine();
+         out().print("\tEnter user password: ");
+         String password = in().readLine();
+
+	 UserSession session = esql.users().logIn(login, password);
+	 // one answer for both, so logins cannot be probed
+	 if (session == null) out().println("Incorrect login or password");
+	 return session;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
          return null;
       }
    }//end
 
    public static void AddToContact(Messenger esql, String authorisedUser){
 	   String contact = "";
-	   String query = "";
 	   boolean go = true;
 	   int choice = 0;
 	   try{
 		    while(go) {
-				System.out.println("Add Contact Menu");
-				System.out.println("---------");
-				System.out.println("1. Add by login");
-				System.out.println("2. Add by phone number");
-				System.out.println("3. Back");
+				out().println("Add Contact Menu");
+				out().println("---------");
+				out().println("1. Add by login");
+				out().println("2. Add by phone number");
+				out().println("3. Sync address book");
+				out().println("4. Back");
 				choice = readChoice();
 				switch(choice) {
-					case 1: System.out.print("\tEnter contact login: ");
-							contact = in.readLine();
-							query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
+					case 1: out().print("\tEnter contact login: ");
+							contact = in().readLine();
 							go = false;
 							break;
-					case 2: System.out.print("\tEnter contact phone number: ");
-							contact = in.readLine();                
-							query = String.format("SELECT * FROM Usr WHERE phoneNum  = '%s'", contact); 
+					case 2: out().print("\tEnter contact phone number: ");
+							contact = in().readLine();                
 							go = false;
 							break;
-					case 3: return;
-					default : System.out.println("Unrecognized choice!"); break;
+					case 3: SyncContacts(esql, authorisedUser); return;
+					case 4: return;
+					default : out().println("Unrecognized choice!"); break;
 				}
 			}
-			int userNum = esql.executeQuery(query);
-			if (userNum == 0) {
-				System.out.println("User does not exist");
+			if (choice == 2) {
+				contact = esql.users().loginByPhone(contact);
+			}
+			if (contact == null || !esql.users().exists(contact)) {
+				out().println("User does not exist");
 				return;
 			}
 		}
 		catch (Exception e) {
-			//System.err.println (e.getMessage ());
+			//err().println (e.getMessage ());
 			return;
 		}
 		try{
-			if (choice == 2) {
-				contact = esql.getuserfromphone(contact);
+			if (!esql.users().addToList(authorisedUser, UserStore.CONTACTS, contact)) {
+				out().println("User already exists in contact list.");
+				return;
 			}
-			String listid = esql.getlistid(authorisedUser, 0);
-			query = String.format("INSERT INTO USER_LIST_CONTAINS VALUES (" + listid + ", '" + contact + "')");
-			esql.executeUpdate(query);
-			System.out.println("Contact successfully added.");
+			out().println("Contact successfully added.");
 		}
 		catch (Exception e) {
-			System.out.println("User already exists in contact list.");
-			//System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}      
    }//end
 
+   /*
+    * Adds every user whose phone number is in the address book entered,
+    * in one lookup, and lists the numbers that matched
+    **/
+   public static void SyncContacts(Messenger esql, String authorisedUser){
+	   try{
+		   out().print("\tEnter the phone numbers, separated by commas or spaces: ");
+		   String line = in().readLine().trim();
+		   String[] phones = line.isEmpty() ? new String[0] : line.split("[,\\s]+");
+		   Map<String, String> matched = esql.users().syncContacts(authorisedUser, phones);
+		   RowSink sink = RowSink.open(out());
+		   String[] row = { "phone", "login" };
+		   sink.columns(row);
+		   for (Map.Entry<String, String> match : matched.entrySet()) {
+			   row[0] = match.getKey();
+			   row[1] = match.getValue();
+			   sink.row(row);
+		   }
+		   sink.end();
+		   out().println(matched.size() + " of " + phones.length + " numbers matched, now in your contact list.");
+	   }catch(Exception e){
+		   err().println (e.getMessage ());
+	   }
+   }//end
+
    public static void AddToBlock(Messenger esql, String authorisedUser){
 	   String contact = "";
-	   String query = "";
 	   boolean go = true;
 	   int choice = 0;
 	   try{
 		    while(go) {
-				System.out.println("Block User Menu");
-				System.out.println("---------");
-				System.out.println("1. Add by login");
-				System.out.println("2. Add by phone number");
-				System.out.println("3. Back");
+				out().println("Block User Menu");
+				out().println("---------");
+				out().println("1. Add by login");
+				out().println("2. Add by phone number");
+				out().println("3. Back");
 				choice = readChoice();
 				switch(choice) {
-					case 1: System.out.print("\tEnter user login: ");
-							contact = in.readLine();
-							query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
+					case 1: out().print("\tEnter user login: ");
+							contact = in().readLine();
 							go = false;
 							break;
-					case 2: System.out.print("\tEnter user phone number: ");
-							contact = in.readLine();                
-							query = String.format("SELECT * FROM Usr WHERE phoneNum  = '%s'", contact); 
+					case 2: out().print("\tEnter user phone number: ");
+							contact = in().readLine();                
 							go = false;
 							break;
 					case 3: return;
-					default : System.out.println("Unrecognized choice!"); break;
+					default : out().println("Unrecognized choice!"); break;
 				}
 			}
-			int userNum = esql.executeQuery(query);
-			if (userNum == 0) {
-				System.out.println("User does not exist.");
+			if (choice == 2) {
+				contact = esql.users().loginByPhone(contact);
+			}
+			if (contact == null || !esql.users().exists(contact)) {
+				out().println("User does not exist.");
 				return;
 			}
 		}
 		catch (Exception e) {
-			//System.err.println (e.getMessage ());
+			//err().println (e.getMessage ());
 			return;
 		}
 		try{
-			if (choice == 2) {
-				contact = esql.getuserfromphone(contact);
-			}
 			if(contact.equals(authorisedUser))
 			{
-				System.out.println("Can not block yourself");
+				out().println("Can not block yourself");
 				return;
 			}
-			String listid = esql.getlistid(authorisedUser, 1);
-			query = String.format("INSERT INTO USER_LIST_CONTAINS VALUES (" + listid + ", '" + contact + "')");
-			esql.executeUpdate(query);
-			System.out.println("User successfully added to block list.");
+			if (!esql.users().addToList(authorisedUser, UserStore.BLOCKS, contact)) {
+				out().println("User already exists in block list.");
+				return;
+			}
+			out().println("User successfully added to block list.");
 		}
 		catch (Exception e) {
-			System.out.println("User already exists in block list.");
-			//System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}   
    }//end
    
    public static void DeleteBlock(Messenger esql, String authorisedUser){
 	   String contact = "";
-	   String query = "";
 	   boolean go = true;
 	   int choice = 0;
 	   try{
 		    while(go) {
-				System.out.println("Block Delete Menu");
-				System.out.println("---------");
-				System.out.println("1. Delete by login");
-				System.out.println("2. Delete by phone number");
-				System.out.println("3. Back");
+				out().println("Block Delete Menu");
+				out().println("---------");
+				out().println("1. Delete by login");
+				out().println("2. Delete by phone number");
+				out().println("3. Back");
 				choice = readChoice();
 				switch(choice) {
-					case 1: System.out.print("\tEnter user login: ");
-							contact = in.readLine();
-							query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
+					case 1: out().print("\tEnter user login: ");
+							contact = in().readLine();
 							go = false;
 							break;
-					case 2: System.out.print("\tEnter user phone number: ");
-							contact = in.readLine();                
-							query = String.format("SELECT * FROM Usr WHERE phoneNum  = '%s'", contact); 
+					case 2: out().print("\tEnter user phone number: ");
+							contact = in().readLine();                
 							go = false;
 							break;
 					case 3: return;
-					default : System.out.println("Unrecognized choice!"); break;
+					default : out().println("Unrecognized choice!"); break;
 				}
 			}
-			int userNum = esql.executeQuery(query);
-			if (userNum == 0) {
-				System.out.println("User does not exist.");
+			if (choice == 2) {
+				contact = esql.users().loginByPhone(contact);
+			}
+			if (contact == null || !esql.users().exists(contact)) {
+				out().println("User does not exist.");
 				return;
 			}
 		}
 		catch (Exception e) {
-			//System.err.println (e.getMessage ());
+			//err().println (e.getMessage ());
 			return;
 		}
 		try{
-			if (choice == 2) {
-				contact = esql.getuserfromphone(contact);
-			}
-			String listid = esql.getlistid(authorisedUser, 1);
-			query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id = " + listid + " AND list_member = '" + contact + "'");
-			int userNum = esql.executeQuery(query);
-			if(userNum == 0)
+			if(!esql.users().removeFromList(authorisedUser, UserStore.BLOCKS, contact))
 			{
-				System.out.println("User is not in block list.");
+				out().println("User is not in block list.");
 				return;
 			}
-
-			query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = " + listid + " AND list_member = '" + contact + "'");
-			esql.executeUpdate(query);
-			System.out.println("User successfully removed from block list.");
+			out().println("User successfully removed from block list.");
 		}
 		catch (Exception e) {
-			//System.out.println("User is not in block list.");
-			System.err.println (e.getMessage ());
+			//out().println("User is not in block list.");
+			err().println (e.getMessage ());
 			return;
 		}   
    }//end   
    
    public static void DeleteContact(Messenger esql, String authorisedUser){
 	   String contact = "";
-	   String query = "";
 	   boolean go = true;
 	   int choice = 0;
 	   try{
 		    while(go) {
-				System.out.println("Contact Delete Menu");
-				System.out.println("---------");
-				System.out.println("1. Delete by login");
-				System.out.println("2. Delete by phone number");
-				System.out.println("3. Back");
+				out().println("Contact Delete Menu");
+				out().println("---------");
+				out().println("1. Delete by login");
+				out().println("2. Delete by phone number");
+				out().println("3. Back");
 				choice = readChoice();
 				switch(choice) {
-					case 1: System.out.print("\tEnter user login: ");
-							contact = in.readLine();
-							query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
+					case 1: out().print("\tEnter user login: ");
+							contact = in().readLine();
 							go = false;
 							break;
-					case 2: System.out.print("\tEnter user phone number: ");
-							contact = in.readLine();                
-							query = String.format("SELECT * FROM Usr WHERE phoneNum  = '%s'", contact); 
+					case 2: out().print("\tEnter user phone number: ");
+							contact = in().readLine();                
 							go = false;
 							break;
 					case 3: return;
-					default : System.out.println("Unrecognized choice!"); break;
+					default : out().println("Unrecognized choice!"); break;
 				}
 			}
-			int userNum = esql.executeQuery(query);
-			if (userNum == 0) {
-				System.out.println("User does not exist.");
+			if (choice == 2) {
+				contact = esql.users().loginByPhone(contact);
+			}
+			if (contact == null || !esql.users().exists(contact)) {
+				out().println("User does not exist.");
 				return;
 			}
 		}
 		catch (Exception e) {
-			//System.err.println (e.getMessage ());
+			//err().println (e.getMessage ());
 			return;
 		}
 		try{
-			if (choice == 2) {
-				contact = esql.getuserfromphone(contact);
-			}
-			String listid = esql.getlistid(authorisedUser, 0);
-			query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id = " + listid + " AND list_member = '" + contact + "'");
-			int userNum = esql.executeQuery(query);
-			if(userNum == 0)
+			if(!esql.users().removeFromList(authorisedUser, UserStore.CONTACTS, contact))
 			{
-				System.out.println("User is not in contacts list.");
+				out().println("User is not in contacts list.");
 				return;
 			}
-
-			query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = " + listid + " AND list_member = '" + contact + "'");
-			esql.executeUpdate(query);
-			System.out.println("User successfully removed from contacts list.");
+			out().println("User successfully removed from contacts list.");
 		}
 		catch (Exception e) {
-			//System.out.println("User is not in block list.");
-			System.err.println (e.getMessage ());
+			//out().println("User is not in block list.");
+			err().println (e.getMessage ());
 			return;
 		}   
    }//end   
@@ -616,12 +1159,11 @@ public class Messenger {
 
    public static void ListContacts(Messenger esql, String authorisedUser){
 	    try{
-			String query = String.format("SELECT C2.list_member,L2.status FROM (SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.contact_list = C.list_id AND L.login = '" + authorisedUser + "') as C2, USR L2 WHERE C2.list_member = L2.login");
-			int rows =  esql.executeQueryAndPrintResult(query);
-			System.out.println("Total Contacts: " + rows);
+			int contacts = esql.users().listContacts(authorisedUser, RowSink.open(out()));
+			out().println("Total Contacts: " + contacts);
            
 		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}	
 
@@ -629,12 +1171,11 @@ public class Messenger {
    
    public static void ListBlocks(Messenger esql, String authorisedUser){
 	    try{
-			String query = String.format("SELECT C.list_member FROM USR L, USER_LIST_CONTAINS C WHERE L.block_list = C.list_id AND L.login = '" + authorisedUser + "'");
-			int rows =  esql.executeQueryAndPrintResult(query);
-			System.out.println("Total Blocks: " + rows);
+			int blocked = esql.users().listBlocked(authorisedUser, RowSink.open(out()));
+			out().println("Total Blocks: " + blocked);
            
 		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}	
 
@@ -642,166 +1183,248 @@ public class Messenger {
 
    public static void ReadNotifications(Messenger esql, String authorisedUser){
 	    try{
-			String query = String.format("SELECT M.sender_login FROM NOTIFICATION N, MESSAGE M WHERE N.msg_id = M.msg_id AND N.usr_login = '" + authorisedUser + "'");
-			System.out.println("New Notifcations from: ");
-			int rows =  esql.executeQueryAndPrintResult(query);
-			System.out.println("Total Notification: " + rows);
-            
+			// notifications pushed since login and not yet read, then those stored
+			List<String> senders = new ArrayList<String>();
+			for (NotificationBus.Notification n : esql._bus.pending(authorisedUser))
+				senders.add(n.sender);
+			senders.addAll(esql.messages().notifications(authorisedUser));
+			out().println("New Notifcations from: ");
+			printSenders(senders);
+			out().println("Total Notification: " + senders.size());
+			printUnread(esql.messages().unreadCounts(authorisedUser));
+
+			boolean usermenu = true;
+			while (usermenu) {
+				out().println("1. Wait for new notifications");
+				out().println(".........................");
+				out().println("0. Go Back");
+				switch (readChoice()) {
+					case 1: senders.clear();
+							for (NotificationBus.Notification n : esql.pollNotifications(authorisedUser, NotificationBus.WAIT_MILLIS))
+								senders.add(n.sender);
+							if (senders.isEmpty()) out().println("No new notifications");
+							else printSenders(senders);
+							break;
+					case 0: usermenu = false; break;
+					default : out().println("Unrecognized choice!"); break;
+				}
+			}
 		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}	      
       
    }//end
 
+   /*
+    * Prints notification senders in the layout of executeQueryAndPrintResult
+    **/
+   private static void printSenders(List<String> senders){
+	    if (!senders.isEmpty()) out().println("sender_login\t");
+	    for (String sender : senders)
+			out().println(sender + "\t");
+   }
+
+   /*
+    * Prints the unread counter of each chat that has unread messages
+    **/
+   private static void printUnread(Map<Integer, Integer> unread){
+	    if (unread.isEmpty()) return;
+	    out().println("Unread messages by chat:");
+	    out().println("chat_id\tunread\t");
+	    for (Map.Entry<Integer, Integer> chat : new TreeMap<Integer, Integer>(unread).entrySet())
+			out().println(chat.getKey() + "\t" + chat.getValue() + "\t");
+   }
+
    public static boolean deleteacc(Messenger esql){
-      System.out.println("Are you sure you wish to delete your account?");
-      System.out.println("0. Yes");
-      System.out.println("1. No");
+      out().println("Are you sure you wish to delete your account?");
+      out().println("0. Yes");
+      out().println("1. No");
              switch (readChoice()){
                case 0: {
 				  try{   
-				    System.out.println("Reenter login info to verify identity: ");
-					System.out.print("\tEnter user login: ");
-					String login = in.readLine();
-					System.out.print("\tEnter user password: ");
-					String password = in.readLine();
-					String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-					int userNum = esql.executeQuery(query);
-									    
-					query = String.format("DELETE FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-					esql.executeQuery(query);
-					if (userNum > 0)
-				    System.out.println("Deleting.... ");
+				    out().println("Reenter login info to verify identity: ");
+					out().print("\tEnter user login: ");
+					String login = in().readLine();
+					out().print("\tEnter user password: ");
+					String password = in().readLine();
+					if (esql.users().deleteUser(login, password))
+				    out().println("Deleting.... ");
 					
 					return true;
 					}
 				catch(Exception e){
-				    System.out.println("Deleting.... ");
+				    out().println("Deleting.... ");
 				    return true;}
 				}
                case 1: return false;
-               //default : System.out.println("Unrecognized choice!"); break;
+               //default : out().println("Unrecognized choice!"); break;
             }
             return false;//end switch     
    }//end
 
    public static void ListChats(Messenger esql, String authorisedUser){
 	    try{
-			System.out.println("Private Chats:");
-			String query = String.format("(SELECT c.chat_id,max_time.max as \"Most Recent Timestamp \"FROM (SELECT chat_id FROM CHAT_LIST GROUP BY chat_id HAVING COUNT (member) < 3) as stuff, chat_list c, (select chat_id, max(msg_timestamp) from message group by chat_id) as max_time WHERE c.chat_id = stuff.chat_id AND member = '" + authorisedUser + "'AND max_time.chat_id = c.chat_id) ORDER BY max_time.max DESC");
-			int rows =  esql.executeQueryAndPrintResult(query);
-			System.out.println("Public Chats:");
-			query = String.format("(SELECT c.chat_id,max_time.max as \"Most Recent Timestamp \"FROM (SELECT chat_id FROM CHAT_LIST GROUP BY chat_id HAVING COUNT (member) > 2) as stuff, chat_list c, (select chat_id, max(msg_timestamp) from message group by chat_id) as max_time WHERE c.chat_id = stuff.chat_id AND member = '" + authorisedUser + "'AND max_time.chat_id = c.chat_id) ORDER BY max_time.max DESC");
-		    rows +=  esql.executeQueryAndPrintResult(query);
-			System.out.println("Total Chats: " + rows);
+			List<ChatSummaryCache.ChatSummary> chats = esql.messages().chatsOf(authorisedUser);
+			Map<Integer, Integer> unread = esql.messages().unreadCounts(authorisedUser);
+			out().println("Private Chats:");
+			int rows = printChats(chats, unread, true);
+			out().println("Public Chats:");
+		    rows += printChats(chats, unread, false);
+			out().println("Total Chats: " + rows);
 		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 			return;
 		}
         try{
-            System.out.println("Which chat would you like to view? (Chat ID)");
-            String chatid = in.readLine();
-            String query = String.format( "SELECT member FROM CHAT_LIST WHERE chat_id ="+ chatid +" AND member = '" + authorisedUser + "'" );
-            int rows = esql.executeQuery(query);
-            if(rows == 0)
+            out().println("Which chat would you like to view? (Chat ID)");
+            String chatid = in().readLine();
+            if(!esql.messages().members(Integer.parseInt(chatid)).contains(authorisedUser))
             {
-                System.out.println("You are not in the chat");
+                out().println("You are not in the chat");
                 return;
             }
             ViewMessages(esql, authorisedUser, chatid);
         } catch (Exception e) {
-            System.err.println (e.getMessage ());
+            err().println (e.getMessage ());
         }
     }//end
    
-   public static List<String> fillArray (Messenger esql, String authorisedUser, String chatid) throws SQLException{
-       List<String> messagelist = new ArrayList<String>();
-       String listid = esql.getlistid (authorisedUser, 1);
-       String query = String.format("SELECT message.msg_id,sender_login,msg_text,msg_timestamp,media_type,URL FROM message LEFT OUTER JOIN media_attachment ON (message.msg_id = media_attachment.msg_id) WHERE message.chat_id = " + chatid + " AND sender_login NOT IN (SELECT list_member FROM USER_LIST_CONTAINS WHERE list_id = " + listid + ") ORDER BY msg_timestamp DESC");
-       Statement stmt = esql._connection.createStatement ();
-       ResultSet rs = stmt.executeQuery (query);
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
-      while (rs.next()) {
-         String currentmessage = "";
-         for (int i=1; i<=numCol; ++i) {
-			String temp = rs.getString(i);
-			if (temp != null) currentmessage += (temp + "|");
-		 }
-         messagelist.add(currentmessage);
-      }//end while
-      stmt.close ();
-      return messagelist;
+   /*
+    * Prints the private or public chats of a listing with their unread
+    * counters, in the layout of executeQueryAndPrintResult; chats without
+    * messages are not listed
+    **/
+   private static int printChats (List<ChatSummaryCache.ChatSummary> chats, Map<Integer, Integer> unread, boolean privateChats) {
+       int rows = 0;
+       for (ChatSummaryCache.ChatSummary chat : chats) {
+           if (chat.isPrivate() != privateChats || chat.lastMessage == null) continue;
+           if (rows++ == 0) out().println("chat_id\tMost Recent Timestamp \tunread\t");
+           out().println(chat.chatId + "\t" + chat.lastMessage + "\t" + unread.getOrDefault(chat.chatId, 0) + "\t");
+       }
+       return rows;
+   }
+
+   public static List<Message> fillArray (Messenger esql, String authorisedUser, String chatid) throws SQLException{
+       return esql.messages().history(authorisedUser, Integer.parseInt(chatid));
   }
     
+   // number of messages shown at a time by ViewMessages
+   static final int PAGE_SIZE = 10;
+
+   /**
+    * A page of messages of one chat, newest first.  The (msg_timestamp, msg_id)
+    * keys of its newest and oldest message are the cursors used to fetch the
+    * neighbouring pages, so only one page is ever held in memory.
+    */
+   static class MessagePage {
+      final List<Message> messages = new ArrayList<Message>();
+      Timestamp newestTime, oldestTime;
+      int newestId, oldestId;
+      int size;
+
+      boolean isEmpty () { return size == 0; }
+   }//end MessagePage
+
+   /*
+    * Fetches the most recent page of a chat
+    **/
+   public static MessagePage fetchLatestPage (Messenger esql, String authorisedUser, String chatid) throws SQLException {
+      return esql.messages().latestPage(authorisedUser, Integer.parseInt(chatid), PAGE_SIZE);
+   }
+
+   /*
+    * Fetches the page right before the given one, or an empty page when
+    * there are no older messages
+    **/
+   public static MessagePage fetchOlderPage (Messenger esql, String authorisedUser, String chatid, MessagePage page) throws SQLException {
+      return esql.messages().olderPage(authorisedUser, Integer.parseInt(chatid), page, PAGE_SIZE);
+   }
+
+   /*
+    * Fetches the page right after the given one, or an empty page when
+    * there are no newer messages
+    **/
+   public static MessagePage fetchNewerPage (Messenger esql, String authorisedUser, String chatid, MessagePage page) throws SQLException {
+      return esql.messages().newerPage(authorisedUser, Integer.parseInt(chatid), page, PAGE_SIZE);
+   }
+
+   /*
+    * Fetches the given page again, ending at the same newest message, to
+    * pick up edits and deletes
+    **/
+   public static MessagePage refreshPage (Messenger esql, String authorisedUser, String chatid, MessagePage page) throws SQLException {
+      return esql.messages().currentPage(authorisedUser, Integer.parseInt(chatid), page, PAGE_SIZE);
+   }
+
+   /*
+    * Prints a page oldest message first
+    **/
+   private static void printPage (MessagePage page) {
+      StringBuilder line = new StringBuilder(128);
+      for (int i = page.messages.size() - 1; i >= 0; i--) {
+         line.setLength(0);
+         out().println(page.messages.get(i).appendTo(line));
+      }
+   }
+    
    public static void ViewMessages(Messenger esql, String authorisedUser, String chatid) {
       try {
-      List<String> messagelist = fillArray(esql,authorisedUser,chatid);     
-      int total = messagelist.size();
-      int blah = 10;
-      int current = blah;
-      if (current > total) current = total;
-      for (int i = current-1; i >= current - blah && i >= 0; i--) {
-            System.out.println(messagelist.get(i));
-      }
+      MessagePage page = fetchLatestPage(esql, authorisedUser, chatid);
+      printPage(page);
       boolean usermenu = true;
       while(usermenu) {
         boolean showmessages = true;
-        System.out.println("1. Browse Older Messages");
-        System.out.println("2. Browse Newer Messages");
-        System.out.println("3. Create Message");
-        System.out.println("4. Edit Message");
-        System.out.println("5. Delete Message");
-        System.out.println(".........................");
-        System.out.println("0. Go Back");
+        out().println("1. Browse Older Messages");
+        out().println("2. Browse Newer Messages");
+        out().println("3. Create Message");
+        out().println("4. Edit Message");
+        out().println("5. Delete Message");
+        out().println(".........................");
+        out().println("0. Go Back");
         int choice = readChoice();
         switch(choice) {
-            case 1: if (current < total) {
-                        current += blah;
-                        if (current > total) current = total;
+            case 1: MessagePage older = fetchOlderPage(esql, authorisedUser, chatid, page);
+                    if (!older.isEmpty()) {
+                        page = older;
                         showmessages = true;
                     }
                     else {
-                        System.out.println("No Older messages");
+                        out().println("No Older messages");
                         showmessages = false;
                     }
                     break;
-            case 2: if (current > blah) {
-                        current -= blah;
-                        if (current < blah) current = blah;
+            case 2: MessagePage newer = fetchNewerPage(esql, authorisedUser, chatid, page);
+                    if (!newer.isEmpty()) {
+                        page = newer;
                         showmessages = true;
                     }
                     else {
-                        System.out.println("No Newer messages");
+                        out().println("No Newer messages");
                         showmessages = false;
                     }
                     break;
-            case 3: createMessage(esql, authorisedUser, chatid);messagelist = fillArray(esql,authorisedUser,chatid);     
+            case 3: createMessage(esql, authorisedUser, chatid);
+                    page = fetchLatestPage(esql, authorisedUser, chatid);
                     showmessages = true; 
-                    total = messagelist.size();
-                    current = (blah > total) ? total : blah; 
                     break;
-            case 4: showmessages = editMessage(esql, authorisedUser,chatid); messagelist = fillArray(esql,authorisedUser,chatid);     
+            case 4: showmessages = editMessage(esql, authorisedUser,chatid);
+                    if (showmessages) page = refreshPage(esql, authorisedUser, chatid, page);
+                    break;
+            case 5: showmessages = deleteMessage(esql, authorisedUser,chatid);
+                    if (showmessages) page = refreshPage(esql, authorisedUser, chatid, page);
                     break;
-            case 5: showmessages = deleteMessage(esql, authorisedUser,chatid);messagelist = fillArray(esql,authorisedUser,chatid);     
-                    total = messagelist.size();
-                    current = (current > total) ? total : current; break;
             case 0: usermenu = false; break;
-            default : System.out.println("Unrecognized choice!"); showmessages = false; break;
+            default : out().println("Unrecognized choice!"); showmessages = false; break;
         }
         if (!usermenu) break;
         if (!showmessages) continue;                        
-        for (int i = current-1; i >= current - blah && i >= 0; i--) {
-            System.out.println(messagelist.get(i));
-        }
+        printPage(page);
     }
-    String query = String.format("DELETE FROM message WHERE chat_id = " + chatid + " AND destr_timestamp < now()");
-    esql.executeUpdate(query);
-    query = String.format("DELETE FROM NOTIFICATION where msg_id in (select msg_id from message where message.msg_id = notification.msg_id and notification.usr_login = '" + authorisedUser + "' AND message.chat_id = " + chatid + ")");
-    esql.executeUpdate(query);
+    esql.messages().markRead(authorisedUser, Integer.parseInt(chatid));
+    esql._bus.acknowledge(authorisedUser, Integer.parseInt(chatid));
       } catch (Exception e) {
-          System.err.println (e.getMessage ());
+          err().println (e.getMessage ());
           return;
       }
           
@@ -809,55 +1432,39 @@ public class Messenger {
     
   public static boolean editMessage (Messenger esql, String authorisedUser, String chatid) {
       try {
-          System.out.println("Which message would you like to edit? (Message ID)");
-          String msgid = in.readLine();
-          String query = ("SELECT * FROM message WHERE msg_id = " + msgid + " AND sender_login = '" + authorisedUser + "' AND chat_id = " + chatid);
-          int rows = esql.executeQuery(query);
-          if (rows == 0) {
-              System.out.println("That message does not belong to you or does not exist in this chat");
+          out().println("Which message would you like to edit? (Message ID)");
+          String msgid = in().readLine();
+          if (!esql.messages().isSender(authorisedUser, Integer.parseInt(chatid), Integer.parseInt(msgid))) {
+              out().println("That message does not belong to you or does not exist in this chat");
               return false;
           }
-          System.out.println("What would you like the message to say now?");
-          String text = in.readLine();
-          query = ("UPDATE message SET msg_text = '" + text + "' WHERE msg_id = " + msgid);
-          esql.executeUpdate(query);
-          System.out.println("Message successfully edited");
-          int asdf = esql.getCurrSeqVal("message_msg_id_seq");
-          query = String.format("SELECT member FROM chat_list WHERE chat_id = " + chatid);
-          List<String> memberlist = new ArrayList<String>();
-          Statement stmt = esql._connection.createStatement ();
-          ResultSet rs = stmt.executeQuery (query);
-          while (rs.next()) {
-		  	String temp = rs.getString(1);
-            System.out.println(temp);
-            if (!temp.equals(authorisedUser)) memberlist.add(temp);
-          }
-          for (int i = 0; i < memberlist.size(); i++) {
-            query = String.format("INSERT INTO NOTIFICATION (msg_id, usr_login) values (" + asdf + ", '"+ memberlist.get(i) +"')");
-            esql.executeUpdate(query);        
-          }
+          out().println("What would you like the message to say now?");
+          String text = in().readLine();
+          int chat = Integer.parseInt(chatid);
+          String[] recipients = esql.getRecipients(chat, authorisedUser);
+          // logged in recipients are pushed the notification instead
+          esql.messages().editMessage(chat, Integer.parseInt(msgid), text, esql._bus.offline(recipients));
+          esql.deliver(new NotificationBus.Notification(Integer.parseInt(msgid), chat, authorisedUser), esql._bus.online(recipients));
+          out().println("Message successfully edited");
           return true;
       } catch (Exception e) {
-          System.err.println (e.getMessage ());
+          err().println (e.getMessage ());
           return false;
       }
   }
   public static boolean deleteMessage (Messenger esql, String authorisedUser, String chatid) {
       try {
-          System.out.println("Which message would you like to delete? (Message ID)");
-          String msgid = in.readLine();
-          String query = ("SELECT * FROM message WHERE msg_id = " + msgid + " AND sender_login = '" + authorisedUser + "' AND chat_id = " + chatid);
-          int rows = esql.executeQuery(query);
-          if (rows == 0) {
-              System.out.println("That message does not belong to you or does not exist in this chat");
+          out().println("Which message would you like to delete? (Message ID)");
+          String msgid = in().readLine();
+          if (!esql.messages().isSender(authorisedUser, Integer.parseInt(chatid), Integer.parseInt(msgid))) {
+              out().println("That message does not belong to you or does not exist in this chat");
               return false;
           }
-          query = ("DELETE FROM message WHERE msg_id = " + msgid + " AND sender_login = '" + authorisedUser + "' AND chat_id = " + chatid);
-          esql.executeUpdate(query);
-          System.out.println("Message successfully deleted");
+          esql.messages().deleteMessage(Integer.parseInt(chatid), Integer.parseInt(msgid));
+          out().println("Message successfully deleted");
           return true;
       } catch (Exception e) {
-          System.err.println (e.getMessage ());
+          err().println (e.getMessage ());
           return false;
       }
   }
@@ -865,30 +1472,40 @@ public class Messenger {
   
   public static void createMessage (Messenger esql, String authorisedUser, String chatid) {
 	  try {
-        System.out.println("What would you like your message to say?");
-        String text = in.readLine();
-        String query = String.format("INSERT INTO message (msg_text,msg_timestamp,sender_login,chat_id) VALUES ('" + text + "',now(),'" + authorisedUser + "'," + chatid + ")");
-	    esql.executeUpdate(query);
-        System.out.println("Message sent.");
-        int asdf = esql.getCurrSeqVal("message_msg_id_seq");
-        query = String.format("SELECT member FROM chat_list WHERE chat_id = " + chatid);
-        List<String> memberlist = new ArrayList<String>();
-        Statement stmt = esql._connection.createStatement ();
-        ResultSet rs = stmt.executeQuery (query);
-        while (rs.next()) {
-			String temp = rs.getString(1);
-            System.out.println(temp);
-            if (!temp.equals(authorisedUser)) memberlist.add(temp);
-        }
-        for (int i = 0; i < memberlist.size(); i++) {
-            query = String.format("INSERT INTO NOTIFICATION (msg_id, usr_login) values (" + asdf + ", '"+ memberlist.get(i) +"')");
-            esql.executeUpdate(query);        
-        }
-    
+        out().println("What would you like your message to say?");
+        String text = in().readLine();
+        sendMessage(esql, authorisedUser, chatid, text);
+        out().println("Message sent.");
       } catch (Exception e) {
-          System.err.println (e.getMessage ());
+          err().println (e.getMessage ());
       }
   }
+
+  /*
+   * Inserts a message and notifies every other member of the chat
+   * @return the id of the new message
+   **/
+  public static int sendMessage (Messenger esql, String authorisedUser, String chatid, String text) throws SQLException {
+        int chat = Integer.parseInt(chatid);
+        int msgid;
+        if (esql._ingest != null) {
+            // wait for the group commit of the ingest pipeline
+            try {
+                msgid = esql.submitMessage(authorisedUser, chat, text).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while sending the message", e);
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof SQLException) ? (SQLException) e.getCause() : new SQLException(e.getCause());
+            }
+        } else {
+            // only offline recipients get a NOTIFICATION row; the others are pushed
+            String[] recipients = esql.getRecipients(chat, authorisedUser);
+            msgid = esql.messages().sendMessage(authorisedUser, chat, text, esql._bus.offline(recipients));
+            esql.deliver(new NotificationBus.Notification(msgid, chat, authorisedUser), esql._bus.online(recipients));
+        }
+        return msgid;
+  }
       
       
        
@@ -898,42 +1515,27 @@ public class Messenger {
 	   int choice = 0;
 	   boolean usermenu = true;
 	   while (usermenu) {
-		   System.out.println("Create Chat MENU");	
-           System.out.println("---------");
-           System.out.println("1. Private Chat");
-           System.out.println("2. Public Chat");
-           System.out.println(".........................");
-           System.out.println("0. Go Back");
+		   out().println("Create Chat MENU");	
+           out().println("---------");
+           out().println("1. Private Chat");
+           out().println("2. Public Chat");
+           out().println(".........................");
+           out().println("0. Go Back");
            choice = readChoice();
            switch(choice) {
 			   case 1: chat_type = "Private"; break;
 			   case 2: chat_type = "Public"; break;
 			   case 0: usermenu = false; break;
-			   default : System.out.println("Unrecognized choice!"); break;
+			   default : out().println("Unrecognized choice!"); break;
 		   }
 		   if (!usermenu) break;
-		   try {
-			   String query = String.format("INSERT INTO chat (chat_type, init_sender) VALUES ('" + chat_type + "','" + authorisedUser + "')");
-			   esql.executeUpdate(query);
-		   } catch (Exception e) {
-			   System.err.println (e.getMessage ());
-			   return;
-		   }
 		   String curseq = "";
 		   try {
-			   int asdf = esql.getCurrSeqVal("chat_chat_id_seq");
+			   // the chat, its creator as first member and a first message
+			   int asdf = esql.messages().createChat(authorisedUser, chat_type);
 			   curseq = Integer.toString(asdf);
-			   String query = String.format("INSERT INTO chat_list (chat_id	, member) VALUES (" + curseq + ",'" + authorisedUser + "')");
-			   esql.executeUpdate(query);
 		   } catch (Exception e) {
-			   System.err.println (e.getMessage ());
-			   return;
-		   }
-		   try {
-			   String query = String.format("INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id) VALUES ('" + authorisedUser + " created this chat',now(),'" + authorisedUser + "','" + curseq + "')");
-			   esql.executeUpdate(query);
-		   } catch (Exception e) {
-			   System.err.println (e.getMessage ());
+			   err().println (e.getMessage ());
 			   return;
 		   }
 		   Editsubmenu(esql, authorisedUser, curseq);
@@ -945,33 +1547,30 @@ public class Messenger {
    {
        try
        {
-               String query = String.format( "SELECT member FROM CHAT_LIST WHERE chat_id ="+id );
-            int rows = esql.executeQueryAndPrintResult(query);
+            int chat = Integer.parseInt(id);
+            printMembers(esql.messages().members(chat));
  
-       System.out.println("Enter Login of user you wish to remove: ");
-       String login = in.readLine();
+       out().println("Enter Login of user you wish to remove: ");
+       String login = in().readLine();
        if(login.equals(authorisedUser))
        {
-           System.out.println("Can not remove yourself, to do so you must delete entire chat log");
+           out().println("Can not remove yourself, to do so you must delete entire chat log");
        }
        else  
        {
-               query = String.format( "SELECT member FROM CHAT_LIST WHERE chat_id ="+id +" AND member = '" + login+"'" );
-            rows = esql.executeQuery(query);
-            if(rows == 0)
+            if(!esql.messages().members(chat).contains(login))
             {
-                System.out.println("Login is not in the chat");
+                out().println("Login is not in the chat");
                 return;
             }
             else
             {
-                query = String.format("DELETE FROM CHAT_LIST WHERE member = '"+login+"' AND chat_id = " + id);
-                esql.executeUpdate(query);
-                System.out.println("Login successfully removed");
+                esql.messages().removeMember(chat, login);
+                out().println("Login successfully removed");
             }
         }
    }catch(Exception e){
-            System.err.println (e.getMessage ());
+            err().println (e.getMessage ());
             return;
         }     
         
@@ -983,39 +1582,35 @@ public class Messenger {
    {
        try
        {
-            System.out.println("Users currently in chat:");
-            String query = String.format( "SELECT member FROM CHAT_LIST WHERE chat_id ="+id );
-            int rows = esql.executeQueryAndPrintResult(query);
-       System.out.println("Enter Login of user you wish to Add: ");
-       String login = in.readLine();
+            out().println("Users currently in chat:");
+            int chat = Integer.parseInt(id);
+            Set<String> members = esql.messages().members(chat);
+            printMembers(members);
+       out().println("Enter Login of user you wish to Add: ");
+       String login = in().readLine();
        if(login.equals(authorisedUser))
        {
-           System.out.println("Can not add yourself, you are already a member");
+           out().println("Can not add yourself, you are already a member");
        }
        else  
        {
-            query = String.format("Select * FROM USR where login = '" + login + "'");
-            if(rows == 0)
+            if(members.contains(login))
             {
-                System.out.println("Login does not exist");
+                out().println("Login is already in the chat");
                 return;
             }
-            query = String.format( "SELECT member FROM CHAT_LIST WHERE chat_id ="+id +" AND member = '" + login+"'" );
-            rows = esql.executeQueryAndPrintResult(query);
-            if(rows != 0)
+            if(!esql.messages().addMember(chat, login))
             {
-                System.out.println("Login is already in the chat");
+                out().println("Login does not exist");
                 return;
             }
             else
             {
-                query = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ("+id+ ", '"+login+"')");
-                esql.executeUpdate(query);
-                System.out.println("Login successfully added");
+                out().println("Login successfully added");
             }
         }
    }catch(Exception e){
-            System.err.println (e.getMessage ());
+            err().println (e.getMessage ());
             return;
         }     
         
@@ -1023,22 +1618,47 @@ public class Messenger {
         
    }    
     
+   /*
+    * Prints the members of a chat like executeQueryAndPrintResult
+    **/
+   private static void printMembers(Set<String> members)
+   {
+       RowSink sink = RowSink.open(out());
+       String[] row = { "member" };
+       sink.columns(row);
+       for (String member : members) {
+           row[0] = member;
+           sink.row(row);
+       }
+       sink.end();
+   }
+
+   /*
+    * Prints chat ids in the layout of executeQueryAndPrintResult
+    **/
+   private static void printChatIds(List<Integer> chats)
+   {
+       if (!chats.isEmpty()) out().println("chat_id\t");
+       for (Integer chat : chats)
+           out().println(chat + "\t");
+   }
+
    public static void Editsubmenu(Messenger esql, String authorisedUser, String id)
                     {
-                        System.out.println("What would you like to do?");
+                        out().println("What would you like to do?");
                         boolean usermenu = true;
                           while(usermenu) {
-                            System.out.println("---------");
-                            System.out.println("1. Add Users");
-                            System.out.println("2. Remove Users");
+                            out().println("---------");
+                            out().println("1. Add Users");
+                            out().println("2. Remove Users");
                         
-                            System.out.println(".........................");
-                            System.out.println("0. Go Back");
+                            out().println(".........................");
+                            out().println("0. Go Back");
                             switch (readChoice()){
                                case 1: AddUsers(esql, authorisedUser, id); break;
                                case 2: RemoveUsers(esql, authorisedUser, id); break;
                                case 0: usermenu = false; break;
-                               default : System.out.println("Unrecognized choice!"); break;
+                               default : out().println("Unrecognized choice!"); break;
                             }
                           }
                     }
@@ -1047,30 +1667,25 @@ public class Messenger {
    public static void DeleteChats(Messenger esql, String authorisedUser) {
 	   String chatid = "";
 	   try {
-            String query = String.format( "SELECT chat_id FROM CHAT WHERE init_sender ='" + authorisedUser+"'");
-            int rows = esql.executeQueryAndPrintResult(query);
+            printChatIds(esql.messages().chatsCreatedBy(authorisedUser));
             
         } catch (Exception e) {
-            System.err.println (e.getMessage ());
-            System.out.println("You are not the admin of any chats");
+            err().println (e.getMessage ());
+            out().println("You are not the admin of any chats");
             return;
         }      
 	   try {
-           System.out.println("Which chat would you like to delete? (chat ID)");
-           chatid = in.readLine();
-		   String query = String.format( "SELECT chat_id FROM CHAT WHERE chat_id =" + chatid + " AND init_sender = '" +authorisedUser+"'");
-           int rows = esql.executeQuery(query);
-           if(rows == 0)
+           out().println("Which chat would you like to delete? (chat ID)");
+           chatid = in().readLine();
+           if(!esql.messages().deleteChat(Integer.parseInt(chatid), authorisedUser))
            {
-                        System.out.println("That ID does not exist or you are not the admin of it");
+                        out().println("That ID does not exist or you are not the admin of it");
                         return;
            }
-           query = String.format("DELETE FROM CHAT WHERE CHAT_ID = " + chatid + " AND init_sender = '" + authorisedUser + "'");
-           esql.executeUpdate(query);
-		   System.out.println("Successfully deleted chat");
+		   out().println("Successfully deleted chat");
        } catch (Exception e) {
-           System.out.println ("Invalid Input");
-           //System.err.println (e.getMessage ());
+           out().println ("Invalid Input");
+           //err().println (e.getMessage ());
            return;
        }
    }
@@ -1079,25 +1694,21 @@ public class Messenger {
  public static void EditChats(Messenger esql, String authorisedUser)
    {
                try{
-                   String query = String.format( "SELECT * FROM CHAT WHERE init_sender ='" + authorisedUser+"'");
-                int rows =  esql.executeQuery(query);
-                if(rows == 0)
+                List<Integer> chats = esql.messages().chatsCreatedBy(authorisedUser);
+                if(chats.isEmpty())
                 {
-                    System.out.println("You are not the admin of any chats");
+                    out().println("You are not the admin of any chats");
                     return;
                 }
                 else
                 {
-                    query = String.format( "SELECT chat_id FROM CHAT WHERE init_sender ='" + authorisedUser+"'");
-                    rows = esql.executeQueryAndPrintResult(query);
-                    System.out.println("Enter the chat id that you wish to edit, -1 to go back: ");   
-                    String id = in.readLine();
+                    printChatIds(chats);
+                    out().println("Enter the chat id that you wish to edit, -1 to go back: ");   
+                    String id = in().readLine();
                     if(id.equals("-1")) return;
-                    query = String.format( "SELECT chat_id FROM CHAT WHERE chat_id =" + id+" AND init_sender = '" +authorisedUser+"'");
-                    rows = esql.executeQuery(query);
-                    if(rows == 0)
+                    if(!chats.contains(Integer.parseInt(id)))
                     {
-                        System.out.println("That ID does not exist or you are not the admin of it");
+                        out().println("That ID does not exist or you are not the admin of it");
                     }
                     else
                     {
@@ -1107,33 +1718,94 @@ public class Messenger {
                      
  
                 }
-                //System.out.println("Total Chats: " + rows);
+                //out().println("Total Chats: " + rows);
                 return;
             }catch(Exception e){
-            System.out.println ("Invalid Input");
-            //System.err.println (e.getMessage ());
+            out().println ("Invalid Input");
+            //err().println (e.getMessage ());
             return;
         }     
     }      
 
+   /*
+    * Searches the chats of the user for messages containing words, one
+    * page of results at a time, best matches first
+    **/
+   public static void SearchMessages(Messenger esql, String authorisedUser) {
+      try {
+        out().println("What would you like to search for?");
+        String query = in().readLine();
+        int page = 0;
+        List<Message> results = esql.messages().search(authorisedUser, query, page, PAGE_SIZE);
+        if (results.isEmpty()) {
+            out().println("No messages found");
+            return;
+        }
+        printResults(results);
+        boolean usermenu = true;
+        while(usermenu) {
+          out().println("1. Next Results");
+          out().println("2. Previous Results");
+          out().println(".........................");
+          out().println("0. Go Back");
+          switch(readChoice()) {
+              case 1: List<Message> next = esql.messages().search(authorisedUser, query, page + 1, PAGE_SIZE);
+                      if (next.isEmpty()) {
+                          out().println("No more results");
+                          continue;
+                      }
+                      page++;
+                      results = next;
+                      break;
+              case 2: if (page == 0) {
+                          out().println("No previous results");
+                          continue;
+                      }
+                      page--;
+                      results = esql.messages().search(authorisedUser, query, page, PAGE_SIZE);
+                      break;
+              case 0: usermenu = false; continue;
+              default : out().println("Unrecognized choice!"); continue;
+          }
+          printResults(results);
+        }
+      } catch (Exception e) {
+          err().println (e.getMessage ());
+      }
+   }
+
+   /*
+    * Prints search results with the chat each message is in
+    **/
+   private static void printResults (List<Message> results) {
+      StringBuilder line = new StringBuilder(128);
+      for (Message message : results) {
+         line.setLength(0);
+         line.append("chat ").append(message.chatId).append(": ");
+         out().println(message.appendTo(line));
+      }
+   }
+
    public static void Chats(Messenger esql, String authorisedUser){
               boolean usermenu = true;
               while(usermenu) {
-                System.out.println("Chat MENU");
-                System.out.println("---------");
-                System.out.println("1. Browse Chat list");
-                System.out.println("2. Create New Chat");
-                System.out.println("3. Delete Chat");
-                System.out.println("4. Edit Chat");
-                System.out.println(".........................");
-                System.out.println("0. Go Back");
+                out().println("Chat MENU");
+                out().println("---------");
+                out().println("1. Browse Chat list");
+                out().println("2. Create New Chat");
+                out().println("3. Delete Chat");
+                out().println("4. Edit Chat");
+                out().println("5. Search Messages");
+                out().println(".........................");
+                out().println("0. Go Back");
                 switch (readChoice()){
                    case 1: ListChats(esql, authorisedUser); break;
                    case 2: AddChats(esql, authorisedUser); break;
                    case 3: DeleteChats(esql, authorisedUser); break;
                    case 4: EditChats(esql, authorisedUser); break;
+                   case 5: SearchMessages(esql, authorisedUser); break;
                    case 0: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                   default : out().println("Unrecognized choice!"); break;
                 }
               }
    }//end Query6
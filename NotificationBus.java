@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class delivers notifications to logged in users in process.  Every
+ * logged in user has one bounded list of pending notifications that
+ * senders publish to and that the user's sessions read or wait on.  Like
+ * a NOTIFICATION row, a notification stays pending after it was read,
+ * until the user reads its chat and acknowledges it; the ones still
+ * pending when the user logs out are handed back to be stored.  Users
+ * without a list, and notifications that do not fit in a full one, are
+ * left to the caller to store in the NOTIFICATION table, which remains
+ * the durable fallback for offline users.
+ *
+ */
+class NotificationBus {
+
+   static final int QUEUE_SIZE = Integer.getInteger("messenger.notifications.queueSize", 1000);
+   static final long WAIT_MILLIS = Long.getLong("messenger.notifications.waitMillis", 30000);
+
+   /**
+    * A new or edited message for a user.
+    */
+   static class Notification {
+      final int msgId;
+      final int chatId;
+      final String sender;
+
+      Notification (int msgId, int chatId, String sender) {
+         this.msgId = msgId;
+         this.chatId = chatId;
+         this.sender = sender;
+      }//end Notification
+   }//end Notification
+
+   /*
+    * The pending notifications of a user, oldest first, guarded by the
+    * subscriber itself; the first shown of them were returned by poll
+    */
+   private static class Subscriber {
+      final List<Notification> pending = new ArrayList<Notification>();
+      int shown;
+      int sessions;
+      boolean closed;
+   }//end Subscriber
+
+   private final ConcurrentHashMap<String, Subscriber> _subscribers = new ConcurrentHashMap<String, Subscriber>();
+   private final int _capacity;
+
+   NotificationBus (int capacity) {
+      this._capacity = capacity;
+   }//end NotificationBus
+
+   /**
+    * Starts delivering to a user; a user logged in from several sessions
+    * shares one list.
+    */
+   void subscribe (String login) {
+      this._subscribers.compute(login, (key, subscriber) -> {
+         if (subscriber == null) subscriber = new Subscriber();
+         subscriber.sessions++;
+         return subscriber;
+      });
+   }//end subscribe
+
+   /**
+    * Stops delivering to a user once their last session logged out.
+    *
+    * @return the notifications that were never acknowledged, to be stored
+    */
+   List<Notification> unsubscribe (String login) {
+      List<Notification> unread = new ArrayList<Notification>();
+      this._subscribers.computeIfPresent(login, (key, subscriber) -> {
+         if (--subscriber.sessions > 0) return subscriber;
+         synchronized (subscriber) {
+            unread.addAll(subscriber.pending);
+            subscriber.pending.clear();
+            subscriber.shown = 0;
+            subscriber.closed = true;
+            // sessions still waiting return empty handed
+            subscriber.notifyAll();
+         }//end synchronized
+         return null;
+      });
+      return unread;
+   }//end unsubscribe
+
+   /**
+    * Returns the recipients that are not logged in.
+    */
+   String[] offline (String[] recipients) {
+      List<String> offline = new ArrayList<String>();
+      for (String login : recipients)
+         if (!this._subscribers.containsKey(login)) offline.add(login);
+      return offline.toArray(new String[offline.size()]);
+   }//end offline
+
+   /**
+    * Returns the recipients that are logged in.
+    */
+   String[] online (String[] recipients) {
+      List<String> online = new ArrayList<String>();
+      for (String login : recipients)
+         if (this._subscribers.containsKey(login)) online.add(login);
+      return online.toArray(new String[online.size()]);
+   }//end online
+
+   /**
+    * Delivers a notification to the pending lists of the given users.
+    *
+    * @return the users it could not be delivered to, because they logged
+    *         out meanwhile or their list is full
+    */
+   String[] publish (Notification notification, String[] recipients) {
+      List<String> missed = new ArrayList<String>();
+      boolean[] delivered = new boolean[1];
+      for (String login : recipients) {
+         delivered[0] = false;
+         // added under the same lock as unsubscribe, so a notification is
+         // either handed back by it or reported missed, never left in a dropped list
+         this._subscribers.computeIfPresent(login, (key, subscriber) -> {
+            synchronized (subscriber) {
+               if (subscriber.pending.size() < this._capacity) {
+                  subscriber.pending.add(notification);
+                  subscriber.notifyAll();
+                  delivered[0] = true;
+               }//end if
+            }//end synchronized
+            return subscriber;
+         });
+         if (!delivered[0]) missed.add(login);
+      }//end for
+      return missed.toArray(new String[missed.size()]);
+   }//end publish
+
+   /**
+    * Returns every pending notification of a user, read before or not.
+    *
+    * @return the notifications, oldest first
+    */
+   List<Notification> pending (String login) {
+      Subscriber subscriber = this._subscribers.get(login);
+      if (subscriber == null) return new ArrayList<Notification>();
+      synchronized (subscriber) {
+         subscriber.shown = subscriber.pending.size();
+         return new ArrayList<Notification>(subscriber.pending);
+      }//end synchronized
+   }//end pending
+
+   /**
+    * Returns the pending notifications of a user that were not returned
+    * before, blocking up to the timeout while there is none.  They stay
+    * pending until acknowledged.
+    *
+    * @param login the user
+    * @param timeoutMillis how long to wait, 0 to return at once
+    * @return the notifications, oldest first; empty on timeout
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   List<Notification> poll (String login, long timeoutMillis) throws InterruptedException {
+      Subscriber subscriber = this._subscribers.get(login);
+      if (subscriber == null) return new ArrayList<Notification>();
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      synchronized (subscriber) {
+         while (subscriber.shown == subscriber.pending.size() && !subscriber.closed) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) break;
+            subscriber.wait(left);
+         }//end while
+         List<Notification> notifications = new ArrayList<Notification>(
+            subscriber.pending.subList(subscriber.shown, subscriber.pending.size()));
+         subscriber.shown = subscriber.pending.size();
+         return notifications;
+      }//end synchronized
+   }//end poll
+
+   /**
+    * Drops the notifications of a chat the user has just read, which the
+    * read cursor also cleared from the NOTIFICATION table.
+    */
+   void acknowledge (String login, int chatId) {
+      Subscriber subscriber = this._subscribers.get(login);
+      if (subscriber == null) return;
+      synchronized (subscriber) {
+         for (int i = subscriber.pending.size() - 1; i >= 0; --i) {
+            if (subscriber.pending.get(i).chatId != chatId) continue;
+            subscriber.pending.remove(i);
+            if (i < subscriber.shown) subscriber.shown--;
+         }//end for
+      }//end synchronized
+   }//end acknowledge
+
+}//end NotificationBus
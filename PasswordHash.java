@@ -0,0 +1,101 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class hashes passwords with PBKDF2-HMAC-SHA256 and a random salt,
+ * stored as "pbkdf2$iterations$salt$hash" in base64, so a password is
+ * checked by hashing it again rather than by comparing it in a query.
+ * The iteration count (messenger.password.iterations) is stored with
+ * every hash, so raising it only affects new hashes; an older hash still
+ * verifies, and needsRehash tells the caller to store it again.  Plain
+ * text passwords are only accepted from rows that existed before hashing
+ * was introduced, which schema migration 6 marked as "plain$password".
+ *
+ */
+class PasswordHash {
+
+   static final int ITERATIONS = Integer.getInteger("messenger.password.iterations", 100000);
+
+   private static final String PREFIX = "pbkdf2$";
+   private static final String LEGACY_PREFIX = "plain$";
+
+   // tells, in SQL, whether the password column holds a hash
+   static final String IS_HASH_SQL = "password LIKE 'pbkdf2$%'";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /**
+    * Returns the hash of a password with a new salt.
+    */
+   static String hash (String password) {
+      return hash(password, ITERATIONS);
+   }//end hash
+
+   /**
+    * Returns the hash of a password with a new salt and the given number
+    * of iterations, for stores that trade strength for speed.
+    */
+   static String hash (String password, int iterations) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+      return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+             + base64.encodeToString(pbkdf2(password, salt, iterations));
+   }//end hash
+
+   /**
+    * Checks a password against what is stored for it: a hash, or a plain
+    * password marked as written before passwords were hashed.  Anything
+    * else never verifies.
+    */
+   static boolean verify (String password, String stored) {
+      if (stored == null) return false;
+      stored = stored.stripTrailing();
+      if (stored.startsWith(LEGACY_PREFIX)) {
+         // compared in constant time, like the hashes
+         byte[] plain = stored.substring(LEGACY_PREFIX.length()).getBytes(StandardCharsets.UTF_8);
+         return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), plain);
+      }//end if
+      if (!stored.startsWith(PREFIX)) return false;
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4) return false;
+      try{
+         Base64.Decoder base64 = Base64.getDecoder();
+         byte[] expected = base64.decode(parts[3]);
+         return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+      }catch (IllegalArgumentException e){
+         // not a hash written by this class
+         return false;
+      }//end try
+   }//end verify
+
+   /**
+    * True when a stored password is not a hash, or is hashed with fewer
+    * than ITERATIONS iterations.
+    */
+   static boolean needsRehash (String stored) {
+      stored = stored.stripTrailing();
+      if (!stored.startsWith(PREFIX)) return true;
+      int end = stored.indexOf('$', PREFIX.length());
+      return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < ITERATIONS;
+   }//end needsRehash
+
+   private static byte[] pbkdf2 (String password, byte[] salt, int iterations) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      try{
+         return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+      }catch (GeneralSecurityException e){
+         // every Java runtime ships PBKDF2WithHmacSHA256
+         throw new IllegalStateException("Unable to hash the password", e);
+      }finally{
+         spec.clearPassword();
+      }//end try
+   }//end pbkdf2
+
+}//end PasswordHash
@@ -0,0 +1,257 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class keeps the latency, row and error statistics of every query
+ * issued through the JDBC entry points of Messenger.  Each SQL text is
+ * mapped once to a logical operation named after the method that issued
+ * it and the statement it is, e.g. "JdbcStore.createChat insert chat_list"
+ * or "Messenger.getlistid select usr", so later calls only look the text
+ * up and record into a LatencyHistogram and a few counters, without
+ * allocating.
+ *
+ * Every operation is exported over JMX as messenger:type=Query,name=...,
+ * and all of them are written as a table to messenger.metrics.dumpFile
+ * every messenger.metrics.dumpSeconds seconds (0 turns the dump off).
+ * Other components export their counters through export, as
+ * messenger:type=..., and are written below the table, one line each.
+ *
+ */
+class QueryMetrics {
+
+   static final long DUMP_SECONDS = Long.getLong("messenger.metrics.dumpSeconds", 60);
+   static final String DUMP_FILE = System.getProperty("messenger.metrics.dumpFile", "query-metrics.txt");
+
+   // methods that only pass a query on; the operation is named after their caller
+   private static final Set<String> ENTRY_POINTS = Set.of(
+      "withConnection", "query", "executeUpdate", "executeInsertAndReturnKey", "executeQuery",
+      "executeQueryAndPrintResult", "executeQueryAndReturnResult", "executeQueryAndStream", "copyIn", "copyOut");
+
+   /**
+    * The statistics of one logical operation.
+    */
+   static class Operation implements QueryOperationMBean {
+      final String name;
+      final String sql;
+      private final LatencyHistogram _latencies = new LatencyHistogram();
+      private final AtomicLong _rows = new AtomicLong();
+      private final AtomicLong _errors = new AtomicLong();
+
+      Operation (String name, String sql) {
+         this.name = name;
+         this.sql = sql;
+      }
+
+      /**
+       * Records a call that succeeded.
+       *
+       * @param start the System.nanoTime() at the start of the call
+       * @param rows the rows read or written
+       */
+      void succeeded (long start, int rows) {
+         this._latencies.record(System.nanoTime() - start);
+         if (rows > 0) this._rows.addAndGet(rows);
+      }
+
+      void failed (long start) {
+         this._latencies.record(System.nanoTime() - start);
+         this._errors.incrementAndGet();
+      }
+
+      public String getName () { return this.name; }
+      public String getSql () { return this.sql; }
+      public long getCount () { return this._latencies.count(); }
+      public long getErrors () { return this._errors.get(); }
+      public long getRows () { return this._rows.get(); }
+      public double getP50Millis () { return LatencyHistogram.millis(this._latencies.percentile(0.50)); }
+      public double getP99Millis () { return LatencyHistogram.millis(this._latencies.percentile(0.99)); }
+      public double getP999Millis () { return LatencyHistogram.millis(this._latencies.percentile(0.999)); }
+      public double getMaxMillis () { return LatencyHistogram.millis(this._latencies.max()); }
+   }
+
+   private final Map<String, Operation> _bySql = new ConcurrentHashMap<String, Operation>();
+   private final Map<String, Operation> _byName = new ConcurrentHashMap<String, Operation>();
+   private final List<ObjectName> _registered = new ArrayList<ObjectName>();
+   // the exported components by type, written by their toString
+   private final Map<String, Object> _components = new ConcurrentSkipListMap<String, Object>();
+   private final ScheduledExecutorService _scheduler;
+
+   /**
+    * Creates a new set of metrics and schedules the periodic dump
+    *
+    * @param dumpSeconds time between dumps, 0 for none
+    */
+   QueryMetrics (long dumpSeconds) {
+      if (dumpSeconds <= 0) {
+         this._scheduler = null;
+         return;
+      }//end if
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "query-metrics-dump");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay(this::dump, dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+   }//end QueryMetrics
+
+   /**
+    * Returns the operation a SQL text belongs to, naming and registering it
+    * on its first use.
+    */
+   Operation operation (String sql) {
+      Operation operation = this._bySql.get(sql);
+      if (operation != null) return operation;
+      String name = caller() + " " + shape(sql);
+      operation = this._byName.computeIfAbsent(name, n -> register(new Operation(n, sql)));
+      this._bySql.putIfAbsent(sql, operation);
+      return operation;
+   }//end operation
+
+   /*
+    * The first method on the stack that is not a JDBC entry point of
+    * Messenger; lambdas count as the method they are written in
+    */
+   private static String caller () {
+      return StackWalker.getInstance().walk(frames -> frames
+         .map(f -> {
+            String method = f.getMethodName();
+            if (method.startsWith("lambda$")) method = method.substring(7, method.indexOf('$', 7));
+            String type = f.getClassName();
+            return type.substring(type.lastIndexOf('.') + 1) + "." + method;
+         })
+         .filter(name -> !name.startsWith("QueryMetrics.")
+                         && !(name.startsWith("Messenger.") && ENTRY_POINTS.contains(name.substring(10))))
+         .findFirst()
+         .orElse("unknown"));
+   }//end caller
+
+   /*
+    * The kind of a statement and the table it works on
+    */
+   private static String shape (String sql) {
+      String[] words = sql.trim().toLowerCase().split("[\\s(),;]+");
+      String verb = words[0];
+      String before = verb.equals("select") || verb.equals("delete") ? "from"
+                    : verb.equals("insert") ? "into" : verb;
+      for (int i = 0; i < words.length - 1; ++i)
+         if (words[i].equals(before) && !words[i + 1].equals("select")) return verb + " " + words[i + 1];
+      return verb;
+   }//end shape
+
+   /**
+    * Returns the rows a query result holds: the size of a collection or
+    * page, 0 or 1 for a row test, and 1 for a single value unless it is a
+    * negative "not found" number.
+    */
+   static int rows (Object result) {
+      if (result == null) return 0;
+      if (result instanceof Collection) return ((Collection<?>) result).size();
+      if (result instanceof Map) return ((Map<?, ?>) result).size();
+      if (result instanceof Messenger.MessagePage) return ((Messenger.MessagePage) result).size;
+      if (result instanceof Boolean) return ((Boolean) result) ? 1 : 0;
+      if (result instanceof Number) return ((Number) result).intValue() < 0 ? 0 : 1;
+      return 1;
+   }//end rows
+
+   private Operation register (Operation operation) {
+      try{
+         register(new ObjectName("messenger:type=Query,name=" + ObjectName.quote(operation.name)),
+                  new StandardMBean(operation, QueryOperationMBean.class));
+      }catch (JMException e){
+         System.err.println("Unable to export query metrics: " + e.getMessage());
+      }//end try
+      return operation;
+   }//end register
+
+   private void register (ObjectName name, StandardMBean mbean) throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) return;
+      server.registerMBean(mbean, name);
+      synchronized (this._registered) {
+         this._registered.add(name);
+      }//end synchronized
+   }//end register
+
+   /**
+    * Exports the counters of a component over JMX as messenger:type=type,
+    * and writes them to the dump through its toString.
+    *
+    * @param type the name of the component
+    * @param component the component
+    * @param view its MBean interface
+    */
+   <T> void export (String type, T component, Class<T> view) {
+      this._components.put(type, component);
+      try{
+         register(new ObjectName("messenger:type=" + type), new StandardMBean(component, view));
+      }catch (JMException e){
+         System.err.println("Unable to export " + type + " metrics: " + e.getMessage());
+      }//end try
+   }//end export
+
+   /**
+    * Writes one line per operation, slowest p99 first.
+    */
+   void print (PrintStream out) {
+      List<Operation> operations = new ArrayList<Operation>(this._byName.values());
+      operations.sort((a, b) -> Double.compare(b.getP99Millis(), a.getP99Millis()));
+      out.println(String.format("%-48s %10s %10s %10s %10s %10s %10s %8s",
+                                "operation", "count", "rows", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors"));
+      for (Operation op : operations)
+         out.println(String.format("%-48s %10d %10d %10.3f %10.3f %10.3f %10.3f %8d",
+                                   op.name, op.getCount(), op.getRows(), op.getP50Millis(), op.getP99Millis(),
+                                   op.getP999Millis(), op.getMaxMillis(), op.getErrors()));
+      for (Map.Entry<String, Object> component : this._components.entrySet())
+         out.println(component.getKey() + ": " + component.getValue());
+   }//end print
+
+   /*
+    * Replaces the dump file with the current statistics
+    */
+   private void dump () {
+      try (PrintStream out = new PrintStream(new FileOutputStream(DUMP_FILE), false, "UTF-8")) {
+         out.println(new Date());
+         print(out);
+      }catch (IOException e){
+         System.err.println("Unable to dump query metrics: " + e.getMessage());
+      }//end try
+   }//end dump
+
+   /**
+    * Stops the dump and removes the operations from JMX.
+    */
+   void close () {
+      if (this._scheduler != null) this._scheduler.shutdownNow();
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      synchronized (this._registered) {
+         for (ObjectName name : this._registered) {
+            try{
+               server.unregisterMBean(name);
+            }catch (JMException e){
+               // already gone.
+            }//end try
+         }//end for
+         this._registered.clear();
+      }//end synchronized
+      this._components.clear();
+   }//end close
+
+}//end QueryMetrics
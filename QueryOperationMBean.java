@@ -0,0 +1,33 @@
+/**
+ * The JMX view of the statistics of one query operation, registered as
+ * messenger:type=Query,name=&lt;operation&gt;.  Latencies are in
+ * milliseconds.
+ *
+ */
+public interface QueryOperationMBean {
+
+   String getName ();
+
+   /**
+    * @return the SQL text of the operation as first seen
+    */
+   String getSql ();
+
+   long getCount ();
+
+   long getErrors ();
+
+   /**
+    * @return the rows read or written, summed over every call
+    */
+   long getRows ();
+
+   double getP50Millis ();
+
+   double getP99Millis ();
+
+   double getP999Millis ();
+
+   double getMaxMillis ();
+
+}//end QueryOperationMBean
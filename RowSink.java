@@ -0,0 +1,184 @@
+import java.io.PrintStream;
+
+/**
+ * This interface receives the rows of a listing one at a time, so a
+ * listing is written out while it is read instead of being collected
+ * first.  The values array passed to row is reused for every row and must
+ * not be kept.
+ *
+ * The sinks below render rows as the tab separated table the menus have
+ * always printed, as CSV or as JSON lines.  They collect their output in
+ * one reusable buffer that is written out whenever it fills up, instead
+ * of printing every cell on its own.
+ *
+ */
+interface RowSink {
+
+   // table, csv or json
+   String FORMAT = System.getProperty("messenger.output.format", "table");
+
+   /**
+    * Called once with the column names, before any row.
+    */
+   void columns (String[] names);
+
+   void row (String[] values);
+
+   /**
+    * Called once after the last row; writes out what is left.
+    */
+   void end ();
+
+   /**
+    * Returns a sink rendering rows to the given output in FORMAT.
+    */
+   static RowSink open (PrintStream out) {
+      switch (FORMAT) {
+         case "csv": return new Csv(out);
+         case "json": return new JsonLines(out);
+         default: return new Table(out);
+      }//end switch
+   }//end open
+
+   /**
+    * Collects rendered rows in a buffer that is written out when full.
+    */
+   abstract class Buffered implements RowSink {
+      static final int BUFFER_SIZE = 8192;
+
+      private final PrintStream _out;
+      final StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 256);
+      String[] names;
+
+      Buffered (PrintStream out) {
+         this._out = out;
+      }
+
+      public void columns (String[] names) {
+         this.names = names.clone();
+      }
+
+      /*
+       * Writes the buffer out once it holds a full chunk
+       */
+      void rowDone () {
+         if (this.buffer.length() >= BUFFER_SIZE) write();
+      }
+
+      private void write () {
+         this._out.append(this.buffer);
+         this.buffer.setLength(0);
+      }
+
+      public void end () {
+         write();
+         this._out.flush();
+      }
+   }//end Buffered
+
+   /**
+    * Tab separated values with a header line, as printed by
+    * executeQueryAndPrintResult; the header is left out when there are
+    * no rows.
+    */
+   class Table extends Buffered {
+      private boolean _header = true;
+
+      Table (PrintStream out) { super(out); }
+
+      public void row (String[] values) {
+         if (this._header) {
+            for (String name : this.names)
+               this.buffer.append(name).append('\t');
+            this.buffer.append('\n');
+            this._header = false;
+         }//end if
+         for (String value : values)
+            this.buffer.append(value).append('\t');
+         this.buffer.append('\n');
+         rowDone();
+      }
+   }//end Table
+
+   /**
+    * Comma separated values with a header line, quoted where needed
+    * (RFC 4180); null values are left empty.
+    */
+   class Csv extends Buffered {
+      Csv (PrintStream out) { super(out); }
+
+      public void columns (String[] names) {
+         super.columns(names);
+         line(names);
+      }
+
+      public void row (String[] values) {
+         line(values);
+         rowDone();
+      }
+
+      private void line (String[] values) {
+         for (int i = 0; i < values.length; ++i) {
+            if (i > 0) this.buffer.append(',');
+            String value = values[i];
+            if (value == null) continue;
+            boolean quote = false;
+            for (int c = 0; c < value.length() && !quote; ++c) {
+               char ch = value.charAt(c);
+               quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+            }//end for
+            if (!quote) {
+               this.buffer.append(value);
+               continue;
+            }//end if
+            this.buffer.append('"');
+            for (int c = 0; c < value.length(); ++c) {
+               char ch = value.charAt(c);
+               if (ch == '"') this.buffer.append('"');
+               this.buffer.append(ch);
+            }//end for
+            this.buffer.append('"');
+         }//end for
+         this.buffer.append('\n');
+      }
+   }//end Csv
+
+   /**
+    * One JSON object per row, keyed by column name.
+    */
+   class JsonLines extends Buffered {
+      JsonLines (PrintStream out) { super(out); }
+
+      public void row (String[] values) {
+         this.buffer.append('{');
+         for (int i = 0; i < values.length; ++i) {
+            if (i > 0) this.buffer.append(',');
+            string(this.names[i]);
+            this.buffer.append(':');
+            if (values[i] == null) this.buffer.append("null");
+            else string(values[i]);
+         }//end for
+         this.buffer.append("}\n");
+         rowDone();
+      }
+
+      private void string (String value) {
+         this.buffer.append('"');
+         for (int c = 0; c < value.length(); ++c) {
+            char ch = value.charAt(c);
+            switch (ch) {
+               case '"': this.buffer.append("\\\""); break;
+               case '\\': this.buffer.append("\\\\"); break;
+               case '\n': this.buffer.append("\\n"); break;
+               case '\r': this.buffer.append("\\r"); break;
+               case '\t': this.buffer.append("\\t"); break;
+               default:
+                  if (ch < 0x20) this.buffer.append(String.format("\\u%04x", (int) ch));
+                  else this.buffer.append(ch);
+            }//end switch
+         }//end for
+         this.buffer.append('"');
+      }
+   }//end JsonLines
+
+}//end RowSink
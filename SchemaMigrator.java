@@ -0,0 +1,231 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class creates and upgrades the schema Messenger runs on.  The
+ * schema is built by numbered migrations, each applied once, in order,
+ * in its own transaction, and recorded in SCHEMA_VERSION; concurrent
+ * starts wait on an advisory lock, so only one of them applies a
+ * migration.  A database created before SCHEMA_VERSION existed is taken
+ * over as is, since the tables are only created when missing.
+ *
+ * After migrating, the indexes the hot queries rely on are looked up in
+ * the catalog.  A missing one is reported as the query that would scan
+ * its whole table, or fails the start when messenger.schema.strict is
+ * set.  messenger.schema.migrate=false leaves the schema alone, e.g.
+ * for a database user without DDL rights, and only checks it.
+ *
+ */
+class SchemaMigrator {
+
+   static final boolean MIGRATE = Boolean.parseBoolean(System.getProperty("messenger.schema.migrate", "true"));
+   static final boolean STRICT = Boolean.getBoolean("messenger.schema.strict");
+
+   // key of the advisory lock held while a migration is applied
+   private static final long LOCK_KEY = 0x4d657373656e6765L;
+
+   /**
+    * One step of the schema, applied as a single transaction.
+    */
+   static class Migration {
+      final int version;
+      final String description;
+      final String[] statements;
+
+      Migration (int version, String description, String... statements) {
+         this.version = version;
+         this.description = description;
+         this.statements = statements;
+      }
+   }//end Migration
+
+   /**
+    * An index a hot query needs: the table, the leading columns (or the
+    * expression) as the catalog prints them, and the query.
+    */
+   static class RequiredIndex {
+      final String table;
+      final String columns;
+      final String usedBy;
+
+      RequiredIndex (String table, String columns, String usedBy) {
+         this.table = table;
+         this.columns = columns;
+         this.usedBy = usedBy;
+      }
+   }//end RequiredIndex
+
+   static final List<Migration> MIGRATIONS = List.of(
+      new Migration(1, "tables",
+         "CREATE TABLE IF NOT EXISTS USER_LIST (list_id serial, list_type char(10) NOT NULL, PRIMARY KEY (list_id))",
+         "CREATE TABLE IF NOT EXISTS USR (login char(50) UNIQUE NOT NULL, phoneNum char(16) UNIQUE, password char(50) NOT NULL, " +
+         "status char(140), block_list integer, contact_list integer, PRIMARY KEY (login), " +
+         "FOREIGN KEY (block_list) REFERENCES USER_LIST (list_id) ON DELETE SET NULL, " +
+         "FOREIGN KEY (contact_list) REFERENCES USER_LIST (list_id) ON DELETE SET NULL)",
+         "CREATE TABLE IF NOT EXISTS USER_LIST_CONTAINS (list_id integer, list_member char(50), PRIMARY KEY (list_id, list_member), " +
+         "FOREIGN KEY (list_id) REFERENCES USER_LIST (list_id) ON DELETE CASCADE, " +
+         "FOREIGN KEY (list_member) REFERENCES USR (login) ON DELETE CASCADE)",
+         "CREATE TABLE IF NOT EXISTS CHAT (chat_id serial, chat_type char(10) NOT NULL, init_sender char(50) NOT NULL, " +
+         "PRIMARY KEY (chat_id), FOREIGN KEY (init_sender) REFERENCES USR (login))",
+         "CREATE TABLE IF NOT EXISTS CHAT_LIST (chat_id integer, member char(50), PRIMARY KEY (chat_id, member), " +
+         "FOREIGN KEY (chat_id) REFERENCES CHAT (chat_id), FOREIGN KEY (member) REFERENCES USR (login))",
+         "CREATE TABLE IF NOT EXISTS MESSAGE (msg_id serial, msg_text char(300), msg_timestamp timestamp NOT NULL, " +
+         "destr_timestamp timestamp, sender_login char(50), chat_id integer NOT NULL, PRIMARY KEY (msg_id), " +
+         "FOREIGN KEY (sender_login) REFERENCES USR (login), FOREIGN KEY (chat_id) REFERENCES CHAT (chat_id))",
+         "CREATE TABLE IF NOT EXISTS MEDIA_ATTACHMENT (media_id serial, media_type char(10), URL char(256) NOT NULL, " +
+         "msg_id integer, PRIMARY KEY (media_id), FOREIGN KEY (msg_id) REFERENCES MESSAGE (msg_id))",
+         "CREATE TABLE IF NOT EXISTS NOTIFICATION (usr_login char(50), msg_id integer, PRIMARY KEY (usr_login, msg_id), " +
+         "FOREIGN KEY (usr_login) REFERENCES USR (login), FOREIGN KEY (msg_id) REFERENCES MESSAGE (msg_id))"),
+      new Migration(2, "indexes of the hot queries",
+         "CREATE INDEX IF NOT EXISTS message_chat_time ON MESSAGE (chat_id, msg_timestamp, msg_id)",
+         "CREATE INDEX IF NOT EXISTS chat_list_member ON CHAT_LIST (member)",
+         "CREATE INDEX IF NOT EXISTS media_attachment_msg ON MEDIA_ATTACHMENT (msg_id)",
+         "CREATE INDEX IF NOT EXISTS notification_msg ON NOTIFICATION (msg_id)",
+         "CREATE INDEX IF NOT EXISTS message_expiry ON MESSAGE (destr_timestamp) WHERE destr_timestamp IS NOT NULL"),
+      new Migration(3, "message text search",
+         "CREATE INDEX IF NOT EXISTS message_text_search ON MESSAGE USING GIN (to_tsvector('english', msg_text))"),
+      new Migration(4, "room for password hashes",
+         "ALTER TABLE USR ALTER COLUMN password TYPE varchar(128)"),
+      new Migration(5, "unread counters",
+         "ALTER TABLE NOTIFICATION ADD COLUMN IF NOT EXISTS chat_id integer",
+         "UPDATE NOTIFICATION n SET chat_id = m.chat_id FROM MESSAGE m WHERE m.msg_id = n.msg_id AND n.chat_id IS NULL",
+         "CREATE INDEX IF NOT EXISTS notification_user_chat ON NOTIFICATION (usr_login, chat_id, msg_id)",
+         "CREATE TABLE IF NOT EXISTS CHAT_UNREAD (usr_login char(50), chat_id integer, unread integer NOT NULL DEFAULT 0, " +
+         "last_read integer NOT NULL DEFAULT 0, PRIMARY KEY (usr_login, chat_id), " +
+         "FOREIGN KEY (usr_login) REFERENCES USR (login) ON DELETE CASCADE, FOREIGN KEY (chat_id) REFERENCES CHAT (chat_id) ON DELETE CASCADE)",
+         // the stored notifications are the unread messages known so far
+         "INSERT INTO CHAT_UNREAD (usr_login, chat_id, unread) SELECT n.usr_login, n.chat_id, count(*) FROM NOTIFICATION n " +
+         "JOIN CHAT_LIST l ON (l.chat_id = n.chat_id AND l.member = n.usr_login) GROUP BY n.usr_login, n.chat_id ON CONFLICT DO NOTHING"),
+      // only these plain text passwords are still accepted, see PasswordHash
+      new Migration(6, "mark the passwords stored before hashing",
+         "UPDATE USR SET password = 'plain$' || rtrim(password) WHERE NOT " + PasswordHash.IS_HASH_SQL),
+      // deleting a user, chat or message takes what refers to it along
+      new Migration(7, "cascade deletes",
+         cascade("CHAT", "init_sender", "USR (login)"),
+         cascade("CHAT_LIST", "chat_id", "CHAT (chat_id)"),
+         cascade("CHAT_LIST", "member", "USR (login)"),
+         cascade("MESSAGE", "sender_login", "USR (login)"),
+         cascade("MESSAGE", "chat_id", "CHAT (chat_id)"),
+         cascade("MEDIA_ATTACHMENT", "msg_id", "MESSAGE (msg_id)"),
+         cascade("NOTIFICATION", "usr_login", "USR (login)"),
+         cascade("NOTIFICATION", "msg_id", "MESSAGE (msg_id)")));
+
+   static final List<RequiredIndex> REQUIRED = List.of(
+      new RequiredIndex("message", "chat_id, msg_timestamp", "chat history and pages"),
+      new RequiredIndex("message", "destr_timestamp", "expired message sweep"),
+      new RequiredIndex("message", "to_tsvector('english'::regconfig, (msg_text)::text)", "message search"),
+      new RequiredIndex("chat_list", "member", "chat list of a user"),
+      new RequiredIndex("chat_list", "chat_id", "chat members"),
+      new RequiredIndex("media_attachment", "msg_id", "attachments of a page"),
+      new RequiredIndex("notification", "usr_login", "notifications of a user"),
+      new RequiredIndex("notification", "msg_id", "notifications of a deleted message"),
+      new RequiredIndex("notification", "usr_login, chat_id", "notifications of a read chat"),
+      new RequiredIndex("chat_unread", "usr_login", "unread counters of a user"),
+      new RequiredIndex("usr", "phonenum", "contact by phone number"),
+      new RequiredIndex("user_list_contains", "list_id", "contact and block lists"));
+
+   /*
+    * Replaces the foreign key of a column, under the name PostgreSQL gives
+    * it by default, with one that cascades deletes
+    */
+   private static String cascade (String table, String column, String references) {
+      String name = table.toLowerCase() + "_" + column.toLowerCase() + "_fkey";
+      return "ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + name + ", ADD CONSTRAINT " + name +
+             " FOREIGN KEY (" + column + ") REFERENCES " + references + " ON DELETE CASCADE";
+   }//end cascade
+
+   private final Messenger _esql;
+
+   SchemaMigrator (Messenger esql) {
+      this._esql = esql;
+   }//end SchemaMigrator
+
+   /**
+    * Applies the migrations the database has not seen yet.
+    *
+    * @return the schema version now
+    * @throws java.sql.SQLException when a migration failed; it was rolled back
+    */
+   int migrate () throws SQLException {
+      this._esql.inTransaction(() -> {
+         lock();
+         return this._esql.executeUpdate("CREATE TABLE IF NOT EXISTS SCHEMA_VERSION (version integer PRIMARY KEY, " +
+                                         "description varchar(100) NOT NULL, applied_at timestamp NOT NULL DEFAULT now())");
+      });
+      int version = version();
+      for (Migration migration : MIGRATIONS) {
+         if (migration.version <= version) continue;
+         boolean applied = this._esql.inTransaction(() -> {
+            lock();
+            // another process may have applied it while this one waited
+            if (version() >= migration.version) return false;
+            for (String statement : migration.statements)
+               this._esql.executeUpdate(statement);
+            this._esql.executeUpdate("INSERT INTO SCHEMA_VERSION (version, description) VALUES (?, ?)",
+                                     migration.version, migration.description);
+            return true;
+         });
+         if (applied) System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+         version = migration.version;
+      }//end for
+      return version;
+   }//end migrate
+
+   /*
+    * Waits for the other starts to finish their migration; the lock is
+    * released with the transaction
+    */
+   private void lock () throws SQLException {
+      this._esql.query("SELECT pg_advisory_xact_lock(?)", rs -> rs.next(), LOCK_KEY);
+   }//end lock
+
+   private int version () throws SQLException {
+      return this._esql.query("SELECT coalesce(max(version), 0) FROM SCHEMA_VERSION", rs -> rs.next() ? rs.getInt(1) : 0);
+   }//end version
+
+   /**
+    * Returns the required indexes the catalog does not list.  An index
+    * serves a requirement when its columns start with the required ones.
+    */
+   List<RequiredIndex> missingIndexes () throws SQLException {
+      List<String[]> indexes = this._esql.query(
+         "SELECT tablename, indexdef FROM pg_indexes WHERE schemaname = current_schema()", rs -> {
+            List<String[]> found = new ArrayList<String[]>();
+            while (rs.next()) {
+               // the key part only, not the WHERE clause of a partial index
+               String definition = rs.getString(2);
+               int where = definition.indexOf(" WHERE ");
+               found.add(new String[] { rs.getString(1), (where < 0) ? definition : definition.substring(0, where) });
+            }//end while
+            return found;
+         });
+      List<RequiredIndex> missing = new ArrayList<RequiredIndex>();
+      for (RequiredIndex required : REQUIRED) {
+         boolean present = false;
+         for (String[] index : indexes)
+            present |= index[0].equals(required.table) && index[1].contains("(" + required.columns);
+         if (!present) missing.add(required);
+      }//end for
+      return missing;
+   }//end missingIndexes
+
+   /**
+    * Migrates the schema unless messenger.schema.migrate is off, then
+    * checks the required indexes.
+    *
+    * @throws java.sql.SQLException when a migration failed, or an index is
+    *         missing and messenger.schema.strict is set
+    */
+   void run () throws SQLException {
+      if (MIGRATE) migrate();
+      List<RequiredIndex> missing = missingIndexes();
+      if (missing.isEmpty()) return;
+      StringBuilder message = new StringBuilder("Missing indexes, these queries will scan the whole table:");
+      for (RequiredIndex index : missing)
+         message.append("\n\t").append(index.usedBy).append(": ").append(index.table).append(" (").append(index.columns).append(")");
+      if (STRICT) throw new SQLException(message.toString());
+      System.err.println("Warning: " + message);
+   }//end run
+
+}//end SchemaMigrator
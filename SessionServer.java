@@ -0,0 +1,98 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves many concurrent Messenger sessions from one process.
+ * Each client connecting to the local TCP port gets its own session, run
+ * on its own virtual thread, that drives the same menus as the console
+ * version over the socket streams.  All sessions share the Messenger
+ * instance and therefore its connection pool.
+ *
+ */
+class SessionServer {
+
+   private final Messenger _esql;
+   private final int _port;
+   private final AtomicInteger _active = new AtomicInteger();
+
+   /**
+    * Creates a new server for the given Messenger instance
+    *
+    * @param esql the shared Messenger instance
+    * @param port the local TCP port to listen on
+    */
+   SessionServer (Messenger esql, int port) {
+      this._esql = esql;
+      this._port = port;
+   }//end SessionServer
+
+   /**
+    * Accepts clients until the process is stopped.
+    *
+    * @throws java.io.IOException when the port could not be opened
+    */
+   void run () throws IOException {
+      ExecutorService sessions = newSessionExecutor();
+      try (ServerSocket server = new ServerSocket(this._port, 128, InetAddress.getLoopbackAddress())) {
+         System.out.println("Listening for sessions on " + server.getLocalSocketAddress());
+         while (true) {
+            Socket client = server.accept();
+            sessions.execute(() -> serve(client));
+         }//end while
+      }finally{
+         sessions.shutdownNow();
+      }//end try
+   }//end run
+
+   /*
+    * Runs the menus of one client until it exits or disconnects.
+    */
+   private void serve (Socket client) {
+      this._active.incrementAndGet();
+      try (Socket socket = client) {
+         PrintStream output = new PrintStream(
+            new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
+         BufferedReader input = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)) {
+            // prompts are written without a newline, so push them out
+            // before waiting for the answer
+            @Override
+            public String readLine () throws IOException {
+               output.flush();
+               return super.readLine();
+            }
+         };
+         Messenger.runSession(this._esql, input, output);
+      }catch (IOException | UncheckedIOException e){
+         // the client went away.
+      }finally{
+         this._active.decrementAndGet();
+      }//end try
+   }//end serve
+
+   int getActiveSessions () { return this._active.get(); }
+
+   /**
+    * Returns an executor running each task on its own virtual thread, or
+    * on cached platform threads when the runtime has no virtual threads.
+    */
+   static ExecutorService newSessionExecutor () {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (ReflectiveOperationException e){
+         return Executors.newCachedThreadPool();
+      }//end try
+   }//end newSessionExecutor
+
+}//end SessionServer
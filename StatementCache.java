@@ -0,0 +1,80 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the prepared statements of one physical connection,
+ * keyed by their SQL text.  The least recently used statement is closed
+ * once the cache grows past its capacity, so the server keeps a bounded
+ * number of parsed and planned statements per connection.
+ *
+ */
+class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+
+   private static final long serialVersionUID = 1L;
+
+   // default number of statements kept open per connection
+   static final int DEFAULT_CAPACITY = Integer.getInteger("messenger.statementCache.size", 64);
+
+   // connection the statements were prepared on
+   private final transient Connection _connection;
+
+   // maximum number of open statements
+   private final int _capacity;
+
+   /**
+    * Creates a new statement cache for a connection
+    *
+    * @param connection the physical connection
+    * @param capacity the maximum number of statements kept open
+    */
+   StatementCache (Connection connection, int capacity) {
+      super(16, 0.75f, true);
+      this._connection = connection;
+      this._capacity = capacity;
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the given SQL text, preparing it on
+    * the connection the first time it is seen.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @return the prepared statement
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = get(sql);
+      if (stmt == null || stmt.isClosed()) {
+         stmt = this._connection.prepareStatement(sql);
+         put(sql, stmt);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   @Override
+   protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+      if (size() <= this._capacity) return false;
+      closeQuietly(eldest.getValue());
+      return true;
+   }//end removeEldestEntry
+
+   /**
+    * Closes every cached statement.
+    */
+   void closeAll () {
+      for (PreparedStatement stmt : values())
+         closeQuietly(stmt);
+      clear();
+   }//end closeAll
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is an inverted index over the texts of one chat, mapping
+ * each word to the positions of the messages containing it.  Positions
+ * are only ever added: an edited message is added again under its new
+ * words, and a deleted one stays listed.  Search therefore takes the
+ * positions listed under the rarest query word as candidates and checks
+ * each against the current text, which also gives its rank.  It is not
+ * thread safe; the chat lock guards it.
+ *
+ */
+class TextIndex {
+
+   private final Map<String, int[]> _postings = new HashMap<String, int[]>();
+
+   /**
+    * Splits a text into its distinct words, lower case, so that "Hello,
+    * hello!" is the single word "hello".
+    */
+   static String[] terms (String text) {
+      List<String> terms = new ArrayList<String>();
+      int length = text.length();
+      for (int i = 0; i < length; ) {
+         while (i < length && !Character.isLetterOrDigit(text.charAt(i))) ++i;
+         int start = i;
+         while (i < length && Character.isLetterOrDigit(text.charAt(i))) ++i;
+         if (i > start) {
+            String term = text.substring(start, i).toLowerCase();
+            if (!terms.contains(term)) terms.add(term);
+         }//end if
+      }//end for
+      return terms.toArray(new String[0]);
+   }//end terms
+
+   /**
+    * Lists a message under every word of its text.
+    */
+   void add (int position, String text) {
+      for (String term : terms(text)) {
+         // the first element is the number of positions that follow
+         int[] postings = this._postings.get(term);
+         if (postings == null) {
+            postings = new int[4];
+         } else if (postings[0] + 1 == postings.length) {
+            postings = Arrays.copyOf(postings, postings.length * 2);
+         }//end if
+         postings[++postings[0]] = position;
+         this._postings.put(term, postings);
+      }//end for
+   }//end add
+
+   /**
+    * Returns the positions, in ascending order, that may hold all of the
+    * given words; they still have to be checked with rank.
+    */
+   int[] candidates (String[] terms) {
+      int[] rarest = null;
+      for (String term : terms) {
+         int[] postings = this._postings.get(term);
+         if (postings == null) return new int[0];
+         if (rarest == null || postings[0] < rarest[0]) rarest = postings;
+      }//end for
+      if (rarest == null) return new int[0];
+      int[] positions = Arrays.copyOfRange(rarest, 1, rarest[0] + 1);
+      // edits list a position again, out of order
+      Arrays.sort(positions);
+      int unique = 0;
+      for (int i = 0; i < positions.length; ++i)
+         if (unique == 0 || positions[unique - 1] != positions[i]) positions[unique++] = positions[i];
+      return Arrays.copyOf(positions, unique);
+   }//end candidates
+
+   /**
+    * Returns how often the words occur in a text, or 0 when the text is
+    * deleted or lacks one of them.
+    */
+   static int rank (String text, String[] terms) {
+      if (text == null) return 0;
+      int[] counts = new int[terms.length];
+      int length = text.length();
+      for (int i = 0; i < length; ) {
+         while (i < length && !Character.isLetterOrDigit(text.charAt(i))) ++i;
+         int start = i;
+         while (i < length && Character.isLetterOrDigit(text.charAt(i))) ++i;
+         if (i == start) continue;
+         for (int t = 0; t < terms.length; ++t)
+            if (terms[t].length() == i - start && text.regionMatches(true, start, terms[t], 0, i - start)) counts[t]++;
+      }//end for
+      int rank = 0;
+      for (int count : counts) {
+         if (count == 0) return 0;
+         rank += count;
+      }//end for
+      return rank;
+   }//end rank
+
+}//end TextIndex
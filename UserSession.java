@@ -0,0 +1,36 @@
+/**
+ * This class holds the row of a user who logged in: the ids of their
+ * contact and block lists and their status, read once by the login
+ * query.  It stays bound to the thread serving the session until the
+ * user logs out, so later operations of the same user take the list ids
+ * from here instead of reading them again.
+ *
+ */
+final class UserSession {
+
+   final String login;
+   final int contactList;
+   final int blockList;
+   final String status;
+
+   UserSession (String login, int contactList, int blockList, String status) {
+      this.login = login;
+      this.contactList = contactList;
+      this.blockList = blockList;
+      this.status = status;
+   }//end UserSession
+
+   /**
+    * @param type UserStore.CONTACTS or UserStore.BLOCKS
+    * @return the id of that list of the user
+    */
+   int list (int type) {
+      return (type == UserStore.BLOCKS) ? this.blockList : this.contactList;
+   }//end list
+
+   @Override
+   public String toString () {
+      return this.login;
+   }//end toString
+
+}//end UserSession
@@ -0,0 +1,86 @@
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * This interface defines the operations on users and their contact and
+ * block lists that the menus need, independent of where users are kept.
+ *
+ */
+interface UserStore {
+
+   // the lists of a user, as numbered by Messenger.getlistid
+   int CONTACTS = 0;
+   int BLOCKS = 1;
+
+   /**
+    * Creates a user with an empty contact and block list; only a hash of
+    * the password is stored.
+    *
+    * @throws java.sql.SQLException when the login or phone number is taken
+    */
+   void createUser (String login, String password, String phone) throws SQLException;
+
+   /**
+    * Checks a login and password, reading the user's row in the same
+    * query.
+    *
+    * @return the session of the user, or null when the login does not
+    *         exist or the password is wrong
+    */
+   UserSession logIn (String login, String password) throws SQLException;
+
+   boolean exists (String login) throws SQLException;
+
+   /**
+    * @return the login of the user with the phone number, or null
+    */
+   String loginByPhone (String phone) throws SQLException;
+
+   /**
+    * Adds a user to the contact or block list of another.
+    *
+    * @param list CONTACTS or BLOCKS
+    * @return false when the member was already in the list
+    */
+   boolean addToList (String login, int list, String member) throws SQLException;
+
+   /**
+    * Adds every other user whose phone number is in an address book to
+    * the contact list of a user, resolving all numbers at once.
+    *
+    * @param phones the phone numbers of the address book
+    * @return the numbers that belong to a user, with that user's login
+    */
+   Map<String, String> syncContacts (String login, String[] phones) throws SQLException;
+
+   /**
+    * Removes a user from the contact or block list of another.
+    *
+    * @param list CONTACTS or BLOCKS
+    * @return false when the member was not in the list
+    */
+   boolean removeFromList (String login, int list, String member) throws SQLException;
+
+   /**
+    * Lists the contacts of a user with their status, as the columns
+    * list_member and status.
+    *
+    * @return the number of contacts
+    */
+   int listContacts (String login, RowSink sink) throws SQLException;
+
+   /**
+    * Lists the users blocked by a user, as the column list_member.
+    *
+    * @return the number of blocked users
+    */
+   int listBlocked (String login, RowSink sink) throws SQLException;
+
+   /**
+    * Deletes a user, with their memberships and lists.
+    *
+    * @return false when the login and password do not match a user
+    */
+   boolean deleteUser (String login, String password) throws SQLException;
+
+}//end UserStore
@@ -0,0 +1,59 @@
+package messenger.bench;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.File;
+import java.io.IOException;
+import javax.sql.DataSource;
+
+/**
+ * This class starts the embedded PostgreSQL server the benchmarks run
+ * against.  Its data directory survives between runs, so the data set is
+ * generated once and every later fork only starts the server.  The schema
+ * is created and upgraded by SchemaMigrator, through a Messenger connected
+ * before the data set is generated, so it is the schema Messenger runs on.
+ *
+ */
+final class BenchmarkDatabase {
+
+   static final String DATA_DIR = System.getProperty("messenger.bench.dataDir", "target/pgdata");
+
+   private static EmbeddedPostgres _postgres = null;
+   private static int _users = 0;
+
+   private BenchmarkDatabase () {
+   }//end BenchmarkDatabase
+
+   /**
+    * Starts the server, once per JVM, and seeds it when needed.
+    *
+    * @return the port the server listens on
+    */
+   static synchronized int start () throws Throwable {
+      if (_postgres == null) {
+         _postgres = EmbeddedPostgres.builder()
+                        .setDataDirectory(new File(DATA_DIR))
+                        .setCleanDataDirectory(false)
+                        .start();
+         MessengerClient.connect("postgres", _postgres.getPort(), "postgres").close();
+         new DataGenerator(_postgres.getPostgresDatabase()).seed();
+      }//end if
+      _users++;
+      return _postgres.getPort();
+   }//end start
+
+   static synchronized DataSource dataSource () {
+      return _postgres.getPostgresDatabase();
+   }//end dataSource
+
+   /**
+    * Stops the server once its last user is done.
+    */
+   static synchronized void stop () throws IOException {
+      if (--_users == 0) {
+         _postgres.close();
+         _postgres = null;
+      }//end if
+   }//end stop
+
+}//end BenchmarkDatabase
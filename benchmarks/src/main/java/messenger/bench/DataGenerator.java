@@ -0,0 +1,277 @@
+package messenger.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/**
+ * This class fills the schema created by Messenger's own migrations with
+ * a synthetic data set sized for the benchmarks:
+ *
+ *   - USERS users named user1 .. userN, all with the password "password";
+ *   - one two-member chat per entry of HISTORY_SIZES holding that many messages;
+ *   - one chat per entry of FANOUT_SIZES with that many members;
+ *   - user1 in PRIVATE_CHATS private and GROUP_CHATS group chats of
+ *     MESSAGES_PER_CHAT messages each, for the chat listing.
+ *
+ * The chats are recorded by name in the bench_chat table.  The data set is
+ * only generated when the database does not hold the current VERSION.
+ * The same data set can be put into an InMemoryStore through its
+ * UserStore and MessageStore operations instead.
+ *
+ */
+final class DataGenerator {
+
+   static final int VERSION = 2;
+
+   static final int USERS = 1000;
+   static final int[] HISTORY_SIZES = { 1000, 100000, 1000000 };
+   static final int[] FANOUT_SIZES = { 2, 10, 100, 1000 };
+   static final int PRIVATE_CHATS = 100;
+   static final int GROUP_CHATS = 20;
+   static final int GROUP_SIZE = 5;
+   static final int MESSAGES_PER_CHAT = 10;
+
+   static final String PASSWORD = "password";
+
+   private final DataSource _dataSource;
+
+   DataGenerator (DataSource dataSource) {
+      this._dataSource = dataSource;
+   }//end DataGenerator
+
+   static String login (int n) {
+      return "user" + n;
+   }//end login
+
+   static String historyChat (int size) {
+      return "history-" + size;
+   }//end historyChat
+
+   static String fanoutChat (int members) {
+      return "fanout-" + members;
+   }//end fanoutChat
+
+   /**
+    * Generates the data set unless it is already there.  The schema must
+    * have been migrated first.
+    */
+   void seed () throws Throwable {
+      try (Connection conn = this._dataSource.getConnection()) {
+         if (seeded(conn)) return;
+         System.out.println("Generating the benchmark data set...");
+         conn.setAutoCommit(false);
+         try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE bench_chat (name varchar(32) PRIMARY KEY, chat_id integer NOT NULL)");
+            stmt.execute("CREATE TABLE bench_seed (version integer NOT NULL)");
+         }//end try
+         users(conn);
+         for (int size : HISTORY_SIZES)
+            messages(conn, chat(conn, historyChat(size), members(1, 2)), members(1, 2), size);
+         for (int size : FANOUT_SIZES)
+            chat(conn, fanoutChat(size), members(1, size));
+         for (int i = 0; i < PRIVATE_CHATS; ++i) {
+            String[] members = { login(1), login(2 + i % (USERS - 1)) };
+            messages(conn, chat(conn, "private-" + i, members), members, MESSAGES_PER_CHAT);
+         }//end for
+         for (int i = 0; i < GROUP_CHATS; ++i) {
+            String[] members = members(1, GROUP_SIZE);
+            for (int m = 1; m < GROUP_SIZE; ++m)
+               members[m] = login(2 + (i * GROUP_SIZE + m) % (USERS - 1));
+            messages(conn, chat(conn, "group-" + i, members), members, MESSAGES_PER_CHAT);
+         }//end for
+         update(conn, "INSERT INTO bench_seed VALUES (?)", VERSION);
+         conn.commit();
+         conn.setAutoCommit(true);
+         try (Statement stmt = conn.createStatement()) {
+            stmt.execute("VACUUM ANALYZE");
+         }//end try
+         System.out.println("Done");
+      }//end try
+   }//end seed
+
+   /**
+    * Generates the data set into an empty InMemoryStore.
+    *
+    * @return the ids of the generated chats by name
+    */
+   static Map<String, Integer> seed (Object store) throws Throwable {
+      Class<?> users = Class.forName("UserStore");
+      Class<?> messages = Class.forName("MessageStore");
+      MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(users, MethodHandles.lookup());
+      MethodHandle createUser = lookup.findVirtual(users, "createUser",
+            MethodType.methodType(void.class, String.class, String.class, String.class)).bindTo(store);
+      MethodHandle addToList = lookup.findVirtual(users, "addToList",
+            MethodType.methodType(boolean.class, String.class, int.class, String.class)).bindTo(store);
+      MethodHandle createChat = lookup.findVirtual(messages, "createChat",
+            MethodType.methodType(int.class, String.class, String.class)).bindTo(store);
+      MethodHandle addMember = lookup.findVirtual(messages, "addMember",
+            MethodType.methodType(boolean.class, int.class, String.class)).bindTo(store);
+      MethodHandle sendMessage = lookup.findVirtual(messages, "sendMessage",
+            MethodType.methodType(int.class, String.class, int.class, String.class, String[].class)).bindTo(store);
+      int blocks = (int) lookup.findStaticGetter(users, "BLOCKS", int.class).invoke();
+
+      for (int i = 1; i <= USERS; ++i)
+         createUser.invoke(login(i), PASSWORD, "555" + String.format("%07d", i));
+      addToList.invoke(login(1), blocks, login(USERS));
+
+      Map<String, Integer> chats = new HashMap<String, Integer>();
+      String[] noone = new String[0];
+      for (int size : HISTORY_SIZES) {
+         String[] members = members(1, 2);
+         int chatId = chat(createChat, addMember, chats, historyChat(size), members);
+         for (int g = 1; g <= size; ++g)
+            sendMessage.invoke(members[g % 2], chatId, "Message " + g + " of a generated conversation", noone);
+      }//end for
+      for (int size : FANOUT_SIZES)
+         chat(createChat, addMember, chats, fanoutChat(size), members(1, size));
+      for (int i = 0; i < PRIVATE_CHATS + GROUP_CHATS; ++i) {
+         String[] members;
+         if (i < PRIVATE_CHATS) {
+            members = new String[] { login(1), login(2 + i % (USERS - 1)) };
+         } else {
+            members = members(1, GROUP_SIZE);
+            for (int m = 1; m < GROUP_SIZE; ++m)
+               members[m] = login(2 + ((i - PRIVATE_CHATS) * GROUP_SIZE + m) % (USERS - 1));
+         }//end if
+         String name = i < PRIVATE_CHATS ? "private-" + i : "group-" + (i - PRIVATE_CHATS);
+         int chatId = chat(createChat, addMember, chats, name, members);
+         for (int g = 1; g <= MESSAGES_PER_CHAT; ++g)
+            sendMessage.invoke(members[g % members.length], chatId, "Message " + g + " of a generated conversation", noone);
+      }//end for
+      return chats;
+   }//end seed
+
+   private static int chat (MethodHandle createChat, MethodHandle addMember, Map<String, Integer> chats,
+                            String name, String[] members) throws Throwable {
+      int chatId = (int) createChat.invoke(members[0], members.length > 2 ? "group" : "private");
+      for (int i = 1; i < members.length; ++i)
+         addMember.invoke(chatId, members[i]);
+      chats.put(name, chatId);
+      return chatId;
+   }//end chat
+
+   private static boolean seeded (Connection conn) throws SQLException {
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT to_regclass('bench_seed') IS NOT NULL")) {
+         rs.next();
+         if (!rs.getBoolean(1)) return false;
+      }//end try
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT max(version) FROM bench_seed")) {
+         rs.next();
+         if (rs.getInt(1) == VERSION) return true;
+      }//end try
+      throw new SQLException("The benchmark database holds another data set version, remove "
+                             + BenchmarkDatabase.DATA_DIR + " to regenerate it");
+   }//end seeded
+
+   /*
+    * Users with their block and contact lists; user1 blocks the last user,
+    * so the blocked sender filters have something to filter.  They share
+    * one password hash, made by Messenger the way it hashes at sign up.
+    */
+   private static void users (Connection conn) throws Throwable {
+      Class<?> hasher = Class.forName("PasswordHash");
+      String hash = (String) MethodHandles.privateLookupIn(hasher, MethodHandles.lookup())
+         .findStatic(hasher, "hash", MethodType.methodType(String.class, String.class)).invoke(PASSWORD);
+      update(conn, "INSERT INTO USER_LIST (list_id, list_type) "
+                   + "SELECT g, CASE WHEN g % 2 = 1 THEN 'block' ELSE 'contact' END FROM generate_series(1, ?) g", 2 * USERS);
+      update(conn, "SELECT setval('user_list_list_id_seq', ?)", 2 * USERS);
+      update(conn, "INSERT INTO USR (login, phoneNum, password, status, block_list, contact_list) "
+                   + "SELECT 'user' || g, '555' || lpad(g::text, 7, '0'), ?, 'Available', 2 * g - 1, 2 * g "
+                   + "FROM generate_series(1, ?) g", hash, USERS);
+      update(conn, "INSERT INTO USER_LIST_CONTAINS (list_id, list_member) VALUES (1, ?)", login(USERS));
+   }//end users
+
+   private static String[] members (int first, int count) {
+      String[] members = new String[count];
+      for (int i = 0; i < count; ++i)
+         members[i] = login(first + i);
+      return members;
+   }//end members
+
+   private static int chat (Connection conn, String name, String[] members) throws SQLException {
+      int chatId;
+      try (PreparedStatement stmt = conn.prepareStatement(
+              "INSERT INTO CHAT (chat_type, init_sender) VALUES (?, ?) RETURNING chat_id")) {
+         stmt.setString(1, members.length > 2 ? "group" : "private");
+         stmt.setString(2, members[0]);
+         try (ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            chatId = rs.getInt(1);
+         }//end try
+      }//end try
+      update(conn, "INSERT INTO CHAT_LIST (chat_id, member) SELECT ?, m FROM unnest(?) AS m", chatId,
+             conn.createArrayOf("varchar", members));
+      update(conn, "INSERT INTO bench_chat (name, chat_id) VALUES (?, ?)", name, chatId);
+      return chatId;
+   }//end chat
+
+   /*
+    * Messages one second apart, ending now, sent in turn by the members;
+    * every hundredth message has an attachment
+    */
+   private static void messages (Connection conn, int chatId, String[] members, int count) throws SQLException {
+      update(conn, "INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_login, chat_id) "
+                   + "SELECT 'Message ' || g || ' of a generated conversation', now() - make_interval(secs => ? - g), "
+                   + "(?::varchar[])[1 + g % ?], ? FROM generate_series(1, ?) g",
+             count, conn.createArrayOf("varchar", members), members.length, chatId, count);
+      update(conn, "INSERT INTO MEDIA_ATTACHMENT (media_type, URL, msg_id) "
+                   + "SELECT 'photo', 'https://example.com/media/' || msg_id, msg_id FROM MESSAGE "
+                   + "WHERE chat_id = ? AND msg_id % 100 = 0", chatId);
+   }//end messages
+
+   private static void update (Connection conn, String sql, Object... params) throws SQLException {
+      try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+         for (int i = 0; i < params.length; ++i)
+            stmt.setObject(i + 1, params[i]);
+         stmt.execute();
+      }//end try
+   }//end update
+
+   /**
+    * Returns the id of the newest message.
+    */
+   static int lastMessage (DataSource dataSource) throws SQLException {
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT coalesce(max(msg_id), 0) FROM MESSAGE")) {
+         rs.next();
+         return rs.getInt(1);
+      }//end try
+   }//end lastMessage
+
+   /**
+    * Deletes the messages, and their notifications, sent after the given one.
+    */
+   static void deleteMessagesAfter (DataSource dataSource, int msgId) throws SQLException {
+      try (Connection conn = dataSource.getConnection()) {
+         update(conn, "DELETE FROM NOTIFICATION WHERE msg_id > ?", msgId);
+         update(conn, "DELETE FROM MESSAGE WHERE msg_id > ?", msgId);
+      }//end try
+   }//end deleteMessagesAfter
+
+   /**
+    * Looks up a generated chat by name.
+    */
+   static int chatId (DataSource dataSource, String name) throws SQLException {
+      try (Connection conn = dataSource.getConnection();
+           PreparedStatement stmt = conn.prepareStatement("SELECT chat_id FROM bench_chat WHERE name = ?")) {
+         stmt.setString(1, name);
+         try (ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) throw new SQLException("No generated chat named " + name);
+            return rs.getInt(1);
+         }//end try
+      }//end try
+   }//end chatId
+
+}//end DataGenerator
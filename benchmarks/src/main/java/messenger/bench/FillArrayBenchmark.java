@@ -0,0 +1,46 @@
+package messenger.bench;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the whole history of a chat with fillArray.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FillArrayBenchmark {
+
+   @Param({ "1000", "100000", "1000000" })
+   public int messages;
+
+   private int _chatId;
+
+   @Setup
+   public void findChat (MessengerState state) throws SQLException {
+      this._chatId = state.chatId(DataGenerator.historyChat(this.messages));
+   }//end findChat
+
+   @Benchmark
+   public List<?> fillArray (MessengerState state) throws Throwable {
+      return state.client.fillArray(DataGenerator.login(1), this._chatId);
+   }//end fillArray
+
+}//end FillArrayBenchmark
@@ -0,0 +1,124 @@
+package messenger.bench;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * This class calls the Messenger operations under benchmark.  Messenger
+ * lives in the default package, which cannot be imported, so every call
+ * goes through a method handle looked up once.  Operations that prompt
+ * for input read it from the session input of the calling thread, and
+ * what they print goes to a discarded session output.
+ *
+ */
+final class MessengerClient {
+
+   private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+   private final Object _esql;
+   private final Object _store;
+   private final MethodHandle _cleanup;
+   private final MethodHandle _fillArray;
+   private final MethodHandle _sendMessage;
+   private final MethodHandle _listChats;
+   private final MethodHandle _logIn;
+   private final ThreadLocal<BufferedReader> _sessionIn;
+   private final ThreadLocal<PrintStream> _sessionOut;
+
+   /**
+    * Creates a Messenger connected to the given local database.
+    */
+   static MessengerClient connect (String dbname, int port, String user) throws Throwable {
+      Class<?> messenger = Class.forName("Messenger");
+      Object esql = lookup(messenger).findConstructor(messenger,
+            MethodType.methodType(void.class, String.class, String.class, String.class, String.class))
+         .invoke(dbname, String.valueOf(port), user, "");
+      return new MessengerClient(esql, null);
+   }//end connect
+
+   /**
+    * Creates a Messenger that keeps its data in an empty InMemoryStore.
+    */
+   static MessengerClient inMemory () throws Throwable {
+      Class<?> messenger = Class.forName("Messenger");
+      Class<?> users = Class.forName("UserStore");
+      Class<?> messages = Class.forName("MessageStore");
+      Class<?> memory = Class.forName("InMemoryStore");
+      Object store = lookup(memory).findConstructor(memory, MethodType.methodType(void.class)).invoke();
+      Object esql = lookup(messenger).findConstructor(messenger, MethodType.methodType(void.class, users, messages))
+         .invoke(store, store);
+      return new MessengerClient(esql, store);
+   }//end inMemory
+
+   private static MethodHandles.Lookup lookup (Class<?> type) throws IllegalAccessException {
+      return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+   }//end lookup
+
+   @SuppressWarnings("unchecked")
+   private MessengerClient (Object esql, Object store) throws Throwable {
+      Class<?> messenger = esql.getClass();
+      MethodHandles.Lookup lookup = lookup(messenger);
+      this._esql = esql;
+      this._store = store;
+      this._cleanup = lookup.findVirtual(messenger, "cleanup", MethodType.methodType(void.class));
+      this._fillArray = lookup.findStatic(messenger, "fillArray",
+            MethodType.methodType(List.class, messenger, String.class, String.class));
+      this._sendMessage = lookup.findStatic(messenger, "sendMessage",
+            MethodType.methodType(int.class, messenger, String.class, String.class, String.class));
+      this._listChats = lookup.findStatic(messenger, "ListChats",
+            MethodType.methodType(void.class, messenger, String.class));
+      this._logIn = lookup.findStatic(messenger, "LogIn",
+            MethodType.methodType(Class.forName("UserSession", false, messenger.getClassLoader()), messenger));
+      this._sessionIn = (ThreadLocal<BufferedReader>) lookup.findStaticGetter(messenger, "sessionIn", ThreadLocal.class).invoke();
+      this._sessionOut = (ThreadLocal<PrintStream>) lookup.findStaticGetter(messenger, "sessionOut", ThreadLocal.class).invoke();
+   }//end MessengerClient
+
+   /**
+    * @return the InMemoryStore of an in-memory Messenger, to be filled by
+    *         the DataGenerator; null when connected to a database
+    */
+   Object store () {
+      return this._store;
+   }//end store
+
+   /*
+    * Makes the next prompts of the calling thread read the given lines
+    */
+   private void input (String lines) {
+      this._sessionIn.set(new BufferedReader(new StringReader(lines)));
+      this._sessionOut.set(DISCARD);
+   }//end input
+
+   List<?> fillArray (String login, int chatId) throws Throwable {
+      return (List<?>) this._fillArray.invoke(this._esql, login, String.valueOf(chatId));
+   }//end fillArray
+
+   int sendMessage (String login, int chatId, String text) throws Throwable {
+      return (int) this._sendMessage.invoke(this._esql, login, String.valueOf(chatId), text);
+   }//end sendMessage
+
+   /**
+    * Lists the chats of a user, answering the chat prompt that follows
+    * the listing with a chat the user is not in.
+    */
+   void listChats (String login) throws Throwable {
+      input("0\n");
+      this._listChats.invoke(this._esql, login);
+   }//end listChats
+
+   Object logIn (String login, String password) throws Throwable {
+      input(login + "\n" + password + "\n");
+      return this._logIn.invoke(this._esql);
+   }//end logIn
+
+   void close () throws Throwable {
+      this._cleanup.invoke(this._esql);
+   }//end close
+
+}//end MessengerClient
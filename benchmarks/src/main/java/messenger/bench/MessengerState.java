@@ -0,0 +1,56 @@
+package messenger.bench;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One Messenger instance shared by every thread of a benchmark.  With the
+ * jdbc store it is connected to the embedded database, and messages sent
+ * during the trial are deleted again afterwards, so runs do not grow the
+ * data set.  With the memory store it runs on an InMemoryStore that is
+ * generated for the trial.
+ *
+ */
+@State(Scope.Benchmark)
+public class MessengerState {
+
+   @Param({ "jdbc", "memory" })
+   public String store;
+
+   MessengerClient client;
+   private int _lastMessage;
+   private Map<String, Integer> _chats;
+
+   @Setup(Level.Trial)
+   public void start () throws Throwable {
+      if (this.store.equals("memory")) {
+         this.client = MessengerClient.inMemory();
+         this._chats = DataGenerator.seed(this.client.store());
+         return;
+      }//end if
+      int port = BenchmarkDatabase.start();
+      this.client = MessengerClient.connect("postgres", port, "postgres");
+      this._lastMessage = DataGenerator.lastMessage(BenchmarkDatabase.dataSource());
+   }//end start
+
+   @TearDown(Level.Trial)
+   public void stop () throws Throwable {
+      this.client.close();
+      if (this._chats != null) return;
+      DataGenerator.deleteMessagesAfter(BenchmarkDatabase.dataSource(), this._lastMessage);
+      BenchmarkDatabase.stop();
+   }//end stop
+
+   int chatId (String name) throws SQLException {
+      if (this._chats != null) return this._chats.get(name);
+      return DataGenerator.chatId(BenchmarkDatabase.dataSource(), name);
+   }//end chatId
+
+}//end MessengerState
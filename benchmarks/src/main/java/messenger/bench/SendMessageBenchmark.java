@@ -0,0 +1,46 @@
+package messenger.bench;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends a message to chats of growing size, which notifies every other
+ * member.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendMessageBenchmark {
+
+   @Param({ "2", "10", "100", "1000" })
+   public int members;
+
+   private int _chatId;
+
+   @Setup
+   public void findChat (MessengerState state) throws SQLException {
+      this._chatId = state.chatId(DataGenerator.fanoutChat(this.members));
+   }//end findChat
+
+   @Benchmark
+   public int sendMessage (MessengerState state) throws Throwable {
+      return state.client.sendMessage(DataGenerator.login(1), this._chatId, "Benchmark message");
+   }//end sendMessage
+
+}//end SendMessageBenchmark
@@ -0,0 +1,156 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a window written to a segment decodes back unchanged, that
+ * a chat is loaded once and then read from the cache, and that changes
+ * are written through.
+ *
+ */
+class ChatPageCacheTest {
+
+   private static final Set<String> NOBODY = Collections.emptySet();
+
+   @TempDir
+   Path directory;
+
+   private ChatPageCache cache;
+
+   @AfterEach
+   void close () {
+      if (this.cache != null) this.cache.close();
+   }
+
+   @Test
+   void segmentRoundTrip () {
+      Timestamp time = Timestamp.valueOf("2024-02-29 23:59:59.123456789");
+      ChatPageCache.Window window = new ChatPageCache.Window();
+      window.complete = true;
+      // newest first; message 3 has two attachments, so two rows
+      window.rows.add(new ChatPageCache.Row(new Message(3, 9, "alice", "photos 📷", time, "photo", "http://x/1.jpg"), Long.MAX_VALUE));
+      window.rows.add(new ChatPageCache.Row(new Message(3, 9, "alice", "photos 📷", time, "video", "http://x/2.mp4"), Long.MAX_VALUE));
+      window.rows.add(new ChatPageCache.Row(new Message(2, 9, "bob", "", new Timestamp(time.getTime() - 1000), null, null), 1234567L));
+      window.rows.add(new ChatPageCache.Row(new Message(1, 9, "élodie", "bonjour, ça va ?", new Timestamp(0), null, null), Long.MAX_VALUE));
+
+      ByteBuffer bytes = ChatPageCache.encode(window);
+      // the length of what follows leads the segment
+      assertEquals(bytes.remaining() - 4, bytes.getInt(0));
+      ChatPageCache.Window decoded = ChatPageCache.decode(bytes);
+      assertTrue(decoded.complete);
+      assertEquals(window.rows.size(), decoded.rows.size());
+      for (int i = 0; i < window.rows.size(); ++i) {
+         assertEquals(window.rows.get(i).expires, decoded.rows.get(i).expires);
+         assertMessage(window.rows.get(i).message, decoded.rows.get(i).message);
+      }//end for
+
+      ChatPageCache.Window empty = ChatPageCache.decode(ChatPageCache.encode(new ChatPageCache.Window()));
+      assertFalse(empty.complete);
+      assertTrue(empty.rows.isEmpty());
+   }
+
+   @Test
+   void readsAreServedFromTheCache () throws Exception {
+      List<ChatPageCache.Row> rows = new ArrayList<ChatPageCache.Row>();
+      rows.add(new ChatPageCache.Row(new Message(2, 9, "bob", "second", new Timestamp(2000), null, null), Long.MAX_VALUE));
+      rows.add(new ChatPageCache.Row(new Message(1, 9, "alice", "first", new Timestamp(1000), null, null), Long.MAX_VALUE));
+      AtomicInteger loads = new AtomicInteger();
+      this.cache = cache((chatId, messages) -> {
+         loads.incrementAndGet();
+         return rows;
+      });
+      Messenger.MessagePage loaded = this.cache.latest(9, NOBODY, 10);
+      Messenger.MessagePage cached = this.cache.latest(9, NOBODY, 10);
+      assertEquals(1, loads.get());
+      assertPage(loaded, cached);
+      assertEquals(2, cached.size);
+   }
+
+   @Test
+   void disabledWithoutBudget () throws Exception {
+      this.cache = new ChatPageCache(this.directory.toString(), 0, (chatId, messages) -> {
+         throw new AssertionError("a disabled cache does not load");
+      });
+      assertFalse(this.cache.isEnabled());
+      assertNull(this.cache.latest(9, NOBODY, 10));
+   }
+
+   @Test
+   void changesAreWrittenThrough () throws Exception {
+      Timestamp time = new Timestamp(1700000000000L);
+      List<ChatPageCache.Row> rows = new ArrayList<ChatPageCache.Row>();
+      rows.add(new ChatPageCache.Row(new Message(2, 4, "bob", "second", time, null, null), Long.MAX_VALUE));
+      rows.add(new ChatPageCache.Row(new Message(1, 4, "alice", "first", time, null, null), Long.MAX_VALUE));
+      this.cache = cache((chatId, messages) -> rows);
+      assertNotNull(this.cache.latest(4, NOBODY, 10));
+
+      Timestamp later = new Timestamp(time.getTime() + 1);
+      later.setNanos(later.getNanos() + 999);
+      // long enough to grow the segment past its first page
+      String text = "x".repeat(8000);
+      this.cache.messageSent(new Message(3, 4, "alice", text, later, null, null));
+      this.cache.messageEdited(4, 1, "first, edited");
+      this.cache.messageDeleted(4, 2);
+
+      Messenger.MessagePage page = this.cache.latest(4, NOBODY, 10);
+      assertEquals(2, page.size);
+      assertMessage(new Message(3, 4, "alice", text, later, null, null), page.messages.get(0));
+      assertMessage(new Message(1, 4, "alice", "first, edited", time, null, null), page.messages.get(1));
+   }
+
+   @Test
+   void incompleteWindowKeepsItsFlag () throws Exception {
+      List<ChatPageCache.Row> rows = new ArrayList<ChatPageCache.Row>();
+      // one message more than the window, so the chat reaches past it
+      for (int id = ChatPageCache.WINDOW + 1; id > 0; --id)
+         rows.add(new ChatPageCache.Row(new Message(id, 5, "bob", "m" + id, new Timestamp(id * 1000L), null, null), Long.MAX_VALUE));
+      this.cache = cache((chatId, messages) -> rows);
+      assertNull(this.cache.latest(5, NOBODY, ChatPageCache.WINDOW + 1));
+      // served from the cache this time
+      assertNull(this.cache.latest(5, NOBODY, ChatPageCache.WINDOW + 1));
+      Messenger.MessagePage page = this.cache.latest(5, NOBODY, ChatPageCache.WINDOW);
+      assertEquals(ChatPageCache.WINDOW, page.size);
+      assertEquals(2, page.oldestId);
+   }
+
+   private ChatPageCache cache (ChatPageCache.Loader loader) {
+      return new ChatPageCache(this.directory.toString(), 64L << 20, loader);
+   }
+
+   private static void assertPage (Messenger.MessagePage expected, Messenger.MessagePage actual) {
+      assertEquals(expected.size, actual.size);
+      assertEquals(expected.newestId, actual.newestId);
+      assertEquals(expected.newestTime, actual.newestTime);
+      assertEquals(expected.oldestId, actual.oldestId);
+      assertEquals(expected.oldestTime, actual.oldestTime);
+      assertEquals(expected.messages.size(), actual.messages.size());
+      for (int i = 0; i < expected.messages.size(); ++i)
+         assertMessage(expected.messages.get(i), actual.messages.get(i));
+   }
+
+   private static void assertMessage (Message expected, Message actual) {
+      assertEquals(expected.id, actual.id);
+      assertEquals(expected.chatId, actual.chatId);
+      assertEquals(expected.sender, actual.sender);
+      assertEquals(expected.text, actual.text);
+      assertEquals(expected.time, actual.time);
+      assertEquals(expected.time.getNanos(), actual.time.getNanos());
+      assertEquals(expected.mediaType, actual.mediaType);
+      assertEquals(expected.url, actual.url);
+   }
+
+}//end ChatPageCacheTest
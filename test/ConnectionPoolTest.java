@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the pool hands idle connections out again, makes borrowers
+ * wait for a connection once all are out, replaces connections that are
+ * broken or dead, and closes the ones returned after it was closed.
+ *
+ */
+class ConnectionPoolTest {
+
+   private TestDatabase db;
+   private ConnectionPool pool;
+
+   @BeforeEach
+   void open () throws SQLException {
+      this.db = new TestDatabase();
+   }
+
+   @AfterEach
+   void close () throws SQLException {
+      if (this.pool != null) this.pool.close();
+      if (this.db != null) this.db.close();
+   }
+
+   @Test
+   void reusesIdleConnections () throws SQLException {
+      this.pool = new ConnectionPool(this.db.url, TestDatabase.USER, "", 1, 2);
+      assertEquals(1, this.pool.getOpenConnections());
+      ConnectionPool.PooledConnection conn = this.pool.borrow();
+      assertEquals(1, this.pool.getBorrowedConnections());
+      this.pool.release(conn, false);
+      assertSame(conn, this.pool.borrow());
+      this.pool.release(conn, false);
+      assertEquals(1, this.pool.getOpenConnections());
+      assertEquals(2, this.pool.getBorrows());
+   }
+
+   @Test
+   void waitsForAReleasedConnection () throws Exception {
+      this.pool = new ConnectionPool(this.db.url, TestDatabase.USER, "", 1, 1);
+      ConnectionPool.PooledConnection conn = this.pool.borrow();
+      Thread releaser = new Thread(() -> {
+         try{
+            Thread.sleep(100);
+         }catch (InterruptedException e){
+            // released at once then.
+         }//end try
+         this.pool.release(conn, false);
+      });
+      releaser.start();
+      assertSame(conn, this.pool.borrow());
+      releaser.join();
+      this.pool.release(conn, false);
+      assertEquals(1, this.pool.getOpenConnections());
+      assertTrue(this.pool.getBorrowWaitMillis() > 0);
+   }
+
+   @Test
+   void replacesBrokenAndDeadConnections () throws SQLException {
+      this.pool = new ConnectionPool(this.db.url, TestDatabase.USER, "", 1, 2);
+      ConnectionPool.PooledConnection broken = this.pool.borrow();
+      this.pool.release(broken, true);
+      assertEquals(0, this.pool.getOpenConnections());
+      assertTrue(broken.connection.isClosed());
+
+      ConnectionPool.PooledConnection dead = this.pool.borrow();
+      assertNotSame(broken, dead);
+      // closed behind the pool's back, found out when borrowed again
+      dead.connection.close();
+      this.pool.release(dead, false);
+      ConnectionPool.PooledConnection live = this.pool.borrow();
+      assertNotSame(dead, live);
+      assertFalse(live.connection.isClosed());
+      this.pool.release(live, false);
+      assertEquals(1, this.pool.getOpenConnections());
+   }
+
+   @Test
+   void closesConnectionsReturnedAfterClose () throws SQLException {
+      this.pool = new ConnectionPool(this.db.url, TestDatabase.USER, "", 2, 2);
+      ConnectionPool.PooledConnection conn = this.pool.borrow();
+      this.pool.close();
+      assertEquals(0, this.pool.getIdleConnections());
+      assertFalse(conn.connection.isClosed());
+      this.pool.release(conn, false);
+      assertTrue(conn.connection.isClosed());
+      assertEquals(0, this.pool.getOpenConnections());
+      SQLException e = assertThrows(SQLException.class, () -> this.pool.borrow());
+      assertTrue(ConnectionPool.isConnectionError(e));
+   }
+
+   @Test
+   void connectionErrorsAreClass08 () {
+      assertTrue(ConnectionPool.isConnectionError(new SQLException("gone", "08006")));
+      assertFalse(ConnectionPool.isConnectionError(new SQLException("duplicate", "23505")));
+      assertFalse(ConnectionPool.isConnectionError(new SQLException("no state")));
+   }
+
+}//end ConnectionPoolTest
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a sweep deletes in chunks until a chunk comes back short,
+ * and that a failed sweep is counted and leaves the next one to retry.
+ *
+ */
+class ExpiredMessageSweeperTest {
+
+   // far enough out that only the sweeps run by the tests happen
+   private static final long NEVER = 3600000;
+
+   /*
+    * A store holding a number of expired messages
+    */
+   private static class Expired implements ExpiredMessageSweeper.Store {
+      int left;
+      boolean failing;
+      final List<Integer> limits = new ArrayList<Integer>();
+
+      Expired (int left) {
+         this.left = left;
+      }
+
+      public long expiredLagMillis () throws SQLException {
+         if (this.failing) throw new SQLException("connection lost", "08006");
+         return this.left > 0 ? 1500 : 0;
+      }
+
+      public int purgeExpired (int limit) {
+         this.limits.add(limit);
+         int deleted = Math.min(limit, this.left);
+         this.left -= deleted;
+         return deleted;
+      }
+   }//end Expired
+
+   @Test
+   void sweepsInChunksUntilNoneIsLeft () {
+      Expired store = new Expired(25);
+      ExpiredMessageSweeper sweeper = new ExpiredMessageSweeper(store, NEVER, 10);
+      try{
+         sweeper.sweep();
+         assertEquals(0, store.left);
+         assertEquals(List.of(10, 10, 10), store.limits);
+         assertEquals(25, sweeper.getPurged());
+         assertEquals(1, sweeper.getSweeps());
+         assertEquals(1500, sweeper.getLagMillis());
+      }finally{
+         sweeper.close();
+      }//end try
+   }
+
+   @Test
+   void fullLastChunkTakesOneMoreStatement () {
+      Expired store = new Expired(20);
+      ExpiredMessageSweeper sweeper = new ExpiredMessageSweeper(store, NEVER, 10);
+      try{
+         sweeper.sweep();
+         assertEquals(List.of(10, 10, 10), store.limits);
+         assertEquals(20, sweeper.getPurged());
+      }finally{
+         sweeper.close();
+      }//end try
+   }
+
+   @Test
+   void failedSweepIsCountedAndRetried () {
+      Expired store = new Expired(5);
+      store.failing = true;
+      ExpiredMessageSweeper sweeper = new ExpiredMessageSweeper(store, NEVER, 10);
+      try{
+         sweeper.sweep();
+         assertEquals(1, sweeper.getErrors());
+         assertEquals(0, sweeper.getSweeps());
+         assertEquals(5, store.left);
+
+         store.failing = false;
+         sweeper.sweep();
+         assertEquals(0, store.left);
+         assertEquals(1, sweeper.getSweeps());
+         assertEquals(5, sweeper.getPurged());
+      }finally{
+         sweeper.close();
+      }//end try
+   }
+
+}//end ExpiredMessageSweeperTest
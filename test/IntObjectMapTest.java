@@ -0,0 +1,94 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks IntObjectMap against a HashMap, mostly around removal: entries
+ * shifted back into the hole must stay reachable, including runs that
+ * wrap around the end of the table.
+ *
+ */
+class IntObjectMapTest {
+
+   @Test
+   void putGetAndReplace () {
+      IntObjectMap<String> map = new IntObjectMap<String>();
+      assertNull(map.put(7, "a"));
+      assertNull(map.put(-7, "b"));
+      assertEquals("a", map.put(7, "c"));
+      assertEquals("c", map.get(7));
+      assertEquals("b", map.get(-7));
+      assertNull(map.get(0));
+      assertEquals(2, map.size());
+   }
+
+   @Test
+   void rejectsNullValues () {
+      assertThrows(NullPointerException.class, () -> new IntObjectMap<String>().put(1, null));
+   }
+
+   @Test
+   void removeMissingKey () {
+      IntObjectMap<String> map = new IntObjectMap<String>();
+      map.put(1, "a");
+      assertNull(map.remove(2));
+      assertEquals(1, map.size());
+   }
+
+   /*
+    * A table kept at its fullest holds long runs of probes; removing the
+    * keys one at a time must leave every other key where get finds it
+    */
+   @Test
+   void removeKeepsEveryOtherKeyReachable () {
+      for (int seed = 0; seed < 50; ++seed) {
+         Random random = new Random(seed);
+         IntObjectMap<Integer> map = new IntObjectMap<Integer>(16);
+         List<Integer> keys = new ArrayList<Integer>();
+         // 16 entries fill a 32 slot table to the resize limit
+         while (keys.size() < 16) {
+            int key = random.nextInt();
+            if (map.put(key, key) == null) keys.add(key);
+         }//end while
+         while (!keys.isEmpty()) {
+            int key = keys.remove(random.nextInt(keys.size()));
+            assertEquals(key, map.remove(key));
+            assertNull(map.get(key));
+            for (int other : keys)
+               assertEquals(other, map.get(other), "seed " + seed);
+            assertEquals(keys.size(), map.size());
+         }//end while
+      }//end for
+   }
+
+   @Test
+   void matchesHashMapUnderRandomChanges () {
+      Random random = new Random(42);
+      IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+      Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+      for (int i = 0; i < 200000; ++i) {
+         // a small key range keeps the table dense and the runs long
+         int key = random.nextInt(512);
+         if (random.nextInt(3) == 0) {
+            assertEquals(expected.remove(key), map.remove(key));
+         }else{
+            assertEquals(expected.put(key, i), map.put(key, i));
+         }//end if
+         assertEquals(expected.size(), map.size());
+      }//end for
+      for (int key = 0; key < 512; ++key)
+         assertEquals(expected.get(key), map.get(key));
+      List<Integer> values = map.values();
+      assertEquals(expected.size(), values.size());
+      assertTrue(values.containsAll(expected.values()));
+   }
+
+}//end IntObjectMapTest
@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that sending a message writes the message, the notifications of
+ * the given recipients and the unread counters of the other members in
+ * one statement, and that reading a chat resets its counter and clears
+ * its notifications only.
+ *
+ */
+class JdbcStoreTest {
+
+   private TestDatabase db;
+   private MessageStore messages;
+
+   @BeforeEach
+   void open () throws SQLException {
+      this.db = new TestDatabase();
+      this.messages = this.db.esql.messages();
+      for (String login : new String[] { "alice", "bob", "carol" })
+         this.db.esql.users().createUser(login, "secret", null);
+   }
+
+   @AfterEach
+   void close () throws SQLException {
+      if (this.db != null) this.db.close();
+   }
+
+   @Test
+   void sendWritesMessageNotificationsAndCounters () throws SQLException {
+      int chat = chat("alice", "bob", "carol");
+      int first = this.messages.sendMessage("alice", chat, "hello", new String[] { "bob" });
+      int second = this.messages.sendMessage("alice", chat, "anyone?", new String[] { "bob", "carol" });
+      assertTrue(second > first);
+      // and the one that opens the chat
+      assertEquals(3, count("SELECT count(*) FROM MESSAGE WHERE chat_id = " + chat + " AND sender_login = 'alice'"));
+      assertEquals(List.of("alice", "alice"), this.messages.notifications("bob"));
+      assertEquals(List.of("alice"), this.messages.notifications("carol"));
+      // every other member counts both, notified or not; the sender none
+      assertEquals(Map.of(chat, 2), this.messages.unreadCounts("bob"));
+      assertEquals(Map.of(chat, 2), this.messages.unreadCounts("carol"));
+      assertTrue(this.messages.unreadCounts("alice").isEmpty());
+   }
+
+   @Test
+   void sendToNobodyStillCounts () throws SQLException {
+      int chat = chat("alice", "bob");
+      this.messages.sendMessage("alice", chat, "quiet", new String[0]);
+      assertTrue(this.messages.notifications("bob").isEmpty());
+      assertEquals(Map.of(chat, 1), this.messages.unreadCounts("bob"));
+   }
+
+   @Test
+   void markReadClearsOnlyThatChat () throws SQLException {
+      int chat = chat("alice", "bob");
+      int other = chat("carol", "bob");
+      this.messages.sendMessage("alice", chat, "one", new String[] { "bob" });
+      this.messages.sendMessage("alice", chat, "two", new String[] { "bob" });
+      this.messages.sendMessage("carol", other, "three", new String[] { "bob" });
+
+      this.messages.markRead("bob", chat);
+      assertEquals(Map.of(other, 1), this.messages.unreadCounts("bob"));
+      assertEquals(List.of("carol"), this.messages.notifications("bob"));
+
+      // counting starts again from the cursor
+      this.messages.sendMessage("alice", chat, "four", new String[] { "bob" });
+      assertEquals(Map.of(chat, 1, other, 1), this.messages.unreadCounts("bob"));
+      assertEquals(2, this.messages.notifications("bob").size());
+   }
+
+   @Test
+   void markReadMovesTheCursorToTheNewestMessage () throws SQLException {
+      int chat = chat("alice", "bob");
+      // nothing unread yet, so the row is created by the read
+      this.messages.markRead("bob", chat);
+      int newest = this.messages.sendMessage("alice", chat, "one", new String[] { "bob" });
+      this.messages.markRead("bob", chat);
+      this.messages.markRead("bob", chat);
+      assertTrue(this.messages.unreadCounts("bob").isEmpty());
+      assertEquals(newest, count("SELECT last_read FROM CHAT_UNREAD WHERE usr_login = 'bob' AND chat_id = " + chat));
+   }
+
+   /*
+    * Creates a chat of the given users, the first one its creator
+    */
+   private int chat (String creator, String... others) throws SQLException {
+      int chat = this.messages.createChat(creator, others.length > 1 ? "group" : "private");
+      for (String other : others)
+         this.messages.addMember(chat, other);
+      return chat;
+   }
+
+   private int count (String sql) throws SQLException {
+      return this.db.esql.<Integer>query(sql, rs -> rs.next() ? rs.getInt(1) : 0);
+   }
+
+}//end JdbcStoreTest
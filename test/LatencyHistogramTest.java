@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks where LatencyHistogram puts a latency and what it reads back:
+ * exact values below 128ns, the top of the bucket above, never below the
+ * recorded value and never more than 1/64 over it.
+ *
+ */
+class LatencyHistogramTest {
+
+   @Test
+   void emptyHistogram () {
+      LatencyHistogram histogram = new LatencyHistogram();
+      assertEquals(0, histogram.count());
+      assertEquals(0, histogram.percentile(0.99));
+      assertEquals(0, histogram.max());
+   }
+
+   @Test
+   void exactBelow128 () {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int nanos = 0; nanos < 128; ++nanos)
+         histogram.record(nanos);
+      assertEquals(128, histogram.count());
+      assertEquals(0, histogram.percentile(0));
+      assertEquals(63, histogram.percentile(0.50));
+      assertEquals(126, histogram.percentile(0.99));
+      assertEquals(127, histogram.percentile(1));
+      assertEquals(127, histogram.max());
+   }
+
+   @Test
+   void negativeCountsAsZero () {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(-5);
+      assertEquals(1, histogram.count());
+      assertEquals(0, histogram.max());
+   }
+
+   @Test
+   void bucketBoundaries () {
+      // from 128 on, each power of two is split into 64 buckets
+      assertEquals(129, maxOf(128));
+      assertEquals(129, maxOf(129));
+      assertEquals(131, maxOf(130));
+      assertEquals(255, maxOf(254));
+      assertEquals(255, maxOf(255));
+      assertEquals(259, maxOf(256));
+      assertEquals(1015, maxOf(1008));
+      assertEquals(1039, maxOf(1024));
+      assertEquals(Long.MAX_VALUE, maxOf(Long.MAX_VALUE));
+   }
+
+   @Test
+   void readBackWithinTwoPercent () {
+      Random random = new Random(7);
+      for (int i = 0; i < 100000; ++i) {
+         long nanos = (random.nextLong() >>> 1) >>> random.nextInt(63);
+         long read = maxOf(nanos);
+         assertTrue(read >= nanos, () -> nanos + " read back as " + read);
+         assertTrue(read - nanos <= nanos / 64, () -> nanos + " read back as " + read);
+      }//end for
+   }
+
+   @Test
+   void percentileRanks () {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 0; i < 990; ++i)
+         histogram.record(100);
+      for (int i = 0; i < 10; ++i)
+         histogram.record(1000000);
+      assertEquals(100, histogram.percentile(0.50));
+      // the 990th of 1000 latencies is still the fast one, the 991st is not
+      assertEquals(100, histogram.percentile(0.99));
+      assertEquals(maxOf(1000000), histogram.percentile(0.991));
+      assertEquals(maxOf(1000000), histogram.percentile(0.999));
+      assertEquals(histogram.max(), histogram.percentile(1));
+   }
+
+   @Test
+   void millis () {
+      assertEquals(1.5, LatencyHistogram.millis(1500000));
+   }
+
+   private static long maxOf (long nanos) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(nanos);
+      return histogram.max();
+   }
+
+}//end LatencyHistogramTest
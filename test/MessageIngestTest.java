@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that messages are written in batches, that one bad message fails
+ * alone, and that every accepted message is written or failed when the
+ * pipeline is closed while senders are still submitting.
+ *
+ */
+class MessageIngestTest {
+
+   private static final String[] NOBODY = {};
+
+   @Test
+   void writesInBatches () throws Exception {
+      AtomicInteger ids = new AtomicInteger();
+      List<Integer> sizes = new ArrayList<Integer>();
+      MessageIngest ingest = new MessageIngest(batch -> {
+         synchronized (sizes) {
+            sizes.add(batch.size());
+         }//end synchronized
+         int[] written = new int[batch.size()];
+         for (int i = 0; i < written.length; ++i)
+            written[i] = ids.incrementAndGet();
+         return written;
+      }, 100, 8, 50);
+      List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+      for (int i = 0; i < 20; ++i)
+         futures.add(ingest.submit("alice", 1, "m" + i, NOBODY));
+      for (int i = 0; i < futures.size(); ++i)
+         assertEquals(i + 1, futures.get(i).get(5, TimeUnit.SECONDS));
+      ingest.close();
+      assertEquals(20, ingest.getMessages());
+      assertEquals(ingest.getBatches(), sizes.size());
+      for (int size : sizes)
+         assertTrue(size <= 8);
+   }
+
+   @Test
+   void badMessageFailsAlone () throws Exception {
+      MessageIngest ingest = new MessageIngest(batch -> {
+         for (MessageIngest.Pending pending : batch)
+            if (pending.text.equals("bad")) throw new SQLException("bad message");
+         int[] written = new int[batch.size()];
+         for (int i = 0; i < written.length; ++i)
+            written[i] = Integer.parseInt(batch.get(i).text);
+         return written;
+      }, 100, 8, 50);
+      CompletableFuture<Integer> one = ingest.submit("alice", 1, "1", NOBODY);
+      CompletableFuture<Integer> bad = ingest.submit("alice", 1, "bad", NOBODY);
+      CompletableFuture<Integer> two = ingest.submit("alice", 1, "2", NOBODY);
+      assertEquals(1, one.get(5, TimeUnit.SECONDS));
+      assertEquals(2, two.get(5, TimeUnit.SECONDS));
+      ExecutionException e = assertThrows(ExecutionException.class, () -> bad.get(5, TimeUnit.SECONDS));
+      assertTrue(e.getCause() instanceof SQLException);
+      ingest.close();
+   }
+
+   @Test
+   void closedIngestRejects () {
+      MessageIngest ingest = new MessageIngest(batch -> new int[batch.size()], 10, 8, 0);
+      ingest.close();
+      assertThrows(SQLException.class, () -> ingest.submit("alice", 1, "late", NOBODY));
+   }
+
+   @Test
+   void everyAcceptedMessageCompletesOnClose () throws Exception {
+      for (int round = 0; round < 20; ++round) {
+         // a small queue, so senders are waiting for room when it closes
+         MessageIngest ingest = new MessageIngest(batch -> new int[batch.size()], 4, 2, 0);
+         List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+         List<Thread> senders = new ArrayList<Thread>();
+         for (int t = 0; t < 8; ++t) {
+            Thread sender = new Thread(() -> {
+               for (int i = 0; i < 50; ++i) {
+                  try{
+                     CompletableFuture<Integer> future = ingest.submit("alice", 1, "m", NOBODY);
+                     synchronized (futures) {
+                        futures.add(future);
+                     }//end synchronized
+                  }catch (SQLException e){
+                     return;
+                  }//end try
+               }//end for
+            });
+            senders.add(sender);
+            sender.start();
+         }//end for
+         Thread.sleep(1);
+         ingest.close();
+         for (Thread sender : senders)
+            sender.join();
+         for (CompletableFuture<Integer> future : futures) {
+            try{
+               future.get(5, TimeUnit.SECONDS);
+            }catch (ExecutionException e){
+               assertTrue(e.getCause() instanceof SQLException);
+            }//end try
+         }//end for
+         assertEquals(0, ingest.getQueued());
+      }//end for
+   }
+
+}//end MessageIngestTest
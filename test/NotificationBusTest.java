@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a notification pushed to a logged in user stays pending
+ * until its chat is read, so reading it before logging out does not lose
+ * it, and that none is lost to a user logging out while it is published.
+ *
+ */
+class NotificationBusTest {
+
+   private static final String[] ALICE = { "alice" };
+
+   @Test
+   void pollReturnsEachNotificationOnce () throws InterruptedException {
+      NotificationBus bus = new NotificationBus(10);
+      bus.subscribe("alice");
+      bus.publish(new NotificationBus.Notification(1, 7, "bob"), ALICE);
+      assertEquals(1, bus.poll("alice", 0).size());
+      assertTrue(bus.poll("alice", 0).isEmpty());
+      // still pending for the listing
+      assertEquals(1, bus.pending("alice").size());
+   }
+
+   @Test
+   void readNotificationsAreStoredOnLogout () throws InterruptedException {
+      NotificationBus bus = new NotificationBus(10);
+      bus.subscribe("alice");
+      bus.publish(new NotificationBus.Notification(1, 7, "bob"), ALICE);
+      bus.publish(new NotificationBus.Notification(2, 8, "carol"), ALICE);
+      assertEquals(2, bus.poll("alice", 0).size());
+      List<NotificationBus.Notification> unread = bus.unsubscribe("alice");
+      assertEquals(2, unread.size());
+      assertEquals(1, unread.get(0).msgId);
+      assertEquals(2, unread.get(1).msgId);
+   }
+
+   @Test
+   void acknowledgeDropsTheChat () throws InterruptedException {
+      NotificationBus bus = new NotificationBus(10);
+      bus.subscribe("alice");
+      bus.publish(new NotificationBus.Notification(1, 7, "bob"), ALICE);
+      bus.publish(new NotificationBus.Notification(2, 8, "carol"), ALICE);
+      assertEquals(2, bus.poll("alice", 0).size());
+      bus.acknowledge("alice", 7);
+      bus.publish(new NotificationBus.Notification(3, 7, "bob"), ALICE);
+      // only what came after the acknowledgement is new
+      List<NotificationBus.Notification> polled = bus.poll("alice", 0);
+      assertEquals(1, polled.size());
+      assertEquals(3, polled.get(0).msgId);
+      List<NotificationBus.Notification> unread = bus.unsubscribe("alice");
+      assertEquals(2, unread.size());
+      assertEquals(2, unread.get(0).msgId);
+      assertEquals(3, unread.get(1).msgId);
+   }
+
+   @Test
+   void sessionsShareOneList () {
+      NotificationBus bus = new NotificationBus(10);
+      bus.subscribe("alice");
+      bus.subscribe("alice");
+      bus.publish(new NotificationBus.Notification(1, 7, "bob"), ALICE);
+      // the other session is still logged in
+      assertTrue(bus.unsubscribe("alice").isEmpty());
+      assertEquals(1, bus.unsubscribe("alice").size());
+   }
+
+   @Test
+   void missedWhenOfflineOrFull () {
+      NotificationBus bus = new NotificationBus(1);
+      NotificationBus.Notification notification = new NotificationBus.Notification(1, 7, "bob");
+      assertArrayEquals(ALICE, bus.publish(notification, ALICE));
+      bus.subscribe("alice");
+      assertEquals(0, bus.publish(notification, ALICE).length);
+      assertArrayEquals(ALICE, bus.publish(notification, ALICE));
+   }
+
+   @Test
+   void pollWakesOnPublishAndLogout () throws Exception {
+      NotificationBus bus = new NotificationBus(10);
+      bus.subscribe("alice");
+      Thread publisher = new Thread(() -> bus.publish(new NotificationBus.Notification(1, 7, "bob"), ALICE));
+      publisher.start();
+      assertEquals(1, bus.poll("alice", 10000).size());
+      publisher.join();
+
+      Thread logout = new Thread(() -> bus.unsubscribe("alice"));
+      long start = System.nanoTime();
+      logout.start();
+      assertTrue(bus.poll("alice", 10000).isEmpty());
+      assertTrue(System.nanoTime() - start < 5_000_000_000L);
+      logout.join();
+   }
+
+   @Test
+   void nothingLostToAConcurrentLogout () throws InterruptedException {
+      NotificationBus bus = new NotificationBus(1000);
+      for (int round = 0; round < 200; ++round) {
+         bus.subscribe("alice");
+         AtomicInteger missed = new AtomicInteger();
+         Thread publisher = new Thread(() -> {
+            for (int i = 0; i < 100; ++i)
+               missed.addAndGet(bus.publish(new NotificationBus.Notification(i, 7, "bob"), ALICE).length);
+         });
+         publisher.start();
+         int unread = bus.unsubscribe("alice").size();
+         publisher.join();
+         assertEquals(100, missed.get() + unread);
+      }//end for
+   }
+
+}//end NotificationBusTest
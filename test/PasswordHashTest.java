@@ -0,0 +1,65 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks what PasswordHash accepts: its own hashes at any iteration count
+ * and plain passwords marked by migration 6, but never an unmarked plain
+ * password or a malformed hash.
+ *
+ */
+class PasswordHashTest {
+
+   @Test
+   void verifiesItsHashes () {
+      String stored = PasswordHash.hash("secret");
+      assertTrue(stored.startsWith("pbkdf2$" + PasswordHash.ITERATIONS + "$"));
+      assertTrue(PasswordHash.verify("secret", stored));
+      assertFalse(PasswordHash.verify("Secret", stored));
+      assertFalse(PasswordHash.verify("", stored));
+   }
+
+   @Test
+   void saltsEveryHash () {
+      String first = PasswordHash.hash("secret", 1);
+      String second = PasswordHash.hash("secret", 1);
+      assertNotEquals(first, second);
+      assertTrue(PasswordHash.verify("secret", first));
+      assertTrue(PasswordHash.verify("secret", second));
+   }
+
+   @Test
+   void ignoresColumnPadding () {
+      assertTrue(PasswordHash.verify("secret", PasswordHash.hash("secret", 1) + "   "));
+      assertTrue(PasswordHash.verify("secret", "plain$secret   "));
+   }
+
+   @Test
+   void acceptsOnlyMarkedPlainPasswords () {
+      assertTrue(PasswordHash.verify("secret", "plain$secret"));
+      assertFalse(PasswordHash.verify("secret", "plain$other"));
+      assertFalse(PasswordHash.verify("secret", "secret"));
+      assertFalse(PasswordHash.verify("plain$secret", "plain$secret"));
+   }
+
+   @Test
+   void rejectsMalformedHashes () {
+      assertFalse(PasswordHash.verify("secret", null));
+      assertFalse(PasswordHash.verify("secret", "pbkdf2$"));
+      assertFalse(PasswordHash.verify("secret", "pbkdf2$1$c2FsdA"));
+      assertFalse(PasswordHash.verify("secret", "pbkdf2$many$c2FsdA$aGFzaA"));
+      assertFalse(PasswordHash.verify("secret", "pbkdf2$1$!!$!!"));
+   }
+
+   @Test
+   void needsRehash () {
+      assertFalse(PasswordHash.needsRehash(PasswordHash.hash("secret")));
+      assertFalse(PasswordHash.needsRehash(PasswordHash.hash("secret") + "  "));
+      assertTrue(PasswordHash.needsRehash(PasswordHash.hash("secret", PasswordHash.ITERATIONS - 1)));
+      assertTrue(PasswordHash.needsRehash("plain$secret"));
+      assertTrue(PasswordHash.needsRehash("secret"));
+   }
+
+}//end PasswordHashTest
@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the text each sink renders, including quoting and escaping, and
+ * that the buffer is written out as it fills up and at the end.
+ *
+ */
+class RowSinkTest {
+
+   private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+   private final PrintStream out = new PrintStream(this.bytes, false, StandardCharsets.UTF_8);
+
+   @Test
+   void tablePrintsTabSeparatedValues () {
+      render(new RowSink.Table(this.out), new String[] { "a", "b" }, new String[] { "1", "x y" }, new String[] { "2", null });
+      assertEquals("a\tb\t\n1\tx y\t\n2\tnull\t\n", output());
+   }
+
+   @Test
+   void emptyTableHasNoHeader () {
+      render(new RowSink.Table(this.out), new String[] { "a", "b" });
+      assertEquals("", output());
+   }
+
+   @Test
+   void csvQuotesWhereNeeded () {
+      render(new RowSink.Csv(this.out), new String[] { "login", "text" },
+             new String[] { "alice", "plain" },
+             new String[] { "bob", "a, \"quoted\"\nline" },
+             new String[] { null, "" });
+      assertEquals("login,text\nalice,plain\nbob,\"a, \"\"quoted\"\"\nline\"\n,\n", output());
+   }
+
+   @Test
+   void jsonLinesEscapeStrings () {
+      render(new RowSink.JsonLines(this.out), new String[] { "login", "text" },
+             new String[] { "alice", "tab\there \"q\" back\\slash\n\u0001" },
+             new String[] { "bob", null });
+      assertEquals("{\"login\":\"alice\",\"text\":\"tab\\there \\\"q\\\" back\\\\slash\\n\\u0001\"}\n" +
+                   "{\"login\":\"bob\",\"text\":null}\n", output());
+   }
+
+   @Test
+   void writesOutWhenTheBufferFills () {
+      RowSink sink = new RowSink.Csv(this.out);
+      sink.columns(new String[] { "n" });
+      String[] row = new String[1];
+      int rows = 0;
+      while (this.bytes.size() == 0) {
+         row[0] = "x".repeat(100);
+         sink.row(row);
+         rows++;
+      }//end while
+      // nothing before a full buffer, then at least that much
+      assertTrue(rows * 101 >= RowSink.Buffered.BUFFER_SIZE);
+      this.out.flush();
+      assertTrue(this.bytes.size() >= RowSink.Buffered.BUFFER_SIZE);
+      sink.end();
+      assertEquals(2 + rows * 101, this.bytes.size());
+   }
+
+   private static void render (RowSink sink, String[] names, String[]... rows) {
+      sink.columns(names);
+      for (String[] row : rows)
+         sink.row(row);
+      sink.end();
+   }
+
+   private String output () {
+      return this.bytes.toString(StandardCharsets.UTF_8);
+   }
+
+}//end RowSinkTest
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the migrations on an empty database and checks that the delete
+ * paths of JdbcStore work on the schema they create: a user, chat or
+ * message takes the rows that refer to it along.
+ *
+ */
+class SchemaMigratorTest {
+
+   private TestDatabase db;
+
+   @BeforeEach
+   void open () throws SQLException {
+      this.db = new TestDatabase();
+   }
+
+   @AfterEach
+   void close () throws SQLException {
+      if (this.db != null) this.db.close();
+   }
+
+   @Test
+   void migratesToTheLastVersionOnce () throws SQLException {
+      SchemaMigrator migrator = new SchemaMigrator(this.db.esql);
+      int last = SchemaMigrator.MIGRATIONS.get(SchemaMigrator.MIGRATIONS.size() - 1).version;
+      assertEquals(last, migrator.migrate());
+      assertEquals(last, migrator.migrate());
+      assertEquals(last, count("SELECT count(*) FROM SCHEMA_VERSION"));
+      assertTrue(migrator.missingIndexes().isEmpty());
+   }
+
+   @Test
+   void deleteMessageWithNotificationsAndAttachments () throws SQLException {
+      int chat = chat("alice", "bob");
+      int msg = this.db.esql.messages().sendMessage("alice", chat, "look", new String[] { "bob" });
+      this.db.esql.executeUpdate("INSERT INTO MEDIA_ATTACHMENT (media_type, URL, msg_id) VALUES ('photo', 'http://x/1.jpg', ?)", msg);
+      this.db.esql.messages().deleteMessage(chat, msg);
+      assertEquals(0, count("SELECT count(*) FROM MESSAGE WHERE msg_id = " + msg));
+      assertEquals(0, count("SELECT count(*) FROM NOTIFICATION WHERE msg_id = " + msg));
+      assertEquals(0, count("SELECT count(*) FROM MEDIA_ATTACHMENT WHERE msg_id = " + msg));
+   }
+
+   @Test
+   void deleteChatWithMembersAndMessages () throws SQLException {
+      int chat = chat("alice", "bob");
+      this.db.esql.messages().sendMessage("bob", chat, "hi", new String[] { "alice" });
+      assertTrue(this.db.esql.messages().deleteChat(chat, "alice"));
+      assertEquals(0, count("SELECT count(*) FROM CHAT_LIST WHERE chat_id = " + chat));
+      assertEquals(0, count("SELECT count(*) FROM MESSAGE WHERE chat_id = " + chat));
+      assertEquals(0, count("SELECT count(*) FROM NOTIFICATION WHERE chat_id = " + chat));
+   }
+
+   @Test
+   void deleteUserWithChatsMessagesAndLists () throws SQLException {
+      int own = chat("alice", "bob");
+      int other = chat("bob", "alice");
+      this.db.esql.messages().sendMessage("alice", other, "hi", new String[] { "bob" });
+      this.db.esql.messages().sendMessage("bob", other, "hello", new String[] { "alice" });
+      this.db.esql.users().addToList("bob", UserStore.CONTACTS, "alice");
+      assertTrue(this.db.esql.users().deleteUser("alice", "secret"));
+      assertEquals(0, count("SELECT count(*) FROM USR WHERE login = 'alice'"));
+      // the chat alice created is gone, bob's stays without her
+      assertEquals(0, count("SELECT count(*) FROM CHAT WHERE chat_id = " + own));
+      assertEquals(1, count("SELECT count(*) FROM CHAT_LIST WHERE chat_id = " + other));
+      assertEquals(0, count("SELECT count(*) FROM MESSAGE WHERE sender_login = 'alice'"));
+      assertEquals(0, count("SELECT count(*) FROM NOTIFICATION WHERE usr_login = 'alice'"));
+      assertEquals(0, count("SELECT count(*) FROM USER_LIST_CONTAINS WHERE list_member = 'alice'"));
+   }
+
+   /*
+    * Creates a chat of the given users, the first one its creator
+    */
+   private int chat (String creator, String... others) throws SQLException {
+      for (String login : new String[] { creator, others[0] })
+         if (!this.db.esql.users().exists(login)) this.db.esql.users().createUser(login, "secret", null);
+      int chat = this.db.esql.messages().createChat(creator, "private");
+      for (String other : others)
+         this.db.esql.messages().addMember(chat, other);
+      return chat;
+   }
+
+   private int count (String sql) throws SQLException {
+      return this.db.esql.<Integer>query(sql, rs -> rs.next() ? rs.getInt(1) : 0);
+   }
+
+}//end SchemaMigratorTest
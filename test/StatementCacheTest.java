@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a statement is prepared once per SQL text, that the least
+ * recently used one is closed past the capacity and that closed ones are
+ * prepared again, on a connection stub that counts what it prepares.
+ *
+ */
+class StatementCacheTest {
+
+   private int prepared;
+   private final Set<PreparedStatement> closed = new HashSet<PreparedStatement>();
+
+   @Test
+   void preparesOncePerSql () throws SQLException {
+      StatementCache cache = new StatementCache(connection(), 4);
+      PreparedStatement select = cache.prepare("SELECT 1");
+      assertSame(select, cache.prepare("SELECT 1"));
+      assertNotSame(select, cache.prepare("SELECT 2"));
+      assertEquals(2, this.prepared);
+   }
+
+   @Test
+   void closesTheLeastRecentlyUsed () throws SQLException {
+      StatementCache cache = new StatementCache(connection(), 2);
+      PreparedStatement first = cache.prepare("SELECT 1");
+      PreparedStatement second = cache.prepare("SELECT 2");
+      // used last, so the second one goes first
+      cache.prepare("SELECT 1");
+      cache.prepare("SELECT 3");
+      assertEquals(2, cache.size());
+      assertTrue(this.closed.contains(second));
+      assertFalse(this.closed.contains(first));
+      assertSame(first, cache.prepare("SELECT 1"));
+      assertNotSame(second, cache.prepare("SELECT 2"));
+      assertEquals(4, this.prepared);
+   }
+
+   @Test
+   void preparesAgainOnceClosed () throws SQLException {
+      StatementCache cache = new StatementCache(connection(), 4);
+      PreparedStatement select = cache.prepare("SELECT 1");
+      select.close();
+      assertNotSame(select, cache.prepare("SELECT 1"));
+      assertEquals(1, cache.size());
+   }
+
+   @Test
+   void closeAllClosesEveryStatement () throws SQLException {
+      StatementCache cache = new StatementCache(connection(), 4);
+      PreparedStatement first = cache.prepare("SELECT 1");
+      PreparedStatement second = cache.prepare("SELECT 2");
+      cache.closeAll();
+      assertTrue(cache.isEmpty());
+      assertTrue(this.closed.contains(first));
+      assertTrue(this.closed.contains(second));
+   }
+
+   /*
+    * A connection whose statements only know whether they are closed
+    */
+   private Connection connection () {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, (conn, method, args) -> {
+         if (!method.getName().equals("prepareStatement")) throw new UnsupportedOperationException(method.getName());
+         this.prepared++;
+         PreparedStatement[] self = new PreparedStatement[1];
+         self[0] = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, (stmt, call, params) -> {
+            switch (call.getName()) {
+               case "close": this.closed.add(self[0]); return null;
+               case "isClosed": return this.closed.contains(self[0]);
+               case "hashCode": return System.identityHashCode(stmt);
+               case "equals": return stmt == params[0];
+               default: throw new UnsupportedOperationException(call.getName());
+            }//end switch
+         });
+         return self[0];
+      });
+   }
+
+}//end StatementCacheTest
@@ -0,0 +1,82 @@
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * This class gives a test a database of its own, created empty and
+ * migrated by the Messenger connected to it.  The databases live on the
+ * PostgreSQL server at localhost:messenger.test.port when that is set,
+ * and otherwise on an embedded server started once per run.  Tests that
+ * need a database are skipped when there is none, e.g. because the
+ * embedded server refuses to start as root.
+ *
+ */
+final class TestDatabase implements AutoCloseable {
+
+   static final String PORT = System.getProperty("messenger.test.port");
+   static final String USER = System.getProperty("messenger.test.user", "postgres");
+
+   private static final AtomicInteger NEXT = new AtomicInteger();
+   private static EmbeddedPostgres _embedded = null;
+   private static String _port = null;
+   private static String _unavailable = null;
+
+   final String name;
+   // for tests that connect on their own
+   final String url;
+   final Messenger esql;
+
+   /**
+    * Creates a new database and connects a Messenger to it, skipping the
+    * calling test when no server is available.
+    */
+   TestDatabase () throws SQLException {
+      String port = port();
+      Assumptions.assumeTrue(port != null, () -> "No PostgreSQL server for the test: " + _unavailable);
+      this.name = "messenger_test_" + ProcessHandle.current().pid() + "_" + NEXT.incrementAndGet();
+      this.url = "jdbc:postgresql://localhost:" + port + "/" + this.name;
+      admin(port, "CREATE DATABASE " + this.name);
+      this.esql = new Messenger(this.name, port, USER, "");
+   }//end TestDatabase
+
+   private static synchronized String port () {
+      if (_port != null || _unavailable != null) return _port;
+      if (PORT != null) return _port = PORT;
+      try{
+         _embedded = EmbeddedPostgres.builder().start();
+         _port = String.valueOf(_embedded.getPort());
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try{
+               _embedded.close();
+            }catch (Exception e){
+               // the run is over anyway.
+            }//end try
+         }));
+      }catch (Exception e){
+         _unavailable = e.getMessage();
+      }//end try
+      return _port;
+   }//end port
+
+   private static void admin (String port, String sql) throws SQLException {
+      try (Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + port + "/postgres", USER, "");
+           Statement stmt = conn.createStatement()) {
+         stmt.execute(sql);
+      }//end try
+   }//end admin
+
+   /**
+    * Disconnects the Messenger and drops the database.
+    */
+   @Override
+   public void close () throws SQLException {
+      this.esql.cleanup();
+      admin(_port, "DROP DATABASE IF EXISTS " + this.name);
+   }//end close
+
+}//end TestDatabase
@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how TextIndex splits texts into words, which positions it offers
+ * for a search, and how rank confirms them against the current text.
+ *
+ */
+class TextIndexTest {
+
+   @Test
+   void termsAreDistinctLowerCaseWords () {
+      assertArrayEquals(new String[] { "hello" }, TextIndex.terms("Hello, hello!"));
+      assertArrayEquals(new String[] { "meet", "at", "10", "café" }, TextIndex.terms("  meet at 10:10 @café "));
+      assertArrayEquals(new String[0], TextIndex.terms(" ?! "));
+   }
+
+   @Test
+   void candidatesComeFromTheRarestWord () {
+      TextIndex index = new TextIndex();
+      index.add(0, "lunch today");
+      index.add(1, "lunch tomorrow");
+      index.add(2, "no lunch today");
+      index.add(3, "dinner");
+      assertArrayEquals(new int[] { 0, 2 }, index.candidates(new String[] { "lunch", "today" }));
+      assertArrayEquals(new int[] { 0, 1, 2 }, index.candidates(new String[] { "lunch" }));
+      assertArrayEquals(new int[0], index.candidates(new String[] { "lunch", "breakfast" }));
+      assertArrayEquals(new int[0], index.candidates(new String[0]));
+   }
+
+   @Test
+   void editedPositionsAreListedOnce () {
+      TextIndex index = new TextIndex();
+      for (int position = 0; position < 10; ++position)
+         index.add(position, "ping");
+      // edits add a position again, out of order
+      index.add(3, "ping again");
+      index.add(1, "ping");
+      assertArrayEquals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, index.candidates(new String[] { "ping" }));
+   }
+
+   @Test
+   void rankCountsWholeWords () {
+      String[] terms = { "lunch", "today" };
+      assertEquals(3, TextIndex.rank("Lunch today? LUNCH!", terms));
+      assertEquals(0, TextIndex.rank("lunch tomorrow", terms));
+      assertEquals(0, TextIndex.rank("lunches today", terms));
+      // a deleted message
+      assertEquals(0, TextIndex.rank(null, terms));
+   }
+
+}//end TextIndexTest